@@ -1,7 +1,5 @@
 package fchen;
 
-import java.io.File;
-
 import com.javamex.classmexer.*;
 
 /**
@@ -15,6 +13,7 @@ public class Benchmark
 	private long storage = 0; //storage for the file set and the prefix set
 	private long time[];  //time for outsource, query, search, verify, indexed by 0, 1, 2, 3, respectively
 	private String directory;
+	private String tagAlgorithm = TagFunction.HMAC_SHA256;   // the MAC algorithm; see TagFunction
 	
 	public final static int LOOP_TIMES = 40;    // we run the performance evaluation for such times and then average the result.
 	
@@ -27,6 +26,11 @@ public class Benchmark
 			this.time[i] = 0;
 	}
 	
+	public Benchmark(String directory, String tagAlgorithm) {
+		this(directory);
+		this.tagAlgorithm = tagAlgorithm;
+	}
+	
 	public long getStorage() {
 		return storage;
 	}
@@ -43,6 +47,14 @@ public class Benchmark
 		this.time = time;
 	}
 
+	public String getTagAlgorithm() {
+		return tagAlgorithm;
+	}
+
+	public void setTagAlgorithm(String tagAlgorithm) {
+		this.tagAlgorithm = tagAlgorithm;
+	}
+
 	public String getDirectory() {
 		return directory;
 	}
@@ -56,11 +68,9 @@ public class Benchmark
 	 */
 	public void run()
 	{
-	    	File tempDirectory = new File(this.directory);
-		String[] allFiles = tempDirectory.list();
-		int securityLevels =  allFiles.length / 5 + 1;
+		int securityLevels = (int) (new DirectoryWalker(this.directory).count() / 5) + 1;
 		
-		DiffVFS instance = new DiffVFS(this.directory, securityLevels);
+		DiffVFS instance = new DiffVFS(this.directory, securityLevels, this.tagAlgorithm);
 		
 		long startTime = 0, endTime = 0;
 		
@@ -83,7 +93,7 @@ public class Benchmark
 			ProofData proof         = null;  
 			
 			//extracting the query file
-			int temp = randomFile.indexOf('-');
+			int temp = randomFile.lastIndexOf('-');
 			int securityLevel = Integer.valueOf(randomFile.substring(temp + 1));
 			randomFile = randomFile.substring(0, temp);
 			
@@ -107,7 +117,7 @@ public class Benchmark
 		this.time[2] = (long) (this.time[2] / LOOP_TIMES);
 		this.time[3] = (long) (this.time[3] / LOOP_TIMES);
 		
-		System.out.println("TEST CASE: " + this.directory + "\n" + "total security levels: " + securityLevels + "\n");
+		System.out.println("TEST CASE: " + this.directory + ", MAC: " + this.tagAlgorithm + "\n" + "total security levels: " + securityLevels + "\n");
 		System.out.println("storage is: " + this.storage + "Bytes");
 		System.out.println("time is: (ns)");
 		for (int i = 0; i < this.time.length; i++)
@@ -1,6 +1,7 @@
 package fchen;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.Map.Entry;
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
@@ -33,6 +34,7 @@ public class DiffVFS
 
     private String rootDirectory = null;
     private TreeMap<String, String> fileTree = null;
+    private DirectoryWalker.Sample sample = null; // a few existing files with their security levels for the evaluation; see getRandomFile()
 
     private int securityLevels = 1;
     private byte[][] key = null;
@@ -50,7 +52,11 @@ public class DiffVFS
     private String alphabet = "abcdefghijklmnopqrstuvwxyz0123456789.";
     // all possible characters in a filename
 
-    private Mac mac;
+    private Mac mac; // derives the keys of the security levels
+    private String tagAlgorithm = TagFunction.HMAC_SHA256;
+    private TagFunction[] tag = null; // the MAC of every security level, keyed with this.key[level]; see TagFunction
+    private List<ThreadLocal<TagFunction>> tags = null; // a copy of every MAC of 'tag' per thread, for the client and the workers of outsource(int)
+    private static ForkJoinPool pool = null; // the workers of outsource(int); see pool()
 
     /**
      * It constructs an object dealing with all files in a directory.
@@ -60,9 +66,25 @@ public class DiffVFS
      *            The directory for all the files to be outsourced.
      */
     public DiffVFS(String rootDirectory, int securityLevels)
+    {
+	this(rootDirectory, securityLevels, TagFunction.HMAC_SHA256);
+    }
+
+    /**
+     * It constructs an object dealing with all files in a directory, with a
+     * given MAC algorithm for the filenames.
+     * 
+     * @param rootDirectory
+     *            The directory for all the files to be outsourced.
+     * @param tagAlgorithm
+     *            TagFunction.HMAC_SHA256 or TagFunction.AES_CMAC. An AES-CMAC
+     *            key is the first 16 bytes of the key of a security level.
+     */
+    public DiffVFS(String rootDirectory, int securityLevels, String tagAlgorithm)
     {
 	this.rootDirectory = rootDirectory;
 	this.securityLevels = securityLevels;
+	this.tagAlgorithm = tagAlgorithm;
 	try
 	{
 	    this.mac = Mac.getInstance("HmacSHA256");
@@ -116,6 +138,18 @@ public class DiffVFS
 		key[i] = this.mac.doFinal("123".getBytes());
 
 	    }
+
+	    this.tag  = new TagFunction[this.securityLevels + 1];
+	    this.tags = new ArrayList<ThreadLocal<TagFunction>>(this.securityLevels + 1);
+	    this.tags.add(null); // there is no level 0
+	    for (int i = 1; i < this.securityLevels + 1; i++)
+	    {
+		if (TagFunction.AES_CMAC.equals(this.tagAlgorithm) == true)
+		    this.tag[i] = TagFunction.getInstance(this.tagAlgorithm, new SecretKeySpec(key[i], 0, 16, "AES"));
+		else
+		    this.tag[i] = TagFunction.getInstance(this.tagAlgorithm, new SecretKeySpec(key[i], "HmacSHA256"));
+		this.tags.add(TagFunction.perThread(this.tag[i]));
+	    }
 	} catch (Exception e)
 	{
 	    System.out.println("error in keyGen: " + e);
@@ -133,10 +167,29 @@ public class DiffVFS
      */
     public void outsource()
     {
-	File directory = new File(this.rootDirectory);
-	String[] allFiles = directory.list();
+	outsource(1);
+    }
+
+    /**
+     * It helps the client to outsource all possible files to the cloud using
+     * several cores. The files of every security level are split across a
+     * fork-join pool, which is kept for the next call; every worker computes
+     * the MACs of its part with its own MAC instance, the sorted partial trees
+     * are merged pairwise, and the tree is filled once at the end. The result
+     * is the same as the one of outsource().
+     * 
+     * @param parallelism
+     *            The number of workers, e.g.
+     *            Runtime.getRuntime().availableProcessors(). If it is 1, the
+     *            files are handled one after another.
+     */
+    public void outsource(int parallelism)
+    {
+	String[] allFiles = new DirectoryWalker(this.rootDirectory).list();
 	String levelledFiles[][] = new String[this.securityLevels][];
+	this.sample = new DirectoryWalker.Sample(1024);
 	
+	SortedRun levelled = null; // the entries of the levels built in parallel
 	int blockNumber = 0;
 	if (allFiles.length % this.securityLevels == 0)
 	    blockNumber = allFiles.length / this.securityLevels;
@@ -148,18 +201,53 @@ public class DiffVFS
 	    int from = (i - 1) * blockNumber;
 	    int to = Math.min(i * blockNumber, allFiles.length);
 	    levelledFiles[i - 1] = Arrays.copyOfRange(allFiles, from, to);	    
+	    for (String file : levelledFiles[i - 1])
+		this.sample.add(file + "-" + i);
 	    
-	    constructTree(levelledFiles[i - 1], i);
+	    if (parallelism <= 1)
+		constructTree(levelledFiles[i - 1], 0, levelledFiles[i - 1].length, i, this.tag[i], this.fileTree);
+	    else
+	    {
+		int grain = Math.max(1, levelledFiles[i - 1].length / (4 * parallelism)); // a few tasks per worker to balance the load
+		TreeTask task = new TreeTask(levelledFiles[i - 1], 0, levelledFiles[i - 1].length, i, grain);
+		pool(parallelism).invoke(task);
+		levelled = (levelled == null) ? task.fileTree : new SortedRun(levelled, task.fileTree);
+	    }
+	}
+	if (levelled != null)
+	    levelled.putInto(this.fileTree);
+    }
+
+    /**
+     * It gets the fork-join pool with the given number of workers. The pool is
+     * kept for the later calls of outsource(int), so that its threads and the
+     * MAC instances which they keep in 'tags' are reused; a call with another
+     * number of workers replaces it.
+     * 
+     * @param parallelism
+     *            The number of workers.
+     * @return The pool.
+     */
+    private static synchronized ForkJoinPool pool(int parallelism)
+    {
+	if (pool == null || pool.getParallelism() != parallelism)
+	{
+	    if (pool != null)
+		pool.shutdown(); // the tasks already running in it are finished
+	    pool = new ForkJoinPool(parallelism);
 	}
+	return pool;
     }
 
     /*
      * It separates all possible filenames at a fiven security level into two sets.
      * Details about the algorithm can be found in our paper.
+     * Only the files in [from, to) are handled, with the given MAC instance and into the given tree;
+     * the entries of a file only depend on the whole file set of its level, so disjoint ranges can be handled by different workers.
      */
-    private void constructTree(String[] allFiles, int securityLevel)
+    private void constructTree(String[] allFiles, int from, int to, int securityLevel, TagFunction mac, TreeMap<String, String> fileTree)
     {
-	for (int counter = 0; counter < allFiles.length; counter++)
+	for (int counter = from; counter < to; counter++)
 	{ 
 	    //identify the security level of each file for evaluation purpose. In practice, this should be replaced by a security policy.
 	    
@@ -178,9 +266,9 @@ public class DiffVFS
 		    {
 			String prefixKey = tempPrefix + SPECIAL_AFTER;
 			// prefixKey = prefixKey + " + " + enerateMACOriginal(prefixKey); for correctness test
-			prefixKey = generateMAC(prefixKey, this.key[securityLevel]);
-			String macValue = generateMAC(prefixKey, this.key[securityLevel]);
-			this.fileTree.put(prefixKey, macValue); // add all prefixes into the prefix set using 'TreeMap'
+			prefixKey = generateMAC(mac, prefixKey);
+			String macValue = generateMAC(mac, prefixKey);
+			fileTree.put(prefixKey, macValue); // add all prefixes into the prefix set using 'TreeMap'
 		    }
 		}
 
@@ -194,16 +282,16 @@ public class DiffVFS
 		{
 		    String prefixKey = prefix + SPECIAL_PREVIOUS;
 		    // prefixKey = prefixKey + " + " + generateMACOriginal(prefixKey); for correctness test
-		    prefixKey = generateMAC(prefixKey, this.key[securityLevel]);
-		    String macValue = generateMAC(prefixKey, this.key[securityLevel]);
-		    this.fileTree.put(prefixKey, macValue); // add all prefixes into the prefix set using 'TreeMap'
+		    prefixKey = generateMAC(mac, prefixKey);
+		    String macValue = generateMAC(mac, prefixKey);
+		    fileTree.put(prefixKey, macValue); // add all prefixes into the prefix set using 'TreeMap'
 		}
 	    }
 
 	    // String fileKey = file + " + " + generateMACOriginal(file); for correctness test
-	    String fileKey = generateMAC(file, this.key[securityLevel]);
-	    String fileMac = generateMAC(fileKey, this.key[securityLevel]);
-	    this.fileTree.put(fileKey, fileMac); // add all filenames into the existing file set using 'TreeMap'
+	    String fileKey = generateMAC(mac, file);
+	    String fileMac = generateMAC(mac, fileKey);
+	    fileTree.put(fileKey, fileMac); // add all filenames into the existing file set using 'TreeMap'
 	}
     }
 
@@ -225,7 +313,7 @@ public class DiffVFS
 
 	for (int i = 0; i < queryFile.length; i++)
 	    // queryFile[i] = queryFile[i] + " + " + generateMACOriginal(queryFile[i]); for correctness test
-	    queryFile[i] = generateMAC(queryFile[i], this.key[securityLevel]);
+	    queryFile[i] = generateMAC(queryFile[i], securityLevel);
 	return queryFile;
     }
 
@@ -313,8 +401,8 @@ public class DiffVFS
 	{
 	    // queryFile[i] = queryFile[i] + " + " +
 	    // generateMACOriginal(queryFile[i]); // for correctness test
-	    queryFile[i] = generateMAC(queryFile[i], this.key[securityLevel]);
-	    String macTemp = generateMAC(queryFile[i], this.key[securityLevel]);
+	    queryFile[i] = generateMAC(queryFile[i], securityLevel);
+	    String macTemp = generateMAC(queryFile[i], securityLevel);
 	    if (queryFile[i].equals(queryReturned[index]) && macTemp.equals(mac[index]))
 	    {
 		result = 1; // the cloud is honest
@@ -327,21 +415,20 @@ public class DiffVFS
 
     /**
      * It generates a random filename, with its security level embedded in the filename.
+     * The file is picked from a sample kept by outsource(), so the directory is not listed again.
      * This function is mainly for performance evaluation purpose.
      * 
-     * @return A random existing filename.
+     * @return A random existing filename, or null if the files have not been outsourced yet.
      */
     public String getRandomFile()
     {
 	Random r = new Random((long) 0xff);
 
-	File directory = new File(this.rootDirectory);
-	String[] allFiles = directory.list();
+	if (this.sample == null) // not outsourced yet; the files are levelled by outsource()
+	    return null;
 
-	int index = Math.abs(r.nextInt()) % allFiles.length;
-
-	int securityLevel = (int) (index / allFiles.length * this.securityLevels) + 1;
-	return allFiles[index] + "-" + securityLevel;
+	int index = Math.abs(r.nextInt()) % this.sample.size();
+	return this.sample.get(index);
     }
 
     /**
@@ -384,24 +471,136 @@ public class DiffVFS
     }
 
     /**
-     * It generates the corresponding MAC for a given filename.
+     * It generates the corresponding MAC for a given filename with the MAC
+     * instance of the calling thread, for query() and verify().
      * 
      * @param filename
      *            The input filename to be MACed.
+     * @param securityLevel
+     *            The security level whose key is used.
      * @return The corresponding MAC of the filename.
      */
-    private String generateMAC(String filename, byte[] key)
+    private String generateMAC(String filename, int securityLevel)
     {
-	try
+	return generateMAC(this.tags.get(securityLevel).get(), filename);
+    }
+
+    /**
+     * It generates the corresponding MAC for a given filename with a given MAC
+     * instance. Every worker of the parallel outsourcing uses its own instance
+     * because a tag function is not thread-safe.
+     * 
+     * @param mac
+     *            The MAC instance, keyed for a security level.
+     * @param filename
+     *            The input filename to be MACed.
+     * @return The corresponding MAC of the filename.
+     */
+    private String generateMAC(TagFunction mac, String filename)
+    {
+	return bytes2HexString(mac.tag(filename.getBytes()));
+    }
+
+    /**
+     * It outsources a range of the files of one security level in a fork-join
+     * pool. A task splits its range until it is small enough, and then handles
+     * it with the MAC instance of its thread and its own tree. The trees of the
+     * two halves are returned as sorted runs and merged in linear time when
+     * both halves finish.
+     */
+    private class TreeTask extends RecursiveAction
+    {
+	private static final long serialVersionUID = 1L;
+
+	private String[] allFiles;
+	private int from;
+	private int to;
+	private int securityLevel;
+	private int grain;
+	private SortedRun fileTree = null;
+
+	public TreeTask(String[] allFiles, int from, int to, int securityLevel, int grain)
 	{
-	    this.mac.init(new SecretKeySpec(key, "HmacSHA256"));
-	    return bytes2HexString(this.mac.doFinal(filename.getBytes()));
-	} catch (Exception e)
+	    this.allFiles = allFiles;
+	    this.from = from;
+	    this.to = to;
+	    this.securityLevel = securityLevel;
+	    this.grain = grain;
+	}
+
+	@Override
+	protected void compute()
 	{
-	    System.out.println("Error in DiffVFS.generateMAC: " + e);
+	    if (this.to - this.from <= this.grain)
+	    {
+		TreeMap<String, String> fileTree = new TreeMap<String, String>();
+		constructTree(this.allFiles, this.from, this.to, this.securityLevel, tags.get(this.securityLevel).get(), fileTree);
+		this.fileTree = new SortedRun(fileTree);
+		return;
+	    }
+
+	    int middle = (this.from + this.to) >>> 1;
+	    TreeTask left = new TreeTask(this.allFiles, this.from, middle, this.securityLevel, this.grain);
+	    TreeTask right = new TreeTask(this.allFiles, middle, this.to, this.securityLevel, this.grain);
+	    invokeAll(left, right);
+
+	    this.fileTree = new SortedRun(left.fileTree, right.fileTree);
 	}
+    }
 
-	return null;
+    /**
+     * It holds the entries of a tree in two arrays sorted by their keys, as a
+     * task of outsource(int) returns them. Two runs are merged in linear time,
+     * so the entries of all tasks are put into the tree of the object only
+     * once.
+     */
+    private static class SortedRun
+    {
+	private String[] keys;
+	private String[] values;
+
+	public SortedRun(TreeMap<String, String> tree)
+	{
+	    this.keys = tree.keySet().toArray(new String[tree.size()]);
+	    this.values = tree.values().toArray(new String[tree.size()]);
+	}
+
+	/**
+	 * It merges two runs; a key in both of them, e.g. the entry of a prefix
+	 * shared by files of both halves, is kept once.
+	 */
+	public SortedRun(SortedRun a, SortedRun b)
+	{
+	    String[] keys = new String[a.keys.length + b.keys.length];
+	    String[] values = new String[keys.length];
+	    int i = 0, j = 0, k = 0;
+	    while (i < a.keys.length || j < b.keys.length)
+	    {
+		int order = (i == a.keys.length) ? 1 : (j == b.keys.length) ? -1 : a.keys[i].compareTo(b.keys[j]);
+		if (order <= 0)
+		{
+		    keys[k] = a.keys[i];
+		    values[k++] = a.values[i++];
+		    if (order == 0)
+			j++;
+		} else
+		{
+		    keys[k] = b.keys[j];
+		    values[k++] = b.values[j++];
+		}
+	    }
+	    this.keys = (k == keys.length) ? keys : Arrays.copyOf(keys, k);
+	    this.values = (k == values.length) ? values : Arrays.copyOf(values, k);
+	}
+
+	/**
+	 * It puts the entries into a tree in their order.
+	 */
+	public void putInto(TreeMap<String, String> tree)
+	{
+	    for (int k = 0; k < this.keys.length; k++)
+		tree.put(this.keys[k], this.values[k]);
+	}
     }
 
     private final static byte[] hex = "0123456789ABCDEF".getBytes();
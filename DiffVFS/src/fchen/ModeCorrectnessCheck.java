@@ -0,0 +1,305 @@
+package fchen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * It checks the correctness of 'DiffVFS' in its modes, one method per mode.
+ * The proof of every query must be verified at the security level of the file and point at the entry which tells whether the file exists,
+ * is a prefix of some existing file of the level or neither; every tampered proof must be rejected: a changed MAC, an entry which the query
+ * does not ask for, the proof of another query, and a proof checked at another security level.
+ *
+ * The directory is the first argument, or the one of 'CorrectnessCheck'. It prints every failed check and the totals at the end.
+ * @author Chen, Fei
+ */
+public class ModeCorrectnessCheck
+{
+	private final static int SECURITY_LEVELS = 3;
+
+	private static int checks   = 0;
+	private static int failures = 0;
+
+	public static void main(String[] args)
+	{
+		String rootDirectory = (args.length > 0) ? args[0] : "D:\\test\\files\\test1";
+
+		checkParallelOutsourcing(rootDirectory);
+		checkDirectoryTree();
+		checkAesCmac(rootDirectory);
+		checkConcurrentVerify(rootDirectory);
+
+		System.out.println(checks + " checks, " + failures + " failed.");
+	}
+
+	/**
+	 * It checks that outsourcing with several workers gives the same file tree as outsourcing serially, and proofs which are verified.
+	 */
+	private static void checkParallelOutsourcing(String rootDirectory)
+	{
+		List<TreeSet<String>> levels = levels(rootDirectory);
+		DiffVFS test = new DiffVFS(rootDirectory, SECURITY_LEVELS);
+		test.outsource();
+		checkLevels("serial", test, levels);
+
+		for (int parallelism = 1; parallelism <= 4; parallelism = parallelism * 2)
+		{
+			String mode      = parallelism + " workers";
+			DiffVFS parallel = new DiffVFS(rootDirectory, SECURITY_LEVELS);
+			parallel.outsource(parallelism);
+			check(mode + ": the same tree", parallel.getFileTree().equals(test.getFileTree()) == true);
+			checkLevels(mode, parallel, levels);
+		}
+	}
+
+	/**
+	 * It checks that the files of subdirectories are outsourced by their relative paths, and their proofs.
+	 */
+	private static void checkDirectoryTree()
+	{
+		String[] names   = {"a1", "docs/readme", "docs/2013/a.txt", "docs/2013/b.txt", "src/main.c", "src/util.c", "src/lib/x.c"};
+		String directory = createDirectory(names);
+		if (directory == null)
+			return;
+
+		TreeSet<String> files = new TreeSet<String>(Arrays.asList(new DirectoryWalker(directory).list()));
+		check("directory tree: the relative paths", files.equals(new TreeSet<String>(Arrays.asList(names))) == true);
+
+		DiffVFS test = new DiffVFS(directory, SECURITY_LEVELS);
+		test.outsource();
+		checkLevels("directory tree", test, levels(directory));
+	}
+
+	/**
+	 * It checks the proofs with AES-CMAC tags, outsourced serially and in parallel.
+	 */
+	private static void checkAesCmac(String rootDirectory)
+	{
+		List<TreeSet<String>> levels = levels(rootDirectory);
+		DiffVFS test = new DiffVFS(rootDirectory, SECURITY_LEVELS, TagFunction.AES_CMAC);
+		test.outsource();
+		checkLevels(TagFunction.AES_CMAC, test, levels);
+
+		DiffVFS parallel = new DiffVFS(rootDirectory, SECURITY_LEVELS, TagFunction.AES_CMAC);
+		parallel.outsource(4);
+		check(TagFunction.AES_CMAC + ", 4 workers: the same tree", parallel.getFileTree().equals(test.getFileTree()) == true);
+	}
+
+	/**
+	 * It checks that threads verifying proofs at the same time, each with its own tag function, accept the honest proofs and reject a forged one.
+	 */
+	private static void checkConcurrentVerify(String rootDirectory)
+	{
+		String[] algorithms = {TagFunction.HMAC_SHA256, TagFunction.AES_CMAC};
+		for (String algorithm : algorithms)
+		{
+			final DiffVFS test = new DiffVFS(rootDirectory, SECURITY_LEVELS, algorithm);
+			test.outsource();
+
+			final List<TreeSet<String>> levels = levels(rootDirectory);
+			final List<String> queries         = new ArrayList<String>();
+			final List<Integer> queryLevels    = new ArrayList<Integer>();
+			final List<ProofData> proofs       = new ArrayList<ProofData>();
+			for (int i = 1; i <= SECURITY_LEVELS; i++)
+			{
+				for (String filename : queries(levels.get(i)))
+				{
+					queries.add(filename);
+					queryLevels.add(i);
+					proofs.add(test.search(test.query(filename, i)));
+				}
+			}
+
+			ProofData first = proofs.get(0);
+			int index       = entry(first);
+			String[] mac    = first.getMac().clone();
+			mac[index]      = mac[index].substring(0, mac[index].length() - 1) + (mac[index].endsWith("0") == true ? "1" : "0");
+			final ProofData forged    = new ProofData(1, first.getFilename(), mac);
+			final AtomicInteger wrong = new AtomicInteger(0);
+
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; t++)
+			{
+				threads[t] = new Thread()
+				{
+					public void run()
+					{
+						for (int round = 0; round < 20; round++)
+						{
+							for (int k = 0; k < queries.size(); k++)
+								if (test.verify(queries.get(k), queryLevels.get(k), proofs.get(k)) != 1)
+									wrong.incrementAndGet();
+							if (test.verify(queries.get(0), queryLevels.get(0), forged) == 1)
+								wrong.incrementAndGet();
+						}
+					}
+				};
+				threads[t].start();
+			}
+			try
+			{
+				for (Thread thread : threads)
+					thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				check(algorithm + ": wait for the threads", false);
+			}
+			check(algorithm + ": " + threads.length + " threads verifying at the same time", wrong.get() == 0);
+		}
+	}
+
+	private static void check(String name, boolean result)
+	{
+		checks++;
+		if (result == false)
+		{
+			failures++;
+			System.out.println("FAILED: " + name);
+		}
+	}
+
+	/**
+	 * It gets the files of every security level, as outsource() splits them; there is no level 0.
+	 */
+	private static List<TreeSet<String>> levels(String rootDirectory)
+	{
+		String[] allFiles            = new DirectoryWalker(rootDirectory).list();
+		List<TreeSet<String>> result = new ArrayList<TreeSet<String>>();
+		int blockNumber              = (allFiles.length + SECURITY_LEVELS - 1) / SECURITY_LEVELS;
+		result.add(null);
+		for (int i = 1; i <= SECURITY_LEVELS; i++)
+			result.add(new TreeSet<String>(Arrays.asList(Arrays.copyOfRange(allFiles, Math.min((i - 1) * blockNumber, allFiles.length), Math.min(i * blockNumber, allFiles.length)))));
+		return result;
+	}
+
+	/**
+	 * It gets the entry of the query which an honest cloud returns: 0 if the file exists, 1 if it is a prefix of some existing file,
+	 * otherwise i + 2 for the shortest prefix filename[0, i + 1) which is not a prefix of any existing file.
+	 */
+	private static int expected(TreeSet<String> files, String filename)
+	{
+		if (files.contains(filename) == true)
+			return 0;
+		for (int i = 0; i < filename.length(); i++)
+		{
+			String prefix = filename.substring(0, i + 1);
+			String next   = files.ceiling(prefix);
+			if (next == null || next.startsWith(prefix) == false)
+				return i + 2;
+		}
+		return 1;
+	}
+
+	/**
+	 * It gets some existing files, some of their prefixes and some files different from all of them.
+	 */
+	private static List<String> queries(TreeSet<String> files)
+	{
+		List<String> result = new ArrayList<String>();
+		int step = Math.max(1, files.size() / 30);
+		int k    = 0;
+		for (String file : files)
+		{
+			if (k++ % step != 0)
+				continue;
+			result.add(file);
+			if (file.length() > 1)
+				result.add(file.substring(0, file.length() / 2));
+			result.add(file + "9z");
+			result.add(file.substring(0, file.length() - 1) + ((file.endsWith("z") == true) ? "y" : "z"));
+		}
+		result.add("zzzzzzzz");
+		return result;
+	}
+
+	/**
+	 * It gets the entry which a proof points at; -1 if it points at none.
+	 */
+	private static int entry(ProofData proof)
+	{
+		String[] mac = proof.getMac();
+		for (int i = 0; i < mac.length; i++)
+			if (mac[i] != null)
+				return i;
+		return -1;
+	}
+
+	private static void checkLevels(String mode, DiffVFS test, List<TreeSet<String>> levels)
+	{
+		for (int i = 1; i <= SECURITY_LEVELS; i++)
+			checkSearches(mode + ", level " + i, test, i, levels.get(i));
+	}
+
+	/**
+	 * It checks the proofs of single queries of a security level and their tampered copies.
+	 */
+	private static void checkSearches(String mode, DiffVFS test, int securityLevel, TreeSet<String> files)
+	{
+		List<String> queries = queries(files);
+		ProofData other      = null;
+		String otherFile     = null;
+		int otherLevel       = (securityLevel % test.getSecurityLevels()) + 1;
+
+		for (String filename : queries)
+		{
+			String[] query  = test.query(filename, securityLevel);
+			ProofData proof = test.search(query);
+			int index       = entry(proof);
+			check(mode + ": " + filename, index == expected(files, filename) && test.verify(filename, securityLevel, proof) == 1);
+			if (index < 0)
+				continue;
+
+			String[] mac = proof.getMac().clone();
+			mac[index]   = mac[index].substring(0, mac[index].length() - 1) + (mac[index].endsWith("0") == true ? "1" : "0");
+			check(mode + ": " + filename + ": changed MAC", test.verify(filename, securityLevel, new ProofData(1, query, mac)) != 1);
+
+			String[] returned = proof.getFilename().clone();
+			returned[index]   = test.query(filename + "9", securityLevel)[0];
+			check(mode + ": " + filename + ": an entry which is not asked for", test.verify(filename, securityLevel, new ProofData(1, returned, proof.getMac())) != 1);
+
+			check(mode + ": " + filename + ": checked at level " + otherLevel, test.verify(filename, otherLevel, proof) != 1);
+
+			if (other != null && expected(files, otherFile) != expected(files, filename))
+				check(mode + ": " + filename + ": the proof of " + otherFile, test.verify(filename, securityLevel, other) != 1);
+			other     = proof;
+			otherFile = filename;
+		}
+	}
+
+	/**
+	 * It creates a temporary directory holding empty files with the given relative paths; it is deleted when the program exits.
+	 * @return The directory; null if it cannot be created.
+	 */
+	private static String createDirectory(String[] names)
+	{
+		try
+		{
+			File root = File.createTempFile("files", "");
+			root.delete();
+			root.mkdir();
+			root.deleteOnExit();
+			for (String name : names)
+			{
+				File file = new File(root, name);
+				List<File> parents = new ArrayList<File>();
+				for (File parent = file.getParentFile(); parent.equals(root) == false; parent = parent.getParentFile())
+					parents.add(0, parent);
+				for (File parent : parents)
+					if (parent.mkdir() == true)
+						parent.deleteOnExit();  // files registered later are deleted before it
+				file.createNewFile();
+				file.deleteOnExit();
+			}
+			return root.getPath();
+		}
+		catch (Exception e)
+		{
+			check("create a temporary directory", false);
+			return null;
+		}
+	}
+}
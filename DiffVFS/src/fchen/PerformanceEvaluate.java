@@ -11,7 +11,10 @@ package fchen;
 public class PerformanceEvaluate {
 
 	public static void main(String[] args) {
-		Benchmark b = new Benchmark("D:\\test\\files\\test6");
+		// the same directory with both MAC algorithms
+		Benchmark b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
+		b.run();
+		b = new Benchmark("D:\\test\\files\\test6", TagFunction.AES_CMAC);
 		b.run();
 	}
 
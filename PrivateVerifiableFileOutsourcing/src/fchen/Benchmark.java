@@ -13,6 +13,7 @@ public class Benchmark
 	private long storage = 0; //storage for the file set and the prefix set
 	private long time[];  //time for outsource, query, search, verify, indexed by 0, 1, 2, 3, respectively
 	private String directory;
+	private String tagAlgorithm = TagFunction.HMAC_SHA256;   // the MAC algorithm; see TagFunction
 	
 	public final static int LOOP_TIMES = 40;    // we run the performance evaluation for such times and then average the result.
 	
@@ -25,6 +26,11 @@ public class Benchmark
 			this.time[i] = 0;
 	}
 	
+	public Benchmark(String directory, String tagAlgorithm) {
+		this(directory);
+		this.tagAlgorithm = tagAlgorithm;
+	}
+	
 	public long getStorage() {
 		return storage;
 	}
@@ -41,6 +47,14 @@ public class Benchmark
 		this.time = time;
 	}
 
+	public String getTagAlgorithm() {
+		return tagAlgorithm;
+	}
+
+	public void setTagAlgorithm(String tagAlgorithm) {
+		this.tagAlgorithm = tagAlgorithm;
+	}
+
 	public String getDirectory() {
 		return directory;
 	}
@@ -54,7 +68,7 @@ public class Benchmark
 	 */
 	public void run()
 	{
-		PrivatePrefixBasedOutsourcing instance = new PrivatePrefixBasedOutsourcing(this.directory);
+		PrivatePrefixBasedOutsourcing instance = new PrivatePrefixBasedOutsourcing(this.directory, this.tagAlgorithm);
 		
 		long startTime = 0, endTime = 0;
 		
@@ -96,7 +110,7 @@ public class Benchmark
 		this.time[2] = (long) (this.time[2] / LOOP_TIMES);
 		this.time[3] = (long) (this.time[3] / LOOP_TIMES);
 		
-		System.out.println("TEST CASE: " + this.directory + "\n");
+		System.out.println("TEST CASE: " + this.directory + ", MAC: " + this.tagAlgorithm + "\n");
 		System.out.println("storage is: " + this.storage + "Bytes");
 		System.out.println("time is: (ns)");
 		for (int i = 0; i < this.time.length; i++)
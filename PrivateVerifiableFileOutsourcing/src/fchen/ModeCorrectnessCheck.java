@@ -0,0 +1,279 @@
+package fchen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * It checks the correctness of 'PrivatePrefixBasedOutsourcing' in its modes, one method per mode.
+ * The proof of every query must be verified and point at the entry which tells whether the file exists, is a prefix of some existing file or neither;
+ * every tampered proof must be rejected: a changed MAC, an entry which the query does not ask for, and the proof of another query.
+ *
+ * The directory is the first argument, or the one of 'CorrectnessCheck'. It prints every failed check and the totals at the end.
+ * @author Chen, Fei
+ */
+public class ModeCorrectnessCheck
+{
+	private static int checks   = 0;
+	private static int failures = 0;
+
+	public static void main(String[] args)
+	{
+		String rootDirectory = (args.length > 0) ? args[0] : "D:\\test\\files\\test1";
+
+		checkParallelOutsourcing(rootDirectory);
+		checkDirectoryTree();
+		checkAesCmac(rootDirectory);
+		checkConcurrentVerify(rootDirectory);
+
+		System.out.println(checks + " checks, " + failures + " failed.");
+	}
+
+	/**
+	 * It checks that outsourcing with several workers gives as many entries as outsourcing serially, and proofs which are verified.
+	 */
+	private static void checkParallelOutsourcing(String rootDirectory)
+	{
+		TreeSet<String> files              = list(rootDirectory);
+		PrivatePrefixBasedOutsourcing test = new PrivatePrefixBasedOutsourcing(rootDirectory);
+		test.outsource();
+		checkSearches("serial", test, files);
+
+		for (int parallelism = 1; parallelism <= 4; parallelism = parallelism * 2)
+		{
+			String mode = parallelism + " workers";
+			PrivatePrefixBasedOutsourcing parallel = new PrivatePrefixBasedOutsourcing(rootDirectory);
+			parallel.outsource(parallelism);
+			check(mode + ": the same number of entries", parallel.getFileTree().size() == test.getFileTree().size());
+			checkSearches(mode, parallel, files);
+		}
+	}
+
+	/**
+	 * It checks that the files of subdirectories are outsourced by their relative paths, and their proofs.
+	 */
+	private static void checkDirectoryTree()
+	{
+		String[] names   = {"a1", "docs/readme", "docs/2013/a.txt", "docs/2013/b.txt", "src/main.c", "src/util.c", "src/lib/x.c"};
+		String directory = createDirectory(names);
+		if (directory == null)
+			return;
+
+		TreeSet<String> files = list(directory);
+		check("directory tree: the relative paths", files.equals(new TreeSet<String>(Arrays.asList(names))) == true);
+
+		PrivatePrefixBasedOutsourcing test = new PrivatePrefixBasedOutsourcing(directory);
+		test.outsource();
+		checkSearches("directory tree", test, files);
+	}
+
+	/**
+	 * It checks the proofs with AES-CMAC tags, outsourced serially and in parallel.
+	 */
+	private static void checkAesCmac(String rootDirectory)
+	{
+		TreeSet<String> files              = list(rootDirectory);
+		PrivatePrefixBasedOutsourcing test = new PrivatePrefixBasedOutsourcing(rootDirectory, TagFunction.AES_CMAC);
+		test.outsource();
+		checkSearches(TagFunction.AES_CMAC, test, files);
+
+		PrivatePrefixBasedOutsourcing parallel = new PrivatePrefixBasedOutsourcing(rootDirectory, TagFunction.AES_CMAC);
+		parallel.outsource(4);
+		check(TagFunction.AES_CMAC + ", 4 workers: the same number of entries", parallel.getFileTree().size() == test.getFileTree().size());
+		checkSearches(TagFunction.AES_CMAC + ", 4 workers", parallel, files);
+	}
+
+	/**
+	 * It checks that threads verifying proofs at the same time, each with its own tag function, accept the honest proofs and reject a forged one.
+	 */
+	private static void checkConcurrentVerify(String rootDirectory)
+	{
+		String[] algorithms = {TagFunction.HMAC_SHA256, TagFunction.AES_CMAC};
+		for (String algorithm : algorithms)
+		{
+			final PrivatePrefixBasedOutsourcing test = new PrivatePrefixBasedOutsourcing(rootDirectory, algorithm);
+			test.outsource();
+
+			final List<String> queries   = queries(list(rootDirectory));
+			final List<ProofData> proofs = new ArrayList<ProofData>();
+			for (String filename : queries)
+				proofs.add(test.search(test.query(filename)));
+
+			ProofData first = proofs.get(0);
+			int index       = entry(first);
+			String[] mac    = first.getMac().clone();
+			mac[index]      = mac[index].substring(0, mac[index].length() - 1) + (mac[index].endsWith("0") == true ? "1" : "0");
+			final ProofData forged    = new ProofData(1, first.getFilename(), mac);
+			final AtomicInteger wrong = new AtomicInteger(0);
+
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; t++)
+			{
+				threads[t] = new Thread()
+				{
+					public void run()
+					{
+						for (int round = 0; round < 20; round++)
+						{
+							for (int k = 0; k < queries.size(); k++)
+								if (test.verify(queries.get(k), proofs.get(k)) != 1)
+									wrong.incrementAndGet();
+							if (test.verify(queries.get(0), forged) == 1)
+								wrong.incrementAndGet();
+						}
+					}
+				};
+				threads[t].start();
+			}
+			try
+			{
+				for (Thread thread : threads)
+					thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				check(algorithm + ": wait for the threads", false);
+			}
+			check(algorithm + ": " + threads.length + " threads verifying at the same time", wrong.get() == 0);
+		}
+	}
+
+	private static void check(String name, boolean result)
+	{
+		checks++;
+		if (result == false)
+		{
+			failures++;
+			System.out.println("FAILED: " + name);
+		}
+	}
+
+	/**
+	 * It lists the files of the directory in lexicographic order.
+	 */
+	private static TreeSet<String> list(String directory)
+	{
+		return new TreeSet<String>(Arrays.asList(new DirectoryWalker(directory).list()));
+	}
+
+	/**
+	 * It gets the entry of the query which an honest cloud returns: 0 if the file exists, 1 if it is a prefix of some existing file,
+	 * otherwise i + 2 for the shortest prefix filename[0, i + 1) which is not a prefix of any existing file.
+	 */
+	private static int expected(TreeSet<String> files, String filename)
+	{
+		if (files.contains(filename) == true)
+			return 0;
+		for (int i = 0; i < filename.length(); i++)
+		{
+			String prefix = filename.substring(0, i + 1);
+			String next   = files.ceiling(prefix);
+			if (next == null || next.startsWith(prefix) == false)
+				return i + 2;
+		}
+		return 1;
+	}
+
+	/**
+	 * It gets some existing files, some of their prefixes and some files different from all of them.
+	 */
+	private static List<String> queries(TreeSet<String> files)
+	{
+		List<String> result = new ArrayList<String>();
+		int step = Math.max(1, files.size() / 50);
+		int k    = 0;
+		for (String file : files)
+		{
+			if (k++ % step != 0)
+				continue;
+			result.add(file);
+			if (file.length() > 1)
+				result.add(file.substring(0, file.length() / 2));
+			result.add(file + "9z");
+			result.add(file.substring(0, file.length() - 1) + ((file.endsWith("z") == true) ? "y" : "z"));
+		}
+		result.add("zzzzzzzz");
+		return result;
+	}
+
+	/**
+	 * It gets the entry which a proof points at; -1 if it points at none.
+	 */
+	private static int entry(ProofData proof)
+	{
+		String[] mac = proof.getMac();
+		for (int i = 0; i < mac.length; i++)
+			if (mac[i] != null)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * It checks the proofs of single queries and their tampered copies.
+	 */
+	private static void checkSearches(String mode, PrivatePrefixBasedOutsourcing test, TreeSet<String> files)
+	{
+		List<String> queries = queries(files);
+		ProofData other      = null;
+		String otherFile     = null;
+
+		for (String filename : queries)
+		{
+			String[] query  = test.query(filename);
+			ProofData proof = test.search(query);
+			int index       = entry(proof);
+			check(mode + ": " + filename, index == expected(files, filename) && test.verify(filename, proof) == 1);
+			if (index < 0)
+				continue;
+
+			String[] mac = proof.getMac().clone();
+			mac[index]   = mac[index].substring(0, mac[index].length() - 1) + (mac[index].endsWith("0") == true ? "1" : "0");
+			check(mode + ": " + filename + ": changed MAC", test.verify(filename, new ProofData(1, query, mac)) != 1);
+
+			String[] returned = proof.getFilename().clone();
+			returned[index]   = test.query(filename + "9")[0];
+			check(mode + ": " + filename + ": an entry which is not asked for", test.verify(filename, new ProofData(1, returned, proof.getMac())) != 1);
+
+			if (other != null && expected(files, otherFile) != expected(files, filename))
+				check(mode + ": " + filename + ": the proof of " + otherFile, test.verify(filename, other) != 1);
+			other     = proof;
+			otherFile = filename;
+		}
+	}
+
+	/**
+	 * It creates a temporary directory holding empty files with the given relative paths; it is deleted when the program exits.
+	 * @return The directory; null if it cannot be created.
+	 */
+	private static String createDirectory(String[] names)
+	{
+		try
+		{
+			File root = File.createTempFile("files", "");
+			root.delete();
+			root.mkdir();
+			root.deleteOnExit();
+			for (String name : names)
+			{
+				File file = new File(root, name);
+				List<File> parents = new ArrayList<File>();
+				for (File parent = file.getParentFile(); parent.equals(root) == false; parent = parent.getParentFile())
+					parents.add(0, parent);
+				for (File parent : parents)
+					if (parent.mkdir() == true)
+						parent.deleteOnExit();  // files registered later are deleted before it
+				file.createNewFile();
+				file.deleteOnExit();
+			}
+			return root.getPath();
+		}
+		catch (Exception e)
+		{
+			check("create a temporary directory", false);
+			return null;
+		}
+	}
+}
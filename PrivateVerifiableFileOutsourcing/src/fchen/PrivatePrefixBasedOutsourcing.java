@@ -1,6 +1,7 @@
  package fchen;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.Map.Entry;
 import java.security.*;
 import javax.crypto.*;
@@ -24,6 +25,7 @@ public class PrivatePrefixBasedOutsourcing
 	
 	private String rootDirectory                 = null;
 	private TreeMap<String, String> fileTree     = null;
+	private DirectoryWalker.Sample sample        = null;	// a few existing files for the evaluation; see getRandomFile()
 	/**
 	 * SPECIAL_PREVIOUS = "@"; It is a special symbol, denoting that a queried filename is a prefix of some existing file.
 	 * SPECIAL_AFTER    = "#"; It is a special symbol, denoting that a queried filename is different from all existing files.
@@ -34,15 +36,16 @@ public class PrivatePrefixBasedOutsourcing
 	
 	private byte[] seedOriginalFile              = null;
 	private SecureRandom srOriginalFile			 = null;
-	private KeyGenerator kgOriginalFile			 = null;
 	private SecretKey skOriginalFile			 = null;
-	private Mac macOriginalFile 				 = null;
+	private TagFunction macOriginalFile 		 = null;	// HMAC-SHA256 by default; see TagFunction
+	private ThreadLocal<TagFunction> macsOriginalFile = null;	// a copy of 'macOriginalFile' per thread, for the client and the workers of outsource(int)
 	
 	private byte[] seedMACedFile                 = null;
 	private SecureRandom srMACedFile 			 = null;
-	private KeyGenerator kgMACedFile 			 = null;
 	private SecretKey skMACedFile 				 = null;
-	private Mac macMACedFile		 			 = null;
+	private TagFunction macMACedFile		 	 = null;
+	private ThreadLocal<TagFunction> macsMACedFile = null;	// a copy of 'macMACedFile' per thread, for the client and the workers of outsource(int)
+	private static ForkJoinPool pool             = null;	// the workers of outsource(int); see pool()
 	
 	private String alphabet 					 = "abcdefghijklmnopqrstuvwxyz0123456789.";	// all possible characters in a filename
 	private int flag 							 = 1;	// if flag == 0, MAC = null; else real MAC. This variable is used for test / benchmark purpose.
@@ -55,6 +58,16 @@ public class PrivatePrefixBasedOutsourcing
 	 * @param rootDirectory The directory for all the files to be outsourced.	
 	 */
 	public PrivatePrefixBasedOutsourcing(String rootDirectory)
+	{
+		this(rootDirectory, TagFunction.HMAC_SHA256);
+	}
+	
+	/**
+	 * It constructs an object dealing with all files in a directory, with a given MAC algorithm for both keys.
+	 * @param rootDirectory The directory for all the files to be outsourced.
+	 * @param tagAlgorithm  TagFunction.HMAC_SHA256 or TagFunction.AES_CMAC.
+	 */
+	public PrivatePrefixBasedOutsourcing(String rootDirectory, String tagAlgorithm)
 	{
 		this.rootDirectory = rootDirectory;
 		this.fileTree      = new TreeMap<String, String>();
@@ -71,18 +84,14 @@ public class PrivatePrefixBasedOutsourcing
 		try 
 		{
 			this.srOriginalFile  = new SecureRandom(this.seedOriginalFile);
-			this.kgOriginalFile  = KeyGenerator.getInstance("HmacSHA256");
-			this.kgOriginalFile.init(this.srOriginalFile);
-			this.skOriginalFile  = this.kgOriginalFile.generateKey();
-			this.macOriginalFile = Mac.getInstance("HmacSHA256");
-			this.macOriginalFile.init(skOriginalFile);
+			this.skOriginalFile  = TagFunction.generateKey(tagAlgorithm, this.srOriginalFile);
+			this.macOriginalFile = TagFunction.getInstance(tagAlgorithm, this.skOriginalFile);
+			this.macsOriginalFile = TagFunction.perThread(this.macOriginalFile);
 			
 			this.srMACedFile     = new SecureRandom(this.seedMACedFile);
-			this.kgMACedFile     = KeyGenerator.getInstance("HmacSHA256");
-			this.kgMACedFile.init(this.srMACedFile);
-			this.skMACedFile     = this.kgMACedFile.generateKey();
-			this.macMACedFile    = Mac.getInstance("HmacSHA256");
-			this.macMACedFile.init(skMACedFile);
+			this.skMACedFile     = TagFunction.generateKey(tagAlgorithm, this.srMACedFile);
+			this.macMACedFile    = TagFunction.getInstance(tagAlgorithm, this.skMACedFile);
+			this.macsMACedFile   = TagFunction.perThread(this.macMACedFile);
 		} 
 		catch (Exception e)
 		{
@@ -114,6 +123,46 @@ public class PrivatePrefixBasedOutsourcing
 	{
 		constructPrefix();	 
 	}
+	
+	/**
+	 * It helps the client outsource all possible files to the cloud using several cores.
+	 * The files are split across a fork-join pool, which is kept for the next call; every worker computes the MACs of its part
+	 * with its own MAC instances, the sorted partial trees are merged pairwise, and the tree is filled once at the end.
+	 * The result is the same as the one of outsource().
+	 * @param parallelism The number of workers, e.g. Runtime.getRuntime().availableProcessors(); if it is 1 or less, the files are handled one after another.
+	 */
+	public void outsource(int parallelism)
+	{
+		String[] allFiles = listFiles();
+		
+		if (parallelism <= 1)
+		{
+			constructPrefix(allFiles, 0, allFiles.length, this.macOriginalFile, this.macMACedFile, this.fileTree);
+			return;
+		}
+		
+		int grain = Math.max(1, allFiles.length / (4 * parallelism));	// a few tasks per worker to balance the load
+		PrefixTask task = new PrefixTask(allFiles, 0, allFiles.length, grain);
+		pool(parallelism).invoke(task);
+		task.fileTree.putInto(this.fileTree);
+	}
+	
+	/**
+	 * It gets the fork-join pool with the given number of workers. The pool is kept for the later calls of outsource(int),
+	 * so that its threads and the MAC instances which they keep are reused; a call with another number of workers replaces it.
+	 * @param parallelism The number of workers.
+	 * @return The pool.
+	 */
+	private static synchronized ForkJoinPool pool(int parallelism)
+	{
+		if (pool == null || pool.getParallelism() != parallelism)
+		{
+			if (pool != null)
+				pool.shutdown();	// the tasks already running in it are finished
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
 
 	/**
 	 * It helps the client send a query to the cloud.
@@ -230,12 +279,27 @@ public class PrivatePrefixBasedOutsourcing
 	{
 		Random r          = new Random((long)0xff);
 		
-		File directory    = new File(this.rootDirectory);
-		String[] allFiles = directory.list();
+		if (this.sample == null)   // not outsourced yet
+			listFiles();
 		
-		int index         = Math.abs( r.nextInt() ) % allFiles.length;
+		int index         = Math.abs( r.nextInt() ) % this.sample.size();
 		
-		return allFiles[index];		
+		return this.sample.get(index);		
+	}
+	
+	/**
+	 * It lists all files in the directory tree by their relative paths (see DirectoryWalker), and keeps a sample of them
+	 * so that getRandomFile() does not need to list the directory again.
+	 * @return All files.
+	 */
+	private String[] listFiles()
+	{
+		String[] allFiles = new DirectoryWalker(this.rootDirectory).list();
+		
+		this.sample = new DirectoryWalker.Sample(1024);
+		for (String file : allFiles)
+			this.sample.add(file);
+		return allFiles;
 	}
 	
 	/**
@@ -247,11 +311,27 @@ public class PrivatePrefixBasedOutsourcing
 	 */
 	private void constructPrefix()
 	{
-		File directory = new File(this.rootDirectory);
-		String[] allFiles = directory.list();
+		String[] allFiles = listFiles();
 		
-		for (String file : allFiles)
+		constructPrefix(allFiles, 0, allFiles.length, this.macOriginalFile, this.macMACedFile, this.fileTree);
+	}
+	
+	/**
+	 * It constructs the tree entries of the files in [from, to) of a given file set.
+	 * The entries of a file only depend on the whole file set, so disjoint ranges can be handled by different workers.
+	 * @param allFiles        All files in the directory.
+	 * @param from            The first file of the range.
+	 * @param to              The file after the range.
+	 * @param macOriginalFile The MAC instance for the filenames.
+	 * @param macMACedFile    The MAC instance for the MACed filenames.
+	 * @param fileTree        The tree to be filled.
+	 */
+	private void constructPrefix(String[] allFiles, int from, int to, TagFunction macOriginalFile, TagFunction macMACedFile, TreeMap<String, String> fileTree)
+	{
+		for (int counter = from; counter < to; counter++)
 		{
+			String file = allFiles[counter];
+			
 			// first, handle the wildcard case. Note that 'prefix' denotes a string not existing in the current files. 
 			// e.g. existing files {abc, dd}; the following program tries to find {b#, c#, e#, ...}.
 			for (int i = 0; i <= file.length(); i++)      // pay attention to the loop condition
@@ -266,9 +346,9 @@ public class PrivatePrefixBasedOutsourcing
 					{
 						String prefixKey = tempPrefix + SPECIAL_AFTER;
 						//prefixKey      = prefixKey + " + " + generateMACOriginal(prefixKey); // for correctness test
-						prefixKey        = generateMACOriginal(prefixKey);
-						String macValue  = generateMACMACed(prefixKey);
-						this.fileTree.put(prefixKey, macValue);        // add all prefixes into the prefix set using 'TreeMap'
+						prefixKey        = generateMACOriginal(macOriginalFile, prefixKey);
+						String macValue  = generateMACMACed(macMACedFile, prefixKey);
+						fileTree.put(prefixKey, macValue);        // add all prefixes into the prefix set using 'TreeMap'
 					}		
 				}
 						
@@ -283,16 +363,16 @@ public class PrivatePrefixBasedOutsourcing
 				{
 					String prefixKey = prefix + SPECIAL_PREVIOUS;
 					//prefixKey      = prefixKey + " + " + generateMACOriginal(prefixKey); // for correctness test
-					prefixKey        = generateMACOriginal(prefixKey);
-					String macValue  = generateMACMACed(prefixKey);
-					this.fileTree.put(prefixKey, macValue); 	// add all prefixes into the prefix set using 'TreeMap'
+					prefixKey        = generateMACOriginal(macOriginalFile, prefixKey);
+					String macValue  = generateMACMACed(macMACedFile, prefixKey);
+					fileTree.put(prefixKey, macValue); 	// add all prefixes into the prefix set using 'TreeMap'
 				}				
 			}
 			
 			//String fileKey = file + " + " + generateMACOriginal(file); // for correctness test
-			String fileKey = generateMACOriginal(file);
-			String fileMac = generateMACMACed(fileKey);
-			this.fileTree.put(fileKey, fileMac);        // add all filenames into the existing file set using 'TreeMap'			
+			String fileKey = generateMACOriginal(macOriginalFile, file);
+			String fileMac = generateMACMACed(macMACedFile, fileKey);
+			fileTree.put(fileKey, fileMac);        // add all filenames into the existing file set using 'TreeMap'			
 		}
 	}
 	
@@ -329,31 +409,150 @@ public class PrivatePrefixBasedOutsourcing
 	}
 	
 	/**
-	 * It generates the corresponding MAC for a given filename.
+	 * It generates the corresponding MAC for a given filename with the MAC instance of the calling thread, for query() and verify().
 	 * @param filename The input filename to be MACed.
 	 * @return The corresponding MAC of the filename.
 	 */
 	private String generateMACOriginal(String filename)
+	{
+		return generateMACOriginal(this.macsOriginalFile.get(), filename);
+	}
+	
+	/**
+	 * It generates the corresponding MAC for a given filename with a given MAC instance.
+	 * Every worker of the parallel outsourcing uses its own instance because a tag function is not thread-safe.
+	 * @param mac      The MAC instance keyed for the filenames.
+	 * @param filename The input filename to be MACed.
+	 * @return The corresponding MAC of the filename.
+	 */
+	private String generateMACOriginal(TagFunction mac, String filename)
 	{
 		if (this.flag == 1)		
-			return bytes2HexString( this.macOriginalFile.doFinal(filename.getBytes()) );
+			return bytes2HexString( mac.tag(filename.getBytes()) );
 		else
 			return null;
 	}
 	
 	/**
-	 * It generates the corresponding MAC for a MACed filename.
+	 * It generates the corresponding MAC for a MACed filename with the MAC instance of the calling thread, for verify().
 	 * @param filename The input MACed filename to be MACed again.
 	 * @return The corresponding MAC of the MACed filename.
 	 */
 	private String generateMACMACed(String filename)
+	{
+		return generateMACMACed(this.macsMACedFile.get(), filename);
+	}
+	
+	/**
+	 * It generates the corresponding MAC for a MACed filename with a given MAC instance.
+	 * @param mac      The MAC instance keyed for the MACed filenames.
+	 * @param filename The input MACed filename to be MACed again.
+	 * @return The corresponding MAC of the MACed filename.
+	 */
+	private String generateMACMACed(TagFunction mac, String filename)
 	{
 		if (this.flag == 1)		
-			return bytes2HexString( this.macMACedFile.doFinal(filename.getBytes()) );
+			return bytes2HexString( mac.tag(filename.getBytes()) );
 		else
 			return null;
 	}
 	
+	/**
+	 * It outsources a range of the files in a fork-join pool.
+	 * A task splits its range until it is small enough, and then handles it with the MAC instances of its thread and its own tree.
+	 * The trees of the two halves are returned as sorted runs and merged in linear time when both halves finish.
+	 */
+	private class PrefixTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private String[] allFiles;
+		private int from;
+		private int to;
+		private int grain;
+		private SortedRun fileTree = null;
+		
+		public PrefixTask(String[] allFiles, int from, int to, int grain)
+		{
+			this.allFiles = allFiles;
+			this.from     = from;
+			this.to       = to;
+			this.grain    = grain;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if (this.to - this.from <= this.grain)
+			{
+				TreeMap<String, String> fileTree = new TreeMap<String, String>();
+				constructPrefix(this.allFiles, this.from, this.to, macsOriginalFile.get(), macsMACedFile.get(), fileTree);
+				this.fileTree = new SortedRun(fileTree);
+				return;
+			}
+			
+			int middle = (this.from + this.to) >>> 1;
+			PrefixTask left  = new PrefixTask(this.allFiles, this.from, middle, this.grain);
+			PrefixTask right = new PrefixTask(this.allFiles, middle, this.to, this.grain);
+			invokeAll(left, right);
+			
+			this.fileTree = new SortedRun(left.fileTree, right.fileTree);
+		}
+	}
+	
+	/**
+	 * It holds the entries of a tree in two arrays sorted by their keys, as a task of outsource(int) returns them.
+	 * Two runs are merged in linear time, so the entries of all tasks are put into the tree of the object only once.
+	 */
+	private static class SortedRun
+	{
+		private String[] keys;
+		private String[] values;
+		
+		public SortedRun(TreeMap<String, String> tree)
+		{
+			this.keys   = tree.keySet().toArray(new String[tree.size()]);
+			this.values = tree.values().toArray(new String[tree.size()]);
+		}
+		
+		/**
+		 * It merges two runs; a key in both of them, e.g. the entry of a prefix shared by files of both halves, is kept once.
+		 */
+		public SortedRun(SortedRun a, SortedRun b)
+		{
+			String[] keys   = new String[a.keys.length + b.keys.length];
+			String[] values = new String[keys.length];
+			int i = 0, j = 0, k = 0;
+			while (i < a.keys.length || j < b.keys.length)
+			{
+				int order = (i == a.keys.length) ? 1 : (j == b.keys.length) ? -1 : a.keys[i].compareTo(b.keys[j]);
+				if (order <= 0)
+				{
+					keys[k]     = a.keys[i];
+					values[k++] = a.values[i++];
+					if (order == 0)
+						j++;
+				}
+				else
+				{
+					keys[k]     = b.keys[j];
+					values[k++] = b.values[j++];
+				}
+			}
+			this.keys   = (k == keys.length) ? keys : Arrays.copyOf(keys, k);
+			this.values = (k == values.length) ? values : Arrays.copyOf(values, k);
+		}
+		
+		/**
+		 * It puts the entries into a tree in their order.
+		 */
+		public void putInto(TreeMap<String, String> tree)
+		{
+			for (int k = 0; k < this.keys.length; k++)
+				tree.put(this.keys[k], this.values[k]);
+		}
+	}
+	
 	private final static byte[] hex = "0123456789ABCDEF".getBytes();
 	/**
 	 * It transforms a byte array into a string in the Hexadecimal format in an entry-wise way.
@@ -14,6 +14,7 @@ public class Benchmark
 	private long storage = 0; //storage for the file set and the prefix set
 	private long time[];  //time for outsource, query, search existing, search nonexisting, verify existing, verify nonexisting, indexed by 0, 1, 2, 3, 4, 5, respectively
 	private String directory;
+	private String tagAlgorithm = TagFunction.HMAC_SHA256;   // the MAC algorithm; see TagFunction
 	
 	public final static int LOOP_TIMES = 40;    // we run the performance evaluation for such times and then average the result.
 	
@@ -26,6 +27,11 @@ public class Benchmark
 			this.time[i] = 0;
 	}
 	
+	public Benchmark(String directory, String tagAlgorithm) {
+		this(directory);
+		this.tagAlgorithm = tagAlgorithm;
+	}
+	
 	public long getStorage() {
 		return storage;
 	}
@@ -42,6 +48,14 @@ public class Benchmark
 		this.time = time;
 	}
 
+	public String getTagAlgorithm() {
+		return tagAlgorithm;
+	}
+
+	public void setTagAlgorithm(String tagAlgorithm) {
+		this.tagAlgorithm = tagAlgorithm;
+	}
+
 	public String getDirectory() {
 		return directory;
 	}
@@ -55,7 +69,7 @@ public class Benchmark
 	 */
 	public void run()
 	{
-		PrefixBasedOutsourcing instance = new PrefixBasedOutsourcing(this.directory);
+		PrefixBasedOutsourcing instance = new PrefixBasedOutsourcing(this.directory, PrefixBasedOutsourcing.ENCODING_PREFIX, this.tagAlgorithm);
 		
 		long startTime = 0, endTime = 0;
 		
@@ -117,7 +131,7 @@ public class Benchmark
 		this.time[3] = (long) (this.time[3] / LOOP_TIMES);
 		this.time[5] = (long) (this.time[5] / LOOP_TIMES);		
 		
-		System.out.println("TEST CASE: " + this.directory + "\n");
+		System.out.println("TEST CASE: " + this.directory + ", MAC: " + this.tagAlgorithm + "\n");
 		System.out.println("storage is: " + this.storage + "Bytes");
 		System.out.println("time is: (ns)");
 		System.out.print(this.time[0] + "    ");
@@ -127,5 +141,8 @@ public class Benchmark
 		
 		System.out.println("\ncorrespoding to outsource, query, search, verify");
 		
+		instance.compact();
+		System.out.println("storage of the compact radix trie is: " + MemoryUtil.deepMemoryUsageOf(instance.getIndex()) + "Bytes");
+		
 	}
 }
@@ -0,0 +1,200 @@
+package fchen;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * It streams the files to be outsourced from a directory tree, instead of listing one directory into one array with File.list().
+ * The tree is walked with Files.walkFileTree; subdirectories are entered and every file is reported by its path relative to
+ * the root directory, with '/' as the separator, e.g. "docs/2013/a.txt". Directories themselves are not reported.
+ * The paths are handed over in batches of bounded size, so an outsourcing engine can consume a huge tree without holding its listing.
+ *
+ * @author Chen, Fei
+ */
+public class DirectoryWalker
+{
+	public final static int DEFAULT_BATCH_SIZE = 4096;
+
+	/**
+	 * It receives the paths of the walked files, one batch after another.
+	 * The batch is reused after handle() returns, so a handler must copy the paths it wants to keep.
+	 */
+	public interface BatchHandler
+	{
+		public void handle(List<String> batch);
+	}
+
+	private Path root     = null;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * It constructs a walker over a directory tree with the default batch size.
+	 * @param rootDirectory The root directory.
+	 */
+	public DirectoryWalker(String rootDirectory)
+	{
+		this(rootDirectory, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * It constructs a walker over a directory tree.
+	 * @param rootDirectory The root directory.
+	 * @param batchSize     The maximal number of paths in a batch.
+	 */
+	public DirectoryWalker(String rootDirectory, int batchSize)
+	{
+		this.root      = Paths.get(rootDirectory);
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * It walks the directory tree and hands the relative paths of all files to a handler in batches.
+	 * Unreadable files and directories are reported and skipped.
+	 * @param handler The handler.
+	 * @return The number of files.
+	 */
+	public long walk(final BatchHandler handler)
+	{
+		final List<String> batch = new ArrayList<String>(this.batchSize);
+		final long[] count       = new long[1];
+
+		try
+		{
+			Files.walkFileTree(this.root, new SimpleFileVisitor<Path>()
+			{
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+				{
+					if (attributes.isDirectory() == true)
+						return FileVisitResult.CONTINUE;
+
+					batch.add(relativePath(file));
+					count[0]++;
+					if (batch.size() == batchSize)
+					{
+						handler.handle(batch);
+						batch.clear();
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFileFailed(Path file, IOException e)
+				{
+					System.out.println("Error occured when visiting " + file + ".\n" + e.toString());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error occured when walking the directory " + this.root + ".\n" + e.toString());
+		}
+
+		if (batch.isEmpty() == false)
+			handler.handle(batch);
+		return count[0];
+	}
+
+	/**
+	 * It collects the relative paths of all files into one array, for the schemes which need the whole file set at once.
+	 * The paths go straight into the array; no second listing is built.
+	 * @return The paths in the order of the walk.
+	 */
+	public String[] list()
+	{
+		final String[][] files = { new String[this.batchSize] };
+		final int[] size       = new int[1];
+
+		walk(new BatchHandler()
+		{
+			public void handle(List<String> batch)
+			{
+				if (size[0] + batch.size() > files[0].length)
+					files[0] = Arrays.copyOf(files[0], Math.max(size[0] + batch.size(), 2 * files[0].length));
+				for (String file : batch)
+					files[0][size[0]++] = file;
+			}
+		});
+
+		return (size[0] == files[0].length) ? files[0] : Arrays.copyOf(files[0], size[0]);
+	}
+
+	/**
+	 * It counts the files in the directory tree without keeping their paths.
+	 * @return The number of files.
+	 */
+	public long count()
+	{
+		return walk(new BatchHandler()
+		{
+			public void handle(List<String> batch)
+			{
+			}
+		});
+	}
+
+	/**
+	 * It computes the path of a file relative to the root directory, using '/' as the separator on all platforms.
+	 */
+	private String relativePath(Path file)
+	{
+		String result = this.root.relativize(file).toString();
+		if (File.separatorChar != '/')
+			result = result.replace(File.separatorChar, '/');
+		return result;
+	}
+
+	/**
+	 * It keeps a uniform random sample of bounded size of the walked files (reservoir sampling),
+	 * so that the evaluation can pick random existing files without listing the directory again.
+	 */
+	public static class Sample implements BatchHandler
+	{
+		private String[] files = null;
+		private int size       = 0;
+		private long seen      = 0;
+		private Random random  = new Random((long)0xff);
+
+		/**
+		 * @param capacity The maximal number of files in the sample.
+		 */
+		public Sample(int capacity)
+		{
+			this.files = new String[Math.max(1, capacity)];
+		}
+
+		public void handle(List<String> batch)
+		{
+			for (String file : batch)
+				add(file);
+		}
+
+		/**
+		 * It offers one file to the sample.
+		 * @param file The file.
+		 */
+		public void add(String file)
+		{
+			this.seen++;
+			if (this.size < this.files.length)
+				this.files[this.size++] = file;
+			else
+			{
+				long j = (long) (this.random.nextDouble() * this.seen);
+				if (j < this.files.length)
+					this.files[(int) j] = file;
+			}
+		}
+
+		public String get(int index)
+		{
+			return this.files[index];
+		}
+
+		public int size()
+		{
+			return this.size;
+		}
+	}
+}
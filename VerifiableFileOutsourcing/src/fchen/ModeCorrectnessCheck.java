@@ -0,0 +1,644 @@
+package fchen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * It checks the correctness of 'PrefixBasedOutsourcing' in its modes, one method per mode.
+ * The proof of every query must be verified and tell whether the file exists, is a prefix of some existing file or neither;
+ * every tampered proof must be rejected: a changed result, filename or MAC, and the proof of a query with another result.
+ *
+ * The directory is the first argument, or the one of 'CorrectnessCheck'. It prints every failed check and the totals at the end.
+ * @author Chen, Fei
+ */
+public class ModeCorrectnessCheck
+{
+	private final static String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789.";  // the alphabet of 'PrefixBasedOutsourcing'
+
+	private static int checks   = 0;
+	private static int failures = 0;
+
+	public static void main(String[] args)
+	{
+		String rootDirectory = (args.length > 0) ? args[0] : "D:\\test\\files\\test1";
+
+		checkSortedConstruction(rootDirectory);
+		checkRadixTrie(rootDirectory);
+		checkParallelOutsourcing(rootDirectory);
+		checkUpdates(rootDirectory);
+		checkRangeEncoding(rootDirectory);
+		checkOrderedLookups(rootDirectory);
+		checkIndexFile(rootDirectory);
+		checkDirectoryTree();
+		checkBatches(rootDirectory);
+		checkAesCmac(rootDirectory);
+		checkConcurrentVerify(rootDirectory);
+
+		System.out.println(checks + " checks, " + failures + " failed.");
+	}
+
+	/**
+	 * It checks that the sorted construction gives the prefix set of the definition, and its proofs.
+	 */
+	private static void checkSortedConstruction(String rootDirectory)
+	{
+		TreeSet<String> files       = list(rootDirectory);
+		PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(rootDirectory);
+		test.outsource();
+		checkSets("prefix encoding", test, files);
+		checkSearches("prefix encoding", test, files);
+	}
+
+	/**
+	 * It checks that the radix trie of compact() gives the same proofs as the sets it is built from.
+	 */
+	private static void checkRadixTrie(String rootDirectory)
+	{
+		TreeSet<String> files       = list(rootDirectory);
+		PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(rootDirectory);
+		test.outsource();
+		test.compact();
+		check("radix trie: built", test.getIndex() != null);
+		checkSearches("radix trie", test, files);
+	}
+
+	/**
+	 * It checks that outsourcing with several workers gives the same sets as outsourcing serially, and proofs which are verified.
+	 */
+	private static void checkParallelOutsourcing(String rootDirectory)
+	{
+		TreeSet<String> files = list(rootDirectory);
+		for (int parallelism = 1; parallelism <= 4; parallelism = parallelism * 2)
+		{
+			String mode = "prefix encoding, " + parallelism + " workers";
+			PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(rootDirectory);
+			test.outsource(parallelism);
+			checkSets(mode, test, files);
+			checkSearches(mode, test, files);
+		}
+	}
+
+	/**
+	 * It checks that the sets after addFile() and removeFile() are the ones which outsourcing the new files gives.
+	 */
+	private static void checkUpdates(String rootDirectory)
+	{
+		TreeSet<String> files       = list(rootDirectory);
+		PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(rootDirectory);
+		test.outsource();
+		update("prefix encoding", test, files);
+		checkSets("prefix encoding, after the updates", test, files);
+		checkSearches("prefix encoding, after the updates", test, files);
+	}
+
+	/**
+	 * It checks the gap set of the range encoding, outsourced serially, in parallel and updated, and its proofs.
+	 */
+	private static void checkRangeEncoding(String rootDirectory)
+	{
+		TreeSet<String> files       = list(rootDirectory);
+		PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(rootDirectory, PrefixBasedOutsourcing.ENCODING_RANGE);
+		test.outsource();
+		checkGaps("range encoding", test, files);
+		checkSearches("range encoding", test, files);
+
+		PrefixBasedOutsourcing parallel = new PrefixBasedOutsourcing(rootDirectory, PrefixBasedOutsourcing.ENCODING_RANGE);
+		parallel.outsource(4);
+		checkGaps("range encoding, 4 workers", parallel, files);
+
+		update("range encoding", test, files);
+		checkGaps("range encoding, after the updates", test, files);
+		checkSearches("range encoding, after the updates", test, files);
+	}
+
+	/**
+	 * It checks that the ordered lookups of search() return the one entry which proves the result, in every encoding and in the radix trie.
+	 */
+	private static void checkOrderedLookups(String rootDirectory)
+	{
+		for (int encoding = PrefixBasedOutsourcing.ENCODING_PREFIX; encoding <= PrefixBasedOutsourcing.ENCODING_RANGE; encoding++)
+		{
+			String mode                 = (encoding == PrefixBasedOutsourcing.ENCODING_PREFIX) ? "prefix encoding" : "range encoding";
+			TreeSet<String> files       = list(rootDirectory);
+			PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(rootDirectory, encoding);
+			test.outsource();
+			checkKeys(mode, test, files, encoding);
+			if (encoding == PrefixBasedOutsourcing.ENCODING_PREFIX)
+			{
+				test.compact();
+				checkKeys(mode + ", radix trie", test, files, encoding);
+			}
+		}
+	}
+
+	/**
+	 * It checks that the sets are searched in the same way after being stored into an index file and mapped,
+	 * for the given directory and for a directory with a long filename.
+	 */
+	private static void checkIndexFile(String rootDirectory)
+	{
+		StringBuilder longName = new StringBuilder("long");
+		for (int i = 0; i < 200; i++)
+			longName.append(ALPHABET.charAt(i % ALPHABET.length()));
+		String[] directories = {rootDirectory, createDirectory(new String[] {"a", "ab", "abc.txt", longName.toString(), "z9"})};
+
+		for (String directory : directories)
+		{
+			if (directory == null)
+				continue;
+			for (int encoding = PrefixBasedOutsourcing.ENCODING_PREFIX; encoding <= PrefixBasedOutsourcing.ENCODING_RANGE; encoding++)
+			{
+				String mode                 = ((encoding == PrefixBasedOutsourcing.ENCODING_PREFIX) ? "prefix encoding" : "range encoding") + ", " + directory;
+				TreeSet<String> files       = list(directory);
+				PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(directory, encoding);
+				test.outsource();
+				checkStoreOpen(mode, test, files);
+			}
+		}
+	}
+
+	/**
+	 * It checks that the files of subdirectories are outsourced by their relative paths, and their proofs.
+	 */
+	private static void checkDirectoryTree()
+	{
+		String[] names   = {"a1", "docs/readme", "docs/2013/a.txt", "docs/2013/b.txt", "src/main.c", "src/util.c", "src/lib/x.c"};
+		String directory = createDirectory(names);
+		if (directory == null)
+			return;
+
+		TreeSet<String> files = list(directory);
+		check("directory tree: the relative paths", files.equals(new TreeSet<String>(Arrays.asList(names))) == true);
+
+		for (int encoding = PrefixBasedOutsourcing.ENCODING_PREFIX; encoding <= PrefixBasedOutsourcing.ENCODING_RANGE; encoding++)
+		{
+			String mode                 = "directory tree, " + ((encoding == PrefixBasedOutsourcing.ENCODING_PREFIX) ? "prefix encoding" : "range encoding");
+			PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(directory, encoding);
+			test.outsource();
+			if (encoding == PrefixBasedOutsourcing.ENCODING_PREFIX)
+				checkSets(mode, test, files);
+			else
+				checkGaps(mode, test, files);
+			checkSearches(mode, test, files);
+		}
+	}
+
+	/**
+	 * It checks batch search and verify against single queries, with the sets, the radix trie, the index file and the range encoding.
+	 */
+	private static void checkBatches(String rootDirectory)
+	{
+		TreeSet<String> files       = list(rootDirectory);
+		PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(rootDirectory);
+		test.outsource();
+		checkBatch("batch, prefix encoding", test, files);
+
+		File file = null;
+		try
+		{
+			file = File.createTempFile("prefix", ".idx");
+			file.deleteOnExit();
+		}
+		catch (Exception e)
+		{
+			check("batch: create a temporary file", false);
+		}
+		if (file != null && test.store(file.getPath()) == true && test.open(file.getPath()) == true)
+			checkBatch("batch, index file", test, files);
+
+		test = new PrefixBasedOutsourcing(rootDirectory);
+		test.outsource();
+		test.compact();
+		checkBatch("batch, radix trie", test, files);
+
+		test = new PrefixBasedOutsourcing(rootDirectory, PrefixBasedOutsourcing.ENCODING_RANGE);
+		test.outsource();
+		checkBatch("batch, range encoding", test, files);
+	}
+
+	/**
+	 * It checks both encodings with AES-CMAC tags, outsourced serially and in parallel, compacted and updated.
+	 */
+	private static void checkAesCmac(String rootDirectory)
+	{
+		for (int encoding = PrefixBasedOutsourcing.ENCODING_PREFIX; encoding <= PrefixBasedOutsourcing.ENCODING_RANGE; encoding++)
+		{
+			boolean range               = (encoding == PrefixBasedOutsourcing.ENCODING_RANGE);
+			String mode                 = ((range == true) ? "range encoding" : "prefix encoding") + ", " + TagFunction.AES_CMAC;
+			TreeSet<String> files       = list(rootDirectory);
+			PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(rootDirectory, encoding, TagFunction.AES_CMAC);
+			test.outsource();
+			check(mode + ": 16-byte tags", test.search(test.query(files.first())).getMac().length == 16);
+			checkSearches(mode, test, files);
+
+			PrefixBasedOutsourcing parallel = new PrefixBasedOutsourcing(rootDirectory, encoding, TagFunction.AES_CMAC);
+			parallel.outsource(4);
+			if (range == true)
+				checkGaps(mode + ", 4 workers", parallel, files);
+			else
+				checkSets(mode + ", 4 workers", parallel, files);
+			checkSearches(mode + ", 4 workers", parallel, files);
+
+			update(mode, test, files);
+			checkSearches(mode + ", after the updates", test, files);
+			if (range == false)
+			{
+				test.compact();
+				checkSearches(mode + ", radix trie", test, files);
+			}
+		}
+	}
+
+	/**
+	 * It checks that threads verifying proofs at the same time, each with its own tag function, accept the honest proofs and reject a forged one.
+	 */
+	private static void checkConcurrentVerify(String rootDirectory)
+	{
+		String[] algorithms = {TagFunction.HMAC_SHA256, TagFunction.AES_CMAC};
+		for (String algorithm : algorithms)
+		{
+			final PrefixBasedOutsourcing test = new PrefixBasedOutsourcing(rootDirectory, PrefixBasedOutsourcing.ENCODING_PREFIX, algorithm);
+			test.outsource();
+
+			final List<String> queries    = queries(list(rootDirectory));
+			final List<ProofData> proofs  = new ArrayList<ProofData>();
+			for (String filename : queries)
+				proofs.add(test.search(test.query(filename)));
+
+			ProofData first = proofs.get(0);
+			byte[] mac      = first.getMac().clone();
+			mac[0] ^= 1;
+			final ProofData forged    = new ProofData(first.getResult(), first.getFilename(), mac);
+			final AtomicInteger wrong = new AtomicInteger(0);
+
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; t++)
+			{
+				threads[t] = new Thread()
+				{
+					public void run()
+					{
+						for (int round = 0; round < 20; round++)
+						{
+							for (int k = 0; k < queries.size(); k++)
+								if (test.verify(queries.get(k), proofs.get(k)) != 1)
+									wrong.incrementAndGet();
+							if (test.verify(queries.get(0), forged) == 1)
+								wrong.incrementAndGet();
+						}
+					}
+				};
+				threads[t].start();
+			}
+			try
+			{
+				for (Thread thread : threads)
+					thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				check(algorithm + ": wait for the threads", false);
+			}
+			check(algorithm + ": " + threads.length + " threads verifying at the same time", wrong.get() == 0);
+		}
+	}
+
+	private static void check(String name, boolean result)
+	{
+		checks++;
+		if (result == false)
+		{
+			failures++;
+			System.out.println("FAILED: " + name);
+		}
+	}
+
+	/**
+	 * It lists the files of the directory in lexicographic order.
+	 */
+	private static TreeSet<String> list(String directory)
+	{
+		return new TreeSet<String>(Arrays.asList(new DirectoryWalker(directory).list()));
+	}
+
+	/**
+	 * It tells whether a string is a prefix of some existing file; every file is a prefix of itself.
+	 */
+	private static boolean isPrefix(TreeSet<String> files, String prefix)
+	{
+		String next = files.ceiling(prefix);
+		return next != null && next.startsWith(prefix) == true;
+	}
+
+	/**
+	 * It gets the result which an honest cloud returns for a file: 1 if it exists, 2 if it is a prefix of some existing file, 3 otherwise.
+	 */
+	private static int expected(TreeSet<String> files, String filename)
+	{
+		if (files.contains(filename) == true)
+			return 1;
+		return (isPrefix(files, filename) == true) ? 2 : 3;
+	}
+
+	/**
+	 * It gets some existing files, some of their prefixes and some files different from all of them.
+	 */
+	private static List<String> queries(TreeSet<String> files)
+	{
+		List<String> result = new ArrayList<String>();
+		int step = Math.max(1, files.size() / 50);
+		int k    = 0;
+		for (String file : files)
+		{
+			if (k++ % step != 0)
+				continue;
+			result.add(file);
+			if (file.length() > 1)
+				result.add(file.substring(0, file.length() / 2));
+			result.add(file + "9z");
+			result.add(file.substring(0, file.length() - 1) + ((file.endsWith("z") == true) ? "y" : "z"));
+		}
+		result.add("zzzzzzzz");
+		result.add("0");
+		return result;
+	}
+
+	/**
+	 * It gets the keys of the prefix set by their definition: "p@" for every proper prefix p of an existing file which is not an existing file itself,
+	 * and "pc#" for every prefix p of an existing file, including the empty one and the file, and every character c of the alphabet
+	 * such that pc is not a prefix of any existing file.
+	 */
+	private static TreeSet<String> expectedPrefixSet(TreeSet<String> files)
+	{
+		TreeSet<String> result = new TreeSet<String>();
+		for (String file : files)
+		{
+			for (int i = 0; i <= file.length(); i++)
+			{
+				String prefix = file.substring(0, i);
+				if (i > 0 && i < file.length() && files.contains(prefix) == false)
+					result.add(prefix + PrefixBasedOutsourcing.SPECIAL_PREVIOUS);
+				for (int j = 0; j < ALPHABET.length(); j++)
+					if (isPrefix(files, prefix + ALPHABET.charAt(j)) == false)
+						result.add(prefix + ALPHABET.charAt(j) + PrefixBasedOutsourcing.SPECIAL_AFTER);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * It checks that the existing file set holds the files and the prefix set holds the keys of the definition.
+	 */
+	private static void checkSets(String mode, PrefixBasedOutsourcing test, TreeSet<String> files)
+	{
+		check(mode + ": the existing file set", test.getExistingFile().keySet().equals(files) == true);
+		check(mode + ": the prefix set", test.getPrefix().keySet().equals(expectedPrefixSet(files)) == true);
+	}
+
+	/**
+	 * It checks the proofs of single queries and their tampered copies.
+	 */
+	private static void checkSearches(String mode, PrefixBasedOutsourcing test, TreeSet<String> files)
+	{
+		List<String> queries   = queries(files);
+		List<ProofData> proofs = new ArrayList<ProofData>();
+
+		for (String filename : queries)
+		{
+			String query    = test.query(filename);
+			ProofData proof = test.search(query);
+			proofs.add(proof);
+			check(mode + ": " + filename, proof.getResult() == expected(files, filename) && test.verify(query, proof) == 1);
+			checkTampered(mode + ": " + filename, test, query, proof);
+		}
+
+		for (int k = 1; k < queries.size(); k++)
+		{
+			ProofData other = proofs.get(k - 1);
+			if (other.getResult() != expected(files, queries.get(k)))
+				check(mode + ": the proof of another query for " + queries.get(k), test.verify(queries.get(k), other) != 1);
+		}
+	}
+
+	/**
+	 * It checks that every kind of tampering with a proof is rejected.
+	 */
+	private static void checkTampered(String name, PrefixBasedOutsourcing test, String query, ProofData proof)
+	{
+		for (int result = 1; result <= 3; result++)
+			if (result != proof.getResult())
+				check(name + ": result changed to " + result, test.verify(query, new ProofData(result, proof.getFilename(), proof.getMac())) != 1);
+
+		byte[] mac = proof.getMac().clone();
+		mac[mac.length - 1] ^= 1;
+		check(name + ": changed MAC", test.verify(query, new ProofData(proof.getResult(), proof.getFilename(), mac)) != 1);
+
+		String filename = proof.getFilename();
+		if (filename.length() > 0)
+		{
+			char[] temp = filename.toCharArray();
+			temp[temp.length - 1] = (temp[temp.length - 1] == 'a') ? 'b' : 'a';
+			check(name + ": changed filename", test.verify(query, new ProofData(proof.getResult(), new String(temp), proof.getMac())) != 1);
+		}
+	}
+
+	/**
+	 * It adds files, some of them prefixes of existing files, and removes half of them again; every added or removed file must be found as such,
+	 * and a file cannot be added or removed twice. It keeps 'files' up to date.
+	 */
+	private static void update(String mode, PrefixBasedOutsourcing test, TreeSet<String> files)
+	{
+		List<String> added = new ArrayList<String>();
+		int k = 0;
+		for (String file : files)
+		{
+			if (k++ % 40 != 0)
+				continue;
+			added.add(file + "x");
+			if (file.length() > 1)
+				added.add(file.substring(0, file.length() / 2));
+		}
+		added.add("zzz");
+
+		for (String file : added)
+		{
+			boolean exists = files.contains(file);
+			check(mode + ": add " + file, test.addFile(file) == (exists == false));
+			files.add(file);
+			ProofData proof = test.search(test.query(file));
+			check(mode + ": added file " + file, proof.getResult() == 1 && test.verify(file, proof) == 1);
+		}
+		checkSearches(mode + ", after adding", test, files);
+
+		for (int i = 0; i < added.size(); i = i + 2)
+		{
+			String file = added.get(i);
+			check(mode + ": remove " + file, test.removeFile(file) == true);
+			check(mode + ": remove " + file + " again", test.removeFile(file) == false);
+			files.remove(file);
+			ProofData proof = test.search(test.query(file));
+			check(mode + ": removed file " + file, proof.getResult() == expected(files, file) && test.verify(file, proof) == 1);
+		}
+	}
+
+	/**
+	 * It gets the keys of the gap set by their definition: "a\0b" for every two neighbouring existing files a and b,
+	 * "\0f" for the first file f and "l\0" for the last file l.
+	 */
+	private static TreeSet<String> expectedGapSet(TreeSet<String> files)
+	{
+		TreeSet<String> result = new TreeSet<String>();
+		String before = "";
+		for (String file : files)
+		{
+			result.add(before + PrefixBasedOutsourcing.SPECIAL_GAP + file);
+			before = file;
+		}
+		result.add(before + PrefixBasedOutsourcing.SPECIAL_GAP);
+		return result;
+	}
+
+	/**
+	 * It checks that the existing file set holds the files and the gap set holds the keys of the definition.
+	 */
+	private static void checkGaps(String mode, PrefixBasedOutsourcing test, TreeSet<String> files)
+	{
+		check(mode + ": the existing file set", test.getExistingFile().keySet().equals(files) == true);
+		check(mode + ": the gap set", test.getPrefix().keySet().equals(expectedGapSet(files)) == true);
+	}
+
+	/**
+	 * It gets the key which proves the result of a file: the file itself if it exists; in the range encoding the gap around the file;
+	 * in the prefix encoding "filename@" for a prefix of some existing file, otherwise "filename[0, i + 1)#" where filename[0, i)
+	 * is the longest prefix shared with some existing file.
+	 */
+	private static String expectedKey(TreeSet<String> files, String filename, int encoding)
+	{
+		if (files.contains(filename) == true)
+			return filename;
+		if (encoding == PrefixBasedOutsourcing.ENCODING_RANGE)
+		{
+			String before = files.lower(filename);
+			String after  = files.higher(filename);
+			return ((before == null) ? "" : before) + PrefixBasedOutsourcing.SPECIAL_GAP + ((after == null) ? "" : after);
+		}
+
+		int i = 0;
+		while (i < filename.length() && isPrefix(files, filename.substring(0, i + 1)) == true)
+			i++;
+		return (i == filename.length()) ? filename + PrefixBasedOutsourcing.SPECIAL_PREVIOUS : filename.substring(0, i + 1) + PrefixBasedOutsourcing.SPECIAL_AFTER;
+	}
+
+	private static void checkKeys(String mode, PrefixBasedOutsourcing test, TreeSet<String> files, int encoding)
+	{
+		for (String filename : queries(files))
+		{
+			ProofData proof = test.search(test.query(filename));
+			check(mode + ": the key of " + filename, expectedKey(files, filename, encoding).equals(proof.getFilename()) == true);
+		}
+	}
+
+	/**
+	 * It creates a temporary directory holding empty files with the given relative paths; it is deleted when the program exits.
+	 * @return The directory; null if it cannot be created.
+	 */
+	private static String createDirectory(String[] names)
+	{
+		try
+		{
+			File root = File.createTempFile("files", "");
+			root.delete();
+			root.mkdir();
+			root.deleteOnExit();
+			for (String name : names)
+			{
+				File file = new File(root, name);
+				List<File> parents = new ArrayList<File>();
+				for (File parent = file.getParentFile(); parent.equals(root) == false; parent = parent.getParentFile())
+					parents.add(0, parent);
+				for (File parent : parents)
+					if (parent.mkdir() == true)
+						parent.deleteOnExit();  // files registered later are deleted before it
+				file.createNewFile();
+				file.deleteOnExit();
+			}
+			return root.getPath();
+		}
+		catch (Exception e)
+		{
+			check("create a temporary directory", false);
+			return null;
+		}
+	}
+
+	/**
+	 * It checks that the sets are searched in the same way after being stored into an index file and mapped.
+	 */
+	private static void checkStoreOpen(String mode, PrefixBasedOutsourcing test, TreeSet<String> files)
+	{
+		File file = null;
+		try
+		{
+			file = File.createTempFile("prefix", ".idx");
+		}
+		catch (Exception e)
+		{
+			check(mode + ": create a temporary file", false);
+			return;
+		}
+		file.deleteOnExit();
+
+		check(mode + ": store", test.store(file.getPath()) == true);
+		check(mode + ": open", test.open(file.getPath()) == true);
+		check(mode + ": mapped", test.getMapped() != null);
+		checkSearches(mode + ", index file", test, files);
+		check(mode + ": no update of an index file", test.addFile("zzzz") == false);
+	}
+
+	/**
+	 * It checks that a batch gets the proofs of its single queries in its own order, in lexicographic and in shuffled order,
+	 * that they are verified serially and in parallel, and that a tampered proof in the batch is rejected.
+	 */
+	private static void checkBatch(String mode, PrefixBasedOutsourcing test, TreeSet<String> files)
+	{
+		List<String> queries = queries(files);
+		for (int order = 0; order < 2; order++)
+		{
+			if (order == 1)
+				Collections.shuffle(queries, new Random(1));
+			String name = mode + ((order == 0) ? "" : ", shuffled");
+
+			List<ProofData> batch = test.search(queries);
+			check(name + ": one proof per query", batch.size() == queries.size());
+			for (int k = 0; k < queries.size(); k++)
+			{
+				ProofData single = test.search(test.query(queries.get(k)));
+				check(name + ": " + queries.get(k), batch.get(k).getResult() == single.getResult()
+						&& batch.get(k).getFilename().equals(single.getFilename()) == true && Arrays.equals(batch.get(k).getMac(), single.getMac()) == true);
+			}
+
+			int[] serial = test.verify(queries, batch);
+			for (int parallelism = 1; parallelism <= 4; parallelism = parallelism * 4)
+			{
+				int[] result = test.verify(queries, batch, parallelism);
+				for (int k = 0; k < queries.size(); k++)
+					check(name + ": batch of " + parallelism + ", " + queries.get(k), batch.get(k).getResult() == expected(files, queries.get(k)) && result[k] == 1 && serial[k] == 1);
+			}
+
+			List<ProofData> tampered = new ArrayList<ProofData>(batch);
+			int last        = batch.size() - 1;
+			ProofData proof = batch.get(last);
+			byte[] mac      = proof.getMac().clone();
+			mac[0] ^= 1;
+			tampered.set(last, new ProofData(proof.getResult(), proof.getFilename(), mac));
+			int[] result = test.verify(queries, tampered, 4);
+			check(name + ": batch with a changed MAC", result[last] != 1 && result[0] == 1);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package fchen;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.Map.Entry;
 import java.security.*;
 import javax.crypto.*;
@@ -23,6 +24,8 @@ public class PrefixBasedOutsourcing
     	private String rootDirectory                 = null;
 	private TreeMap<String, byte[]> existingFile = null;
 	private TreeMap<String, byte[]> prefix       = null;
+	private PrefixTrie index                     = null;	// compact form of the two sets above; see compact()
+	private PrefixIndexFile mapped               = null;	// memory-mapped form of the two sets above; see open()
 	/**
 	 * SPECIAL_PREVIOUS = "@"; It is a special symbol, denoting that a queried filename is a prefix of some existing file.
 	 * SPECIAL_AFTER    = "#"; It is a special symbol, denoting that a queried filename is different from all existing files.
@@ -30,12 +33,29 @@ public class PrefixBasedOutsourcing
 	 */
 	public final static String SPECIAL_PREVIOUS  = "@";
 	public final static String SPECIAL_AFTER     = "#";
+	/**
+	 * SPECIAL_GAP      = "\u0000"; It separates two neighbouring existing filenames in the range encoding, e.g. "abc\u0000abd1".
+	 *                         An empty filename on the left (right) side denotes the gap before the first (after the last) existing file.
+	 *                         No filename contains it, and it is smaller than any other character.
+	 */
+	public final static String SPECIAL_GAP       = "\u0000";
+	
+	/**
+	 * ENCODING_PREFIX = 0; The prefix set holds the '@' and '#' entries of all prefixes of the existing files, as described in our paper.
+	 * ENCODING_RANGE  = 1; The prefix set holds one entry for every gap between two neighbouring existing filenames.
+	 *                      A non-existing file is proven by the gap containing it. It needs O(n) entries instead of O(|alphabet| * n * L),
+	 *                      and it does not depend on the alphabet.
+	 */
+	public final static int ENCODING_PREFIX      = 0;
+	public final static int ENCODING_RANGE       = 1;
+	private int encoding                         = ENCODING_PREFIX;
 	
 	private byte[] seed                          = null;
 	private SecureRandom sr 					 = null;
-	private KeyGenerator kg 					 = null;
 	private SecretKey sk 						 = null;
-	private Mac mac 							 = null;
+	private TagFunction mac 					 = null;	// HMAC-SHA256 by default; see TagFunction
+	private ThreadLocal<TagFunction> macs        = null;	// a copy of 'mac' per thread, for the verifiers and the workers of outsource(int)
+	private static ForkJoinPool pool             = null;	// the workers of outsource(int) and verify(List, List, int); see pool()
 	
 	private String alphabet 					 = "abcdefghijklmnopqrstuvwxyz0123456789.";	// all possible characters in a filename
 	private int flag 							 = 1;	// if flag == 0, MAC = null; else real MAC. This variable is used for test / benchmark purpose.
@@ -47,8 +67,30 @@ public class PrefixBasedOutsourcing
 	 * @param rootDirectory The directory for all the files to be outsourced.	
 	 */
 	public PrefixBasedOutsourcing(String rootDirectory)
+	{
+		this(rootDirectory, ENCODING_PREFIX, TagFunction.HMAC_SHA256);
+	}
+	
+	/**
+	 * It constructs an object dealing with all files in a directory, with a given encoding of the non-existing files.
+	 * @param rootDirectory The directory for all the files to be outsourced.
+	 * @param encoding      ENCODING_PREFIX or ENCODING_RANGE.
+	 */
+	public PrefixBasedOutsourcing(String rootDirectory, int encoding)
+	{
+		this(rootDirectory, encoding, TagFunction.HMAC_SHA256);
+	}
+	
+	/**
+	 * It constructs an object dealing with all files in a directory, with a given encoding of the non-existing files and a given MAC algorithm.
+	 * @param rootDirectory The directory for all the files to be outsourced.
+	 * @param encoding      ENCODING_PREFIX or ENCODING_RANGE.
+	 * @param tagAlgorithm  TagFunction.HMAC_SHA256 or TagFunction.AES_CMAC.
+	 */
+	public PrefixBasedOutsourcing(String rootDirectory, int encoding, String tagAlgorithm)
 	{
 		this.rootDirectory = rootDirectory;
+		this.encoding      = encoding;
 		this.existingFile  = new TreeMap<String, byte[]>();
 		this.prefix        = new TreeMap<String, byte[]>();
 		
@@ -61,11 +103,9 @@ public class PrefixBasedOutsourcing
 		try 
 		{
 			this.sr  = new SecureRandom(this.seed);
-			this.kg  = KeyGenerator.getInstance("HmacSHA256");
-			this.kg.init(this.sr);
-			this.sk  = kg.generateKey();
-			this.mac = Mac.getInstance("HmacSHA256");
-			this.mac.init(sk);
+			this.sk  = TagFunction.generateKey(tagAlgorithm, this.sr);
+			this.mac = TagFunction.getInstance(tagAlgorithm, this.sk);
+			this.macs = TagFunction.perThread(this.mac);
 		} 
 		catch (Exception e)
 		{
@@ -78,6 +118,17 @@ public class PrefixBasedOutsourcing
 	 */
 	public void print() 
 	{
+		if (this.index != null)
+		{
+			System.out.println("the sets are compacted into a radix trie with " + this.index.getNodeCount() + " nodes and " + this.index.getMacCount() + " MACs.");
+			return;
+		}
+		if (this.mapped != null)
+		{
+			System.out.println("the sets are mapped from an index file with " + this.mapped.getExistingFileCount() + " existing files and " + this.mapped.getPrefixCount() + " prefixes.");
+			return;
+		}
+		
 		System.out.println("existing files:\n");
 		Iterator<Entry<String, byte[]>> existing = this.existingFile.entrySet().iterator();
 		while (existing.hasNext()) 
@@ -93,7 +144,7 @@ public class PrefixBasedOutsourcing
 		while (prefix.hasNext()) 
 		{
 			Entry<String, byte[]> entry = prefix.next();
-			String key                  = entry.getKey();
+			String key                  = entry.getKey().replace(SPECIAL_GAP, " .. ");
 			byte[] macValue             = entry.getValue();
 			System.out.println(key + "  -  " + bytes2HexString(macValue));
 		}
@@ -104,7 +155,241 @@ public class PrefixBasedOutsourcing
 	 */
 	public void outsource()
 	{
-		constructPrefix();	 
+		constructPrefix(1);	 
+	}
+	
+	/**
+	 * It helps the client outsource all the possible files to the cloud using several cores.
+	 * The sorted filenames are split across a fork-join pool, which is kept for the next call; every worker computes the MACs of its part
+	 * with its own MAC instance, the sorted partial sets are merged pairwise, and the sets are filled once at the end.
+	 * The result is the same as the one of outsource().
+	 * @param parallelism The number of workers, e.g. Runtime.getRuntime().availableProcessors().
+	 */
+	public void outsource(int parallelism)
+	{
+		constructPrefix(parallelism);
+	}
+	
+	/**
+	 * It adds a new file to the outsourced sets without outsourcing the whole directory again.
+	 * Only the entries of the prefixes of the new filename change: the first new prefix loses its '#' entry,
+	 * and every new prefix gets its '@' entry and its '#' entries. This costs O(L * |alphabet|) MACs.
+	 * The sets must not have been compacted.
+	 * @param filename The new file.
+	 * @return true if the file has been added; false if it already exists or the sets are compacted or mapped.
+	 */
+	public boolean addFile(String filename)
+	{
+		if (this.index != null || this.mapped != null)
+		{
+			System.out.println("the sets are compacted or mapped; files cannot be added any more.");
+			return false;
+		}
+		if (this.existingFile.containsKey(filename) == true)
+			return false;
+		
+		if (this.encoding == ENCODING_RANGE)
+		{
+			// split the gap containing the new file
+			String gap = this.prefix.floorKey(filename);
+			this.prefix.remove(gap);
+			int separator = gap.indexOf(SPECIAL_GAP);
+			String before = gap.substring(0, separator) + SPECIAL_GAP + filename;
+			String after  = filename + SPECIAL_GAP + gap.substring(separator + 1);
+			this.prefix.put(before, generateMAC(before));
+			this.prefix.put(after, generateMAC(after));
+			this.existingFile.put(filename, generateMAC(filename));
+			return true;
+		}
+		
+		int shared = sharedPrefixLength(filename);   // the longest prefix of the new file which is already a prefix of some file
+		
+		if (shared == filename.length())	// the new file was a prefix of some existing file
+			this.prefix.remove(filename + SPECIAL_PREVIOUS);
+		else
+		{
+			if (shared >= 0 && this.alphabet.indexOf(filename.charAt(shared)) >= 0)
+				this.prefix.remove(filename.substring(0, shared + 1) + SPECIAL_AFTER);
+			
+			for (int i = shared + 1; i <= filename.length(); i++)	// pay attention to the loop condition
+			{
+				String temp = filename.substring(0, i);
+				if (i > 0 && i < filename.length())
+				{
+					String prefixKey = temp + SPECIAL_PREVIOUS;
+					this.prefix.put(prefixKey, generateMAC(prefixKey));
+				}
+				
+				for (int j = 0; j < this.alphabet.length(); j++)
+				{
+					if (i < filename.length() && this.alphabet.charAt(j) == filename.charAt(i))
+						continue;
+					String prefixKey = temp + this.alphabet.charAt(j) + SPECIAL_AFTER;
+					this.prefix.put(prefixKey, generateMAC(prefixKey));
+				}
+			}
+		}
+		
+		this.existingFile.put(filename, generateMAC(filename));
+		return true;
+	}
+	
+	/**
+	 * It removes a file from the outsourced sets without outsourcing the whole directory again.
+	 * Only the entries of the prefixes of the removed filename change: the prefixes which are not shared with any remaining file
+	 * lose their '@' and '#' entries, and the longest shared prefix gets a '#' entry for the character it loses.
+	 * This needs O(L * |alphabet|) map operations and at most one MAC.
+	 * The sets must not have been compacted.
+	 * @param filename The file to be removed.
+	 * @return true if the file has been removed; false if it does not exist or the sets are compacted or mapped.
+	 */
+	public boolean removeFile(String filename)
+	{
+		if (this.index != null || this.mapped != null)
+		{
+			System.out.println("the sets are compacted or mapped; files cannot be removed any more.");
+			return false;
+		}
+		if (this.existingFile.remove(filename) == null)
+			return false;
+		
+		if (this.encoding == ENCODING_RANGE)
+		{
+			// join the two gaps around the removed file
+			String lower  = this.existingFile.lowerKey(filename);
+			String higher = this.existingFile.higherKey(filename);
+			lower  = (lower == null) ? "" : lower;
+			higher = (higher == null) ? "" : higher;
+			this.prefix.remove(lower + SPECIAL_GAP + filename);
+			this.prefix.remove(filename + SPECIAL_GAP + higher);
+			String gap = lower + SPECIAL_GAP + higher;
+			this.prefix.put(gap, generateMAC(gap));
+			return true;
+		}
+		
+		int shared = sharedPrefixLength(filename);   // the longest prefix of the removed file which is still a prefix of some file
+		
+		if (shared == filename.length())	// the removed file is a prefix of some remaining file
+		{
+			String prefixKey = filename + SPECIAL_PREVIOUS;
+			this.prefix.put(prefixKey, generateMAC(prefixKey));
+			return true;
+		}
+		
+		for (int i = shared + 1; i <= filename.length(); i++)	// pay attention to the loop condition
+		{
+			String temp = filename.substring(0, i);
+			if (i > 0 && i < filename.length())
+				this.prefix.remove(temp + SPECIAL_PREVIOUS);
+			
+			for (int j = 0; j < this.alphabet.length(); j++)
+				this.prefix.remove(temp + this.alphabet.charAt(j) + SPECIAL_AFTER);
+		}
+		
+		if (shared >= 0 && this.alphabet.indexOf(filename.charAt(shared)) >= 0)
+		{
+			String prefixKey = filename.substring(0, shared + 1) + SPECIAL_AFTER;
+			this.prefix.put(prefixKey, generateMAC(prefixKey));
+		}
+		return true;
+	}
+	
+	/**
+	 * It computes the length of the longest prefix of a filename which is also a prefix of some other existing file.
+	 * It is enough to look at the two neighbours of the filename in the sorted existing file set.
+	 * @param filename The filename.
+	 * @return The length of the prefix; -1 if there is no other existing file, i.e. not even the empty prefix is shared.
+	 */
+	private int sharedPrefixLength(String filename)
+	{
+		String lower  = this.existingFile.lowerKey(filename);
+		String higher = this.existingFile.higherKey(filename);
+		
+		int result = -1;
+		if (lower != null)
+			result = Math.max(result, commonPrefixLength(lower, filename));
+		if (higher != null)
+			result = Math.max(result, commonPrefixLength(higher, filename));
+		return result;
+	}
+	
+	/**
+	 * It compacts the existing file set and the prefix set into a radix trie and releases the two 'TreeMap's.
+	 * The shared prefixes are stored only once and the MACs are kept in packed byte arrays, so the cloud needs much less memory.
+	 * Afterwards, search() takes one walk down the trie; print() only reports the size of the trie, and the two sets are no longer available.
+	 * @see PrefixTrie
+	 */
+	public void compact()
+	{
+		if (this.encoding == ENCODING_RANGE)
+		{
+			System.out.println("the range encoding cannot be compacted into a radix trie.");
+			return;
+		}
+		if (this.existingFile == null)
+		{
+			System.out.println("the sets are already compacted or mapped.");
+			return;
+		}
+		
+		this.index        = new PrefixTrie(this.existingFile, this.prefix, this.alphabet);
+		this.existingFile = null;
+		this.prefix       = null;
+	}
+	
+	/**
+	 * It writes the existing file set and the prefix set into an index file, so that the cloud can reopen them with open()
+	 * after a restart instead of running outsource() again. The sets must not have been compacted or mapped.
+	 * @param path The index file.
+	 * @return true if the index file has been written.
+	 * @see PrefixIndexFile
+	 */
+	public boolean store(String path)
+	{
+		if (this.existingFile == null)
+		{
+			System.out.println("the sets are compacted or mapped; they cannot be stored any more.");
+			return false;
+		}
+		
+		try
+		{
+			PrefixIndexFile.write(path, this.existingFile, this.prefix, this.encoding);
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error occured when writing the index file.\n" + e.toString());
+			return false;
+		}
+	}
+	
+	/**
+	 * It maps an index file written by store() and releases the two 'TreeMap's; search() then runs in place on the mapped file,
+	 * so the heap of the cloud stays flat however large the sets are. The encoding is taken from the file.
+	 * Afterwards, the sets can be neither changed nor printed.
+	 * @param path The index file.
+	 * @return true if the index file has been mapped.
+	 */
+	public boolean open(String path)
+	{
+		try
+		{
+			PrefixIndexFile temp = new PrefixIndexFile(path);
+			if (this.mapped != null)
+				this.mapped.close();
+			this.mapped       = temp;
+			this.encoding     = temp.getEncoding();
+			this.index        = null;
+			this.existingFile = null;
+			this.prefix       = null;
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error occured when mapping the index file.\n" + e.toString());
+			return false;
+		}
 	}
 
 	/**
@@ -121,6 +406,8 @@ public class PrefixBasedOutsourcing
 
 	/**
 	 * It helps the cloud search a filename which is queried by the client.
+	 * Misses are answered with ordered lookups on the prefix set instead of probing every "prefix + #", and the proof reuses the
+	 * key stored in the set, so no intermediate strings are built. Only the '@' case builds its key.
 	 * @param filename The file to be queried.
 	 * @return A proof data object which has three variables: an integer indicator, a string and a byte array. The second is the query filename and the third is the MAC of the filename.
 	 *         The first means as follows:
@@ -131,49 +418,233 @@ public class PrefixBasedOutsourcing
 	 */
 	public ProofData search(String filename)
 	{
-		int result = 0;	// search failed, i.e. it is not in existing file set, nor the prefix set; this should not occur if the implementation and the algorithm is correct.
-		byte[] mac  = null;
-		if (this.existingFile.containsKey(filename) == true)  // the file does exist.
+		if (this.index != null)
+			return this.index.search(filename);
+		if (this.mapped != null)
+			return this.mapped.search(filename);
+		
+		byte[] mac = this.existingFile.get(filename);
+		if (mac != null)  // the file does exist.
+			return new ProofData(1, filename, mac);
+		
+		Entry<String, byte[]> floor = this.prefix.floorEntry(filename);
+		if (this.encoding == ENCODING_RANGE || (floor != null && isAfterKey(floor.getKey(), filename) == true))
+			return searchAround(filename, floor, null);  // the floor proves the result
+		return searchAround(filename, floor, this.prefix.ceilingEntry(filename));
+	}
+	
+	/**
+	 * It finds the proof of a file which is not an existing file from its neighbours in the prefix set, or in the gap set in the range encoding.
+	 * @param filename The file to be queried.
+	 * @param floor    The greatest key not greater than the file.
+	 * @param ceiling  The least key not less than the file; it is only needed if the floor does not prove the result.
+	 * @return A proof data object; see search().
+	 */
+	private ProofData searchAround(String filename, Entry<String, byte[]> floor, Entry<String, byte[]> ceiling)
+	{
+		if (this.encoding == ENCODING_RANGE)
 		{
-			result = 1;
-			mac  = this.existingFile.get(filename);
+			// the gap containing the file starts at its predecessor; since SPECIAL_GAP is the smallest character, it is the floor of the file.
+			if (floor == null)
+				return new ProofData(0, filename, null);
+			String key = floor.getKey();
+			int result = (key.startsWith(filename, key.indexOf(SPECIAL_GAP) + 1) == true) ? 2 : 3;
+			return new ProofData(result, key, floor.getValue());
 		}
-		else
+		
+		// The only '#' entry matching the file is "filename[0, i + 1) + #", where filename[0, i) is the longest prefix shared with some existing file.
+		// If the file goes on behind it, no other key lies between that entry and the file, so the entry is the floor of the file.
+		if (floor != null && isAfterKey(floor.getKey(), filename) == true)  // the file is different from all existing files.
+			return new ProofData(3, floor.getKey(), floor.getValue());
+		
+		// If the file ends right there, the entry is "filename + #", which is the ceiling of the file. 
+		// Otherwise a ceiling starting with the file means that the file is a prefix of some existing file.
+		if (ceiling != null && isAfterKey(ceiling.getKey(), filename) == true)
+			return new ProofData(3, ceiling.getKey(), ceiling.getValue());
+		if (ceiling != null && ceiling.getKey().startsWith(filename) == true)
 		{
 			String prefixBefore = filename + SPECIAL_PREVIOUS;
-			if (this.prefix.containsKey(prefixBefore) == true) // the file is a prefix of some existing file.
+			byte[] mac = this.prefix.get(prefixBefore);
+			if (mac != null)  // the file is a prefix of some existing file.
+				return new ProofData(2, prefixBefore, mac);
+		}
+		
+		return searchByProbing(filename);  // e.g. characters smaller than '#' in the filename
+	}
+	
+	/**
+	 * It helps the cloud search a batch of filenames queried by a client, e.g. all names of a directory to be refreshed.
+	 * The filenames are searched in lexicographic order, through a sorted permutation of the batch, and the proofs are put back in the order of the batch.
+	 * With a radix trie (see compact()), the walk of a filename then resumes where the walk of the previous filename left their shared prefix,
+	 * so every common prefix is walked only once. With the sets, a filename lying in front of the ceiling of the previous miss has the same floor
+	 * and ceiling, so the misses in one gap of the prefix set, e.g. the files of a directory which does not exist, need no lookups but the first.
+	 * @param filenames The files to be queried.
+	 * @return The proof data objects, in the order of the filenames; see search().
+	 */
+	public List<ProofData> search(List<String> filenames)
+	{
+		final String[] files = filenames.toArray(new String[filenames.size()]);
+		Integer[] order      = new Integer[files.length];
+		for (int k = 0; k < order.length; k++)
+			order[k] = k;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
 			{
-				result = 2;
-				mac  = this.prefix.get(prefixBefore);
-				filename = prefixBefore;
+				return files[a].compareTo(files[b]);
+			}
+		});
+		
+		ProofData[] result = new ProofData[files.length];
+		if (this.index != null)
+		{
+			String[] sorted = new String[files.length];
+			for (int k = 0; k < order.length; k++)
+				sorted[k] = files[order[k]];
+			ProofData[] proofs = this.index.search(sorted);
+			for (int k = 0; k < order.length; k++)
+				result[order[k]] = proofs[k];
+			return Arrays.asList(result);
+		}
+		
+		boolean looked                = false;	// whether 'floor' and 'ceiling' belong to a previous filename
+		Entry<String, byte[]> floor   = null;
+		Entry<String, byte[]> ceiling = null;
+		for (int k = 0; k < order.length; k++)
+		{
+			String file = files[order[k]];
+			if (this.mapped != null)
+			{
+				result[order[k]] = this.mapped.search(file);
+				continue;
+			}
+			
+			byte[] mac = this.existingFile.get(file);
+			if (mac != null)  // the file does exist.
+			{
+				result[order[k]] = new ProofData(1, file, mac);
+				continue;
 			}
-			else				
-				for (int i = 0; i < filename.length(); i++)
-				{
-					String prefixAfter  = filename.substring(0, i + 1) + SPECIAL_AFTER;
-					
-					if (this.prefix.containsKey(prefixAfter) == true) // the file is different from all existing files.
-					{
-						result = 3;
-						mac  = this.prefix.get(prefixAfter);
-						filename = prefixAfter;
-						break;
-					}				
-				}
 			
+			// no key lies between the previous filename and its ceiling, so a file in front of that ceiling has the same neighbours.
+			if (looked == false || (ceiling != null && file.compareTo(ceiling.getKey()) >= 0))
+			{
+				floor   = this.prefix.floorEntry(file);
+				ceiling = this.prefix.ceilingEntry(file);
+				looked  = true;
+			}
+			result[order[k]] = searchAround(file, floor, ceiling);
+		}
+		return Arrays.asList(result);
+	}
+	
+	/**
+	 * It searches a non-existing filename by probing "filename + @" and then "filename[0, i + 1) + #" for all i.
+	 * This is the original search of our paper; search() falls back to it when the ordered lookups do not apply.
+	 * @param filename The file to be queried.
+	 * @return A proof data object; see search().
+	 */
+	private ProofData searchByProbing(String filename)
+	{
+		int result = 0;	// search failed, i.e. it is not in existing file set, nor the prefix set; this should not occur if the implementation and the algorithm is correct.
+		byte[] mac  = null;
+		
+		String prefixBefore = filename + SPECIAL_PREVIOUS;
+		if (this.prefix.containsKey(prefixBefore) == true) // the file is a prefix of some existing file.
+		{
+			result = 2;
+			mac  = this.prefix.get(prefixBefore);
+			filename = prefixBefore;
 		}
+		else				
+			for (int i = 0; i < filename.length(); i++)
+			{
+				String prefixAfter  = filename.substring(0, i + 1) + SPECIAL_AFTER;
+				
+				if (this.prefix.containsKey(prefixAfter) == true) // the file is different from all existing files.
+				{
+					result = 3;
+					mac  = this.prefix.get(prefixAfter);
+					filename = prefixAfter;
+					break;
+				}				
+			}
 		
 		return new ProofData(result, filename, mac);
 	}
 	
+	/**
+	 * It checks whether a key of the prefix set has the form "filename[0, i + 1) + #" for some i, without building any string.
+	 * @param key      The key.
+	 * @param filename The queried filename.
+	 * @return If yes, it returns true; otherwise, false.
+	 */
+	private static boolean isAfterKey(String key, String filename)
+	{
+		int length = key.length() - 1;
+		return length > 0 && length <= filename.length() && key.charAt(length) == SPECIAL_AFTER.charAt(0) && filename.regionMatches(0, key, 0, length);
+	}
+	
 	/**
 	 * It helps a client verify whether the returned result from the cloud is correct. 
+	 * It computes the MACs with the copy of the tag function of the calling thread, so it can be called from many threads at once.
 	 * @param filename The queried file.
 	 * @param proof    The proof object that the cloud returns.
 	 * @return An integer indicating whether search is successful and whether the cloud cheats.
 	 *        '0' denotes search failure; '1' denotes a verifiable search; '2' denotes the cloud cheats.
 	 */
 	public int verify(String filename, ProofData proof)
+	{
+		return verify(this.macs.get(), filename, proof);
+	}
+	
+	/**
+	 * It helps a client verify a batch of proofs returned by the cloud, using all cores.
+	 * @param filenames The queried files.
+	 * @param proofs    The proof objects that the cloud returns, in the order of the files.
+	 * @return The results of verify() for all files, in their order; null if the two lists do not match.
+	 */
+	public int[] verify(List<String> filenames, List<ProofData> proofs)
+	{
+		return verify(filenames, proofs, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * It helps a client verify a batch of proofs returned by the cloud using several cores.
+	 * The proofs are split across a fork-join pool and every worker computes its MACs with the MAC instance of its thread.
+	 * @param filenames   The queried files.
+	 * @param proofs      The proof objects that the cloud returns, in the order of the files.
+	 * @param parallelism The number of workers; if it is 1, the proofs are verified one after another.
+	 * @return The results of verify() for all files, in their order; null if the two lists do not match.
+	 */
+	public int[] verify(List<String> filenames, List<ProofData> proofs, int parallelism)
+	{
+		if (filenames.size() != proofs.size())
+		{
+			System.out.println("the numbers of files and proofs are different.");
+			return null;
+		}
+		
+		String[] files     = filenames.toArray(new String[filenames.size()]);
+		ProofData[] proof  = proofs.toArray(new ProofData[proofs.size()]);
+		int[] result       = new int[files.length];
+		if (parallelism <= 1)
+		{
+			TagFunction mac = this.macs.get();
+			for (int k = 0; k < files.length; k++)
+				result[k] = verify(mac, files[k], proof[k]);
+			return result;
+		}
+		
+		int grain = Math.max(1, files.length / (4 * parallelism));	// a few tasks per worker to balance the load
+		pool(parallelism).invoke(new VerifyTask(files, proof, result, 0, files.length, grain));
+		return result;
+	}
+	
+	/**
+	 * It verifies a proof with a given MAC instance; see verify(String, ProofData).
+	 */
+	private int verify(TagFunction macInstance, String filename, ProofData proof)
 	{
 		int result = proof.getResult();
 		byte[] mac = proof.getMac();
@@ -185,16 +656,33 @@ public class PrefixBasedOutsourcing
 		}			
 		else if (result == 1)  // the query file exists.
 		{
-			byte[] expected = generateMAC(filename);
+			byte[] expected = generateMAC(macInstance, filename);
 			if (Arrays.equals(expected, mac) == true && filename.equals(proof.getFilename()))
 				return 1;  // The cloud is honest.
 			else
 				return 2;  // The cloud cheats.
 		}
+		else if (this.encoding == ENCODING_RANGE)  // the query file lies in a gap between two neighbouring existing files.
+		{
+			String gap    = proof.getFilename();
+			int separator = gap.indexOf(SPECIAL_GAP);
+			if (separator < 0)
+				return 2;
+			String before = gap.substring(0, separator);
+			String after  = gap.substring(separator + 1);
+			
+			byte[] expected = generateMAC(macInstance, gap);
+			boolean inside  = (before.length() == 0 || before.compareTo(filename) < 0) && (after.length() == 0 || filename.compareTo(after) < 0);
+			boolean isPrefix = after.startsWith(filename) && filename.length() > 0;  // the successor is the only file which can start with the query file
+			if (Arrays.equals(expected, mac) == true && inside == true && isPrefix == (result == 2))
+				return 1;  // The cloud is honest.
+			else
+				return 2;  // The cloud cheats.
+		}
 		else if (result == 2)  // the query file is a prefix of some existing file.
 		{
 			filename = filename + SPECIAL_PREVIOUS;
-			byte[] expected = generateMAC(filename);
+			byte[] expected = generateMAC(macInstance, filename);
 			if (Arrays.equals(expected, mac) == true && filename.equals(proof.getFilename()))
 				return 1;  // The cloud is honest.
 			else
@@ -203,8 +691,10 @@ public class PrefixBasedOutsourcing
 		else // the query file different from all existing files.
 		{
 			String temp = proof.getFilename();
+			if (temp.endsWith(SPECIAL_AFTER) == false)  // e.g. the MAC of an existing file or of a '@' entry
+				return 2;
 			temp = temp.substring(0, temp.length() - 1);
-			byte[] expected = generateMAC(proof.getFilename());
+			byte[] expected = generateMAC(macInstance, proof.getFilename());
 			if (Arrays.equals(expected, mac) == true && filename.startsWith(temp))
 				return 1;  // The cloud is honest.
 			else
@@ -246,88 +736,216 @@ public class PrefixBasedOutsourcing
 		while (existing.hasNext() && temp <= index) 
 			 entry = existing.next();
 		String filename = entry.getKey();
+		if (this.encoding == ENCODING_RANGE)	// a filename just behind the lower end of the gap
+			return filename.substring(0, filename.indexOf(SPECIAL_GAP)) + SPECIAL_AFTER;
 		return filename.substring(0, filename.length() - 1);		
 	}
 	
 	/**
-	 * It constructs two sets denoting all possible files. One includes all existing files in the given directory.
-	 * The other contains all other possible filenames using the wildcard representation of a string.
+	 * It constructs two sets denoting all possible files. One includes all existing files in the given directory tree,
+	 * named by their relative paths (see DirectoryWalker). The other contains all other possible filenames using the wildcard representation of a string.
+	 * The filenames are sorted once. All prefixes of the existing files then form a tree which is visited in order:
+	 * a prefix is opened when the first filename starting with it is met and closed when its neighbouring filename
+	 * no longer starts with it. This avoids scanning all files for every prefix and every character.
+	 * @param parallelism The number of workers; if it is larger than 1, the sorted filenames are split across a fork-join pool.
 	 */
-	private void constructPrefix()
+	private void constructPrefix(int parallelism)
 	{
-		File directory = new File(this.rootDirectory);
-		String[] allFiles = directory.list();
+		String[] allFiles = new DirectoryWalker(this.rootDirectory).list();
 		
-		for (String file : allFiles)
+		Arrays.sort(allFiles);
+		
+		// common[k] is the length of the longest common prefix of the k-th file and its predecessor; -1 for the first file.
+		int[] common = new int[allFiles.length];
+		for (int k = 0; k < allFiles.length; k++)
+			common[k] = (k == 0) ? -1 : commonPrefixLength(allFiles[k - 1], allFiles[k]);
+		
+		if (parallelism <= 1)
+		{
+			constructPrefix(allFiles, common, 0, allFiles.length, this.mac, this.existingFile, this.prefix);
+			return;
+		}
+		
+		int grain = Math.max(1, allFiles.length / (4 * parallelism));	// a few tasks per worker to balance the load
+		PrefixTask task = new PrefixTask(allFiles, common, 0, allFiles.length, grain);
+		pool(parallelism).invoke(task);
+		task.existingFile.putInto(this.existingFile);
+		task.prefix.putInto(this.prefix);
+	}
+	
+	/**
+	 * It gets the fork-join pool with the given number of workers. The pool is kept for the later calls of outsource(int) and verify(List, List, int),
+	 * so that its threads and the MAC instances which they keep in 'macs' are reused; a call with another number of workers replaces it.
+	 * @param parallelism The number of workers.
+	 * @return The pool.
+	 */
+	private static synchronized ForkJoinPool pool(int parallelism)
+	{
+		if (pool == null || pool.getParallelism() != parallelism)
 		{
-			// first, handle the wildcard case. Note that 'prefix' denotes a string not existing in the current files. 
-			// e.g. existing files {abc, dd}; the following program tries to find {b#, c#, e#, ...}.
-			for (int i = 0; i <= file.length(); i++)      // pay attention to the loop condition
+			if (pool != null)
+				pool.shutdown();	// the tasks already running in it are finished
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+	
+	/**
+	 * It handles the prefixes opened by the files in [from, to) of the sorted file array, i.e. the prefixes which are not shared
+	 * with the file just before 'from'. Every prefix is opened by exactly one file, so disjoint ranges produce disjoint entries.
+	 * A prefix still open at the end of the range is closed by looking at the following files.
+	 * @param files        All filenames in sorted order.
+	 * @param common       The lengths of the longest common prefixes of neighbouring filenames.
+	 * @param from         The first file of the range.
+	 * @param to           The file after the range.
+	 * @param mac          The MAC instance used by the caller.
+	 * @param existingFile The existing file set to be filled.
+	 * @param prefix       The prefix set to be filled.
+	 */
+	private void constructPrefix(String[] files, int[] common, int from, int to, TagFunction mac, TreeMap<String, byte[]> existingFile, TreeMap<String, byte[]> prefix)
+	{
+		if (this.encoding == ENCODING_RANGE)
+		{
+			constructGap(files, from, to, mac, existingFile, prefix);
+			return;
+		}
+		
+		int maxLength = 0;
+		for (int k = from; k < to; k++)
+			maxLength = Math.max(maxLength, files[k].length());
+		
+		// child[d][j] indicates whether the open prefix of length d is followed by the j-th character of the alphabet in some file.
+		boolean[][] child = new boolean[maxLength + 1][this.alphabet.length()];
+		int depth         = (from < to) ? common[from] : -1;	// length of the longest open prefix; -1 means that no prefix is open.
+		int lowest        = depth + 1;	// open prefixes shorter than this are handled by the range before
+		String previous   = null;
+		
+		for (int k = from; k < to; k++)
+		{
+			String file = files[k];
+			
+			// first, close all prefixes which are not shared by the current file and handle the wildcard case.
+			// e.g. existing files {abc, dd}; closing the prefix 'ab' finds {aba#, abb#, abd#, ...}.
+			for (; depth > common[k]; depth--)
+				if (depth >= lowest)
+					addAfterPrefix(previous.substring(0, depth), child[depth], mac, prefix);
+			
+			if (common[k] >= lowest && common[k] < file.length())
+				markChild(child[common[k]], file.charAt(common[k]));
+			
+			// second, open all new prefixes of the current file and handle the sub-filename case.
+			// e.g. existing files {abc, dd}; the following program tries to find {a@, ab@, d@}.
+			// A new prefix cannot be an existing file; otherwise it would have been opened by that file already.
+			for (int i = common[k] + 1; i <= file.length(); i++)	// pay attention to the loop condition
 			{
-				String prefix = file.substring(0, i);
+				Arrays.fill(child[i], false);
+				if (i < file.length())
+					markChild(child[i], file.charAt(i));
 				
-				for (int j = 0; j < this.alphabet.length(); j++)
+				if (i > 0 && i < file.length())
 				{
-					String tempPrefix = prefix.substring(0, prefix.length()) + this.alphabet.substring(j, j + 1);
-					
-					if (isPrefix(tempPrefix, allFiles) == false)
-					{
-						String prefixKey = tempPrefix + SPECIAL_AFTER;
-						byte[] macValue = generateMAC(prefixKey);
-						this.prefix.put(prefixKey, macValue);        // add all prefixes into the prefix set using 'TreeMap'
-					}		
+					String prefixKey = file.substring(0, i) + SPECIAL_PREVIOUS;
+					byte[] macValue = generateMAC(mac, prefixKey);
+					prefix.put(prefixKey, macValue);	// add all prefixes into the prefix set using 'TreeMap'
 				}
-						
 			}
+			depth  = file.length();
+			lowest = Math.min(lowest, common[k] + 1);
 			
-			// second, handle the sub-filename case.
-			// e.g. existing files {abc, dd}; the following program tries to find {a@, ab@, d@}.
-			for (int i = 0; i < file.length() - 1; i++)	//pay attention to the loop condition
-			{
-				String prefix = file.substring(0, i + 1);
-				if (isExistingFile(prefix, allFiles) == false)
-				{
-					String prefixKey = prefix + SPECIAL_PREVIOUS;
-					byte[] macValue = generateMAC(prefixKey);
-					this.prefix.put(prefixKey, macValue);	// add all prefixes into the prefix set using 'TreeMap'
-				}				
-			}
+			byte[] macValue = generateMAC(mac, file);
+			existingFile.put(file, macValue);        // add all filenames into the existing file set using 'TreeMap'
+			previous = file;
+		}
+		
+		// the prefixes still open may be followed by characters of the files after the range
+		int shared = depth;
+		for (int k = to; k < files.length && depth >= lowest; k++)
+		{
+			shared = Math.min(shared, common[k]);
+			for (; depth > shared; depth--)
+				if (depth >= lowest)
+					addAfterPrefix(previous.substring(0, depth), child[depth], mac, prefix);
 			
-			byte[] macValue = generateMAC(file);
-			this.existingFile.put(file, macValue);        // add all filenames into the existing file set using 'TreeMap'			
+			if (shared >= lowest && shared < files[k].length())
+				markChild(child[shared], files[k].charAt(shared));
 		}
+		
+		for (; depth >= lowest; depth--)
+			addAfterPrefix(previous.substring(0, depth), child[depth], mac, prefix);
 	}
 	
 	/**
-	 * It checks whether a filename is a prefix of some existing file in a given file set.
-	 * @param filename The filename to be checked.
-	 * @param array The file set.
-	 * @return If yes, it returns true; otherwise, false.
+	 * It constructs the entries of the range encoding for the files in [from, to) of the sorted file array:
+	 * each file and the gap just before it; the range ending with the last file also adds the gap after it.
+	 * @param files        All filenames in sorted order.
+	 * @param from         The first file of the range.
+	 * @param to           The file after the range.
+	 * @param mac          The MAC instance used by the caller.
+	 * @param existingFile The existing file set to be filled.
+	 * @param prefix       The gap set to be filled.
 	 */
-	private boolean isPrefix(String filename, String[] array)
+	private void constructGap(String[] files, int from, int to, TagFunction mac, TreeMap<String, byte[]> existingFile, TreeMap<String, byte[]> prefix)
 	{
-		for (String temp : array)
+		for (int k = from; k <= to; k++)
 		{
-			if (temp.startsWith(filename) == true)
-				return true;
+			if (k == to && to < files.length)
+				break;
+			
+			String before = (k == 0) ? "" : files[k - 1];
+			String after  = (k == files.length) ? "" : files[k];
+			String gap    = before + SPECIAL_GAP + after;
+			prefix.put(gap, generateMAC(mac, gap));
+			
+			if (k < to)
+				existingFile.put(files[k], generateMAC(mac, files[k]));
 		}
-		return false;
 	}
 	
 	/**
-	 * It check whether a file name exists in a given file set.
-	 * @param filename The filename to be checked.
-	 * @param array The file set.
-	 * @return If yes, it returns true; otherwise, false.
+	 * It adds the wildcard entries of a closed prefix, i.e. one entry for every character which does not follow the prefix in any existing file.
+	 * @param prefix    The closed prefix.
+	 * @param child     The characters of the alphabet following the prefix in some existing file.
+	 * @param mac       The MAC instance used by the caller.
+	 * @param prefixSet The prefix set to be filled.
 	 */
-	private boolean isExistingFile(String filename, String[] array)
+	private void addAfterPrefix(String prefix, boolean[] child, TagFunction mac, TreeMap<String, byte[]> prefixSet)
 	{
-		for (String temp : array)
+		for (int j = 0; j < this.alphabet.length(); j++)
 		{
-			if (temp.equals(filename) == true)
-				return true;
+			if (child[j] == false)
+			{
+				String prefixKey = prefix + this.alphabet.charAt(j) + SPECIAL_AFTER;
+				byte[] macValue = generateMAC(mac, prefixKey);
+				prefixSet.put(prefixKey, macValue);        // add all prefixes into the prefix set using 'TreeMap'
+			}
 		}
-		return false;
+	}
+	
+	/**
+	 * It records that a character follows an open prefix. Characters outside the alphabet are ignored.
+	 * @param child The characters of the alphabet following the prefix.
+	 * @param c     The following character.
+	 */
+	private void markChild(boolean[] child, char c)
+	{
+		int j = this.alphabet.indexOf(c);
+		if (j >= 0)
+			child[j] = true;
+	}
+	
+	/**
+	 * It computes the length of the longest common prefix of two filenames.
+	 * @param a The first filename.
+	 * @param b The second filename.
+	 * @return The length of the longest common prefix.
+	 */
+	static int commonPrefixLength(String a, String b)
+	{
+		int length = Math.min(a.length(), b.length());
+		int i = 0;
+		while (i < length && a.charAt(i) == b.charAt(i))
+			i++;
+		return i;
 	}
 	
 	/**
@@ -336,13 +954,169 @@ public class PrefixBasedOutsourcing
 	 * @return The corresponding MAC of the filename.
 	 */
 	private byte[] generateMAC(String filename)
+	{
+		return generateMAC(this.mac, filename);
+	}
+	
+	/**
+	 * It generates the corresponding MAC for a given filename with a given MAC instance.
+	 * Every worker of the parallel outsourcing uses its own instance because a tag function is not thread-safe.
+	 * @param mac      The MAC instance.
+	 * @param filename The input filename to be MACed.
+	 * @return The corresponding MAC of the filename.
+	 */
+	private byte[] generateMAC(TagFunction mac, String filename)
 	{
 		if (this.flag == 1)		
-			return this.mac.doFinal(filename.getBytes());
+			return mac.tag(filename.getBytes());
 		else
 			return null;
 	}
 	
+	/**
+	 * It outsources a range of the sorted filenames in a fork-join pool.
+	 * A task splits its range until it is small enough, and then handles it with the MAC instance of its thread and its own sets.
+	 * The sets of the two halves are disjoint; they are returned as sorted runs and merged in linear time when both halves finish.
+	 */
+	private class PrefixTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private String[] files;
+		private int[] common;
+		private int from;
+		private int to;
+		private int grain;
+		private SortedRun existingFile = null;
+		private SortedRun prefix       = null;
+		
+		public PrefixTask(String[] files, int[] common, int from, int to, int grain)
+		{
+			this.files  = files;
+			this.common = common;
+			this.from   = from;
+			this.to     = to;
+			this.grain  = grain;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if (this.to - this.from <= this.grain)
+			{
+				TreeMap<String, byte[]> existingFile = new TreeMap<String, byte[]>();
+				TreeMap<String, byte[]> prefix       = new TreeMap<String, byte[]>();
+				constructPrefix(this.files, this.common, this.from, this.to, macs.get(), existingFile, prefix);
+				this.existingFile = new SortedRun(existingFile);
+				this.prefix       = new SortedRun(prefix);
+				return;
+			}
+			
+			int middle = (this.from + this.to) >>> 1;
+			PrefixTask left  = new PrefixTask(this.files, this.common, this.from, middle, this.grain);
+			PrefixTask right = new PrefixTask(this.files, this.common, middle, this.to, this.grain);
+			invokeAll(left, right);
+			
+			this.existingFile = new SortedRun(left.existingFile, right.existingFile);
+			this.prefix       = new SortedRun(left.prefix, right.prefix);
+		}
+	}
+	
+	/**
+	 * It holds the entries of a set in two arrays sorted by their keys, as a task of outsource(int) returns them.
+	 * Two runs are merged in linear time, so the entries of all tasks are put into the sets of the object only once.
+	 */
+	private static class SortedRun
+	{
+		private String[] keys;
+		private byte[][] macs;
+		
+		public SortedRun(TreeMap<String, byte[]> set)
+		{
+			this.keys = set.keySet().toArray(new String[set.size()]);
+			this.macs = set.values().toArray(new byte[set.size()][]);
+		}
+		
+		/**
+		 * It merges two runs; a key in both of them is kept once.
+		 */
+		public SortedRun(SortedRun a, SortedRun b)
+		{
+			String[] keys = new String[a.keys.length + b.keys.length];
+			byte[][] macs = new byte[keys.length][];
+			int i = 0, j = 0, k = 0;
+			while (i < a.keys.length || j < b.keys.length)
+			{
+				int order = (i == a.keys.length) ? 1 : (j == b.keys.length) ? -1 : a.keys[i].compareTo(b.keys[j]);
+				if (order <= 0)
+				{
+					keys[k]   = a.keys[i];
+					macs[k++] = a.macs[i++];
+					if (order == 0)
+						j++;
+				}
+				else
+				{
+					keys[k]   = b.keys[j];
+					macs[k++] = b.macs[j++];
+				}
+			}
+			this.keys = (k == keys.length) ? keys : Arrays.copyOf(keys, k);
+			this.macs = (k == macs.length) ? macs : Arrays.copyOf(macs, k);
+		}
+		
+		/**
+		 * It puts the entries into a set in their order.
+		 */
+		public void putInto(TreeMap<String, byte[]> set)
+		{
+			for (int k = 0; k < this.keys.length; k++)
+				set.put(this.keys[k], this.macs[k]);
+		}
+	}
+	
+	/**
+	 * It verifies the proofs in [from, to) of a batch; ranges larger than the grain are split in two halves.
+	 * The results are written into disjoint parts of one array, so no merging is needed.
+	 */
+	private class VerifyTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private String[] files;
+		private ProofData[] proofs;
+		private int[] result;
+		private int from;
+		private int to;
+		private int grain;
+		
+		public VerifyTask(String[] files, ProofData[] proofs, int[] result, int from, int to, int grain)
+		{
+			this.files  = files;
+			this.proofs = proofs;
+			this.result = result;
+			this.from   = from;
+			this.to     = to;
+			this.grain  = grain;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if (this.to - this.from <= this.grain)
+			{
+				TagFunction mac = macs.get();
+				for (int k = this.from; k < this.to; k++)
+					this.result[k] = verify(mac, this.files[k], this.proofs[k]);
+				return;
+			}
+			
+			int middle = (this.from + this.to) >>> 1;
+			invokeAll(new VerifyTask(this.files, this.proofs, this.result, this.from, middle, this.grain),
+					  new VerifyTask(this.files, this.proofs, this.result, middle, this.to, this.grain));
+		}
+	}
+	
 	private final static byte[] hex = "0123456789ABCDEF".getBytes();	
 	/**
 	 * It transforms a byte array into a string in the Hexadecimal format in an entry-wise way.
@@ -360,6 +1134,16 @@ public class PrefixBasedOutsourcing
 	    return new String(buff);
 	}
 
+	public PrefixTrie getIndex()
+	{
+	    return index;
+	}
+	
+	public PrefixIndexFile getMapped()
+	{
+	    return mapped;
+	}
+
 	public TreeMap<String, byte[]> getExistingFile()
 	{
 	    return existingFile;
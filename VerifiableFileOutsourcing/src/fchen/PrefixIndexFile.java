@@ -0,0 +1,457 @@
+package fchen;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * It implements a persistent, memory-mapped form of the existing file set and the prefix set of 'PrefixBasedOutsourcing'.
+ * The cloud writes both sets once and, after a restart, maps the file and searches it in place by binary search;
+ * no MAC is recomputed and the records never move onto the Java heap.
+ *
+ * The file starts with a header of HEADER_SIZE bytes:
+ * magic, version, encoding, MAC length, size of the longest record (all int), one unused int, the numbers of records of both sets
+ * and the offsets of both sets (all long). Each set is an array of records sorted by the UTF-8 bytes of the keys;
+ * a record is the key in UTF-8 followed by the MAC, so it takes only as many bytes as its own key.
+ * The records are preceded by an offset table of count + 1 longs: the start of every record within the records,
+ * and their total size at the end. The length of a key is thus the distance to the next record minus the MAC length.
+ *
+ * @author Chen, Fei
+ */
+public class PrefixIndexFile
+{
+	public final static int MAGIC       = 0x50424f49;   // "PBOI"
+	public final static int VERSION     = 2;      // version 1 padded every record to the longest key
+	public final static int HEADER_SIZE = 64;
+
+	private final static Charset UTF8   = Charset.forName("UTF-8");
+	private final static int CHUNK_SIZE = 1 << 30;      // a mapping cannot exceed 2GB, so large sets are mapped in chunks of whole records
+
+	private RandomAccessFile file = null;
+	private int encoding          = PrefixBasedOutsourcing.ENCODING_PREFIX;
+	private int macLength         = 0;
+	private int maxRecordSize     = 0;
+	private Section existingFile  = null;
+	private Section prefix        = null;
+
+	/**
+	 * It opens an index file written by write() and maps both sets.
+	 * @param path The index file.
+	 * @throws IOException If the file cannot be read or is not an index file.
+	 */
+	public PrefixIndexFile(String path) throws IOException
+	{
+		this.file = new RandomAccessFile(path, "r");
+		FileChannel channel = this.file.getChannel();
+
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+		{
+			this.file.close();
+			throw new IOException("not a prefix index file: " + path);
+		}
+		this.encoding      = header.getInt(8);
+		this.macLength     = header.getInt(12);
+		this.maxRecordSize = header.getInt(16);
+
+		this.existingFile = new Section(channel, header.getLong(40), header.getLong(24), this.macLength, this.maxRecordSize);
+		this.prefix       = new Section(channel, header.getLong(48), header.getLong(32), this.macLength, this.maxRecordSize);
+	}
+
+	/**
+	 * It writes both sets of the prefix-based scheme into an index file.
+	 * @param path         The index file.
+	 * @param existingFile The existing file set.
+	 * @param prefix       The prefix set.
+	 * @param encoding     The encoding of the prefix set, i.e. ENCODING_PREFIX or ENCODING_RANGE of 'PrefixBasedOutsourcing'.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public static void write(String path, TreeMap<String, byte[]> existingFile, TreeMap<String, byte[]> prefix, int encoding) throws IOException
+	{
+		byte[][] existingKeys = sortedKeys(existingFile);
+		byte[][] prefixKeys   = sortedKeys(prefix);
+
+		int macLength = 0;
+		int keyWidth  = 0;  // the length of the longest key
+		for (byte[] key : existingKeys)
+			keyWidth = Math.max(keyWidth, key.length);
+		for (byte[] key : prefixKeys)
+			keyWidth = Math.max(keyWidth, key.length);
+		for (byte[] mac : existingFile.values())
+			if (mac != null)
+			{
+				macLength = mac.length;
+				break;
+			}
+		for (byte[] mac : prefix.values())
+			if (mac != null && macLength == 0)
+			{
+				macLength = mac.length;
+				break;
+			}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(encoding);
+			out.writeInt(macLength);
+			out.writeInt(keyWidth + macLength);
+			out.writeInt(0);
+			out.writeLong(existingKeys.length);
+			out.writeLong(prefixKeys.length);
+			out.writeLong(HEADER_SIZE);
+			out.writeLong(HEADER_SIZE + sectionSize(existingKeys, macLength));
+			out.write(new byte[HEADER_SIZE - 56]);
+
+			writeRecords(out, existingKeys, existingFile, macLength);
+			writeRecords(out, prefixKeys, prefix, macLength);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * It encodes the keys of a set in UTF-8 and sorts them by their bytes, which is the order used by the binary search.
+	 * @param set The set.
+	 * @return The sorted keys.
+	 */
+	private static byte[][] sortedKeys(TreeMap<String, byte[]> set)
+	{
+		byte[][] keys = new byte[set.size()][];
+		int i = 0;
+		for (String key : set.keySet())
+			keys[i++] = key.getBytes(UTF8);
+
+		Arrays.sort(keys, new Comparator<byte[]>()
+		{
+			public int compare(byte[] a, byte[] b)
+			{
+				int length = Math.min(a.length, b.length);
+				for (int j = 0; j < length; j++)
+					if (a[j] != b[j])
+						return (a[j] & 0xff) - (b[j] & 0xff);
+				return a.length - b.length;
+			}
+		});
+		return keys;
+	}
+
+	/**
+	 * @return The number of bytes of a set in the index file, including its offset table.
+	 */
+	private static long sectionSize(byte[][] keys, int macLength)
+	{
+		long result = 8L * (keys.length + 1);
+		for (byte[] key : keys)
+			result = result + key.length + macLength;
+		return result;
+	}
+
+	/**
+	 * It writes the offset table and the records of a set.
+	 */
+	private static void writeRecords(DataOutputStream out, byte[][] keys, TreeMap<String, byte[]> set, int macLength) throws IOException
+	{
+		long start = 0;
+		for (byte[] key : keys)
+		{
+			out.writeLong(start);
+			start = start + key.length + macLength;
+		}
+		out.writeLong(start);
+
+		byte[] padding = new byte[macLength];
+		for (byte[] key : keys)
+		{
+			byte[] mac = set.get(new String(key, UTF8));
+			out.write(key);
+			if (mac != null && mac.length == macLength)
+				out.write(mac);
+			else
+				out.write(padding);
+		}
+	}
+
+	/**
+	 * It searches a filename in place. The result is the same as the one of 'PrefixBasedOutsourcing.search'.
+	 * @param filename The file to be queried.
+	 * @return A proof data object; see 'PrefixBasedOutsourcing.search'.
+	 */
+	public ProofData search(String filename)
+	{
+		byte[] query = filename.getBytes(UTF8);
+
+		long i = this.existingFile.find(query, query.length, -1);
+		if (i >= 0)  // the file does exist.
+			return new ProofData(1, filename, this.existingFile.mac(i));
+
+		if (this.encoding == PrefixBasedOutsourcing.ENCODING_RANGE)
+		{
+			// the gap containing the file is the floor of the file; see 'PrefixBasedOutsourcing.search'.
+			i = this.prefix.floor(query);
+			if (i < 0)
+				return new ProofData(0, filename, null);
+			int separator = this.prefix.indexOf(i, (byte) 0);
+			int result    = (this.prefix.startsWith(i, separator + 1, query, query.length) == true) ? 2 : 3;
+			return new ProofData(result, this.prefix.key(i), this.prefix.mac(i));
+		}
+
+		// the same ordered lookups as 'PrefixBasedOutsourcing.search'; UTF-8 keeps the order of the characters, so they work on the bytes as well.
+		i = this.prefix.floor(query);
+		if (i >= 0 && isAfterKey(i, query) == true)
+			return new ProofData(3, this.prefix.key(i), this.prefix.mac(i));
+
+		i = this.prefix.ceiling(query);
+		if (i < this.prefix.count && isAfterKey(i, query) == true)
+			return new ProofData(3, this.prefix.key(i), this.prefix.mac(i));
+
+		// otherwise probe "filename + @" and then "filename[0, i + 1) + #" for all i, comparing the records with the query in place.
+		i = this.prefix.find(query, query.length, PrefixBasedOutsourcing.SPECIAL_PREVIOUS.charAt(0));
+		if (i >= 0)  // the file is a prefix of some existing file.
+			return new ProofData(2, filename + PrefixBasedOutsourcing.SPECIAL_PREVIOUS, this.prefix.mac(i));
+
+		for (int length = 1; length <= query.length; length++)
+		{
+			if (length < query.length && (query[length] & 0xc0) == 0x80)  // not at the end of a character
+				continue;
+			i = this.prefix.find(query, length, PrefixBasedOutsourcing.SPECIAL_AFTER.charAt(0));
+			if (i >= 0)  // the file is different from all existing files.
+				return new ProofData(3, this.prefix.key(i), this.prefix.mac(i));
+		}
+
+		return new ProofData(0, filename, null);
+	}
+
+	/**
+	 * It checks whether a record of the prefix set has the form "filename[0, i + 1) + #" for some i.
+	 */
+	private boolean isAfterKey(long i, byte[] query)
+	{
+		int length = this.prefix.keyLength(i) - 1;
+		return length > 0 && length <= query.length && this.prefix.keyByte(i, length) == PrefixBasedOutsourcing.SPECIAL_AFTER.charAt(0)
+				&& this.prefix.startsWith(i, 0, query, length) == true;
+	}
+
+	/**
+	 * It closes the index file. The mappings stay valid until they are garbage collected.
+	 */
+	public void close()
+	{
+		try
+		{
+			this.file.close();
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error occured when closing the index file.\n" + e.toString());
+		}
+	}
+
+	public int getEncoding()
+	{
+		return encoding;
+	}
+
+	public long getExistingFileCount()
+	{
+		return this.existingFile.count;
+	}
+
+	public long getPrefixCount()
+	{
+		return this.prefix.count;
+	}
+
+	/**
+	 * It encapsulates one mapped set of sorted records of variable size, behind its offset table.
+	 * Both are mapped in chunks: the table in chunks of whole offsets, and the records in chunks starting every CHUNK_SIZE bytes,
+	 * each of which also maps the first bytes of the next one, so that a record lies in the chunk where it starts.
+	 */
+	private static class Section
+	{
+		private long count;
+		private int macLength;
+		private int perChunk;                 // offsets per mapped chunk of the offset table
+		private MappedByteBuffer[] offsets;
+		private MappedByteBuffer[] records;
+
+		public Section(FileChannel channel, long offset, long count, int macLength, int maxRecordSize) throws IOException
+		{
+			this.count     = count;
+			this.macLength = macLength;
+			this.perChunk  = CHUNK_SIZE / 8;
+
+			int chunkCount = (int) ((count + 1 + this.perChunk - 1) / this.perChunk);
+			this.offsets   = new MappedByteBuffer[chunkCount];
+			for (int i = 0; i < chunkCount; i++)
+			{
+				long first = (long) i * this.perChunk;
+				long size  = Math.min(this.perChunk, count + 1 - first) * 8;
+				this.offsets[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first * 8, size);
+			}
+
+			long base  = offset + (count + 1) * 8;
+			long total = start(count);
+			chunkCount   = (int) (total / CHUNK_SIZE) + 1;
+			this.records = new MappedByteBuffer[chunkCount];
+			for (int i = 0; i < chunkCount; i++)
+			{
+				long first = (long) i * CHUNK_SIZE;
+				long size  = Math.min(total - first, (long) CHUNK_SIZE + maxRecordSize);
+				this.records[i] = channel.map(FileChannel.MapMode.READ_ONLY, base + first, size);
+			}
+		}
+
+		/**
+		 * @return The start of record i within the records; the total size of the records for i = count.
+		 */
+		private long start(long i)
+		{
+			return this.offsets[(int) (i / this.perChunk)].getLong((int) (i % this.perChunk) * 8);
+		}
+
+		private ByteBuffer chunk(long start)
+		{
+			return this.records[(int) (start / CHUNK_SIZE)];
+		}
+
+		private int position(long start)
+		{
+			return (int) (start % CHUNK_SIZE);
+		}
+
+		public int keyLength(long i)
+		{
+			return (int) (start(i + 1) - start(i)) - this.macLength;
+		}
+
+		public byte keyByte(long i, int j)
+		{
+			long start = start(i);
+			return chunk(start).get(position(start) + j);
+		}
+
+		/**
+		 * It compares the key of a record with the query bytes query[0, length), followed by one more byte if 'suffix' is not negative.
+		 */
+		public int compare(long i, byte[] query, int length, int suffix)
+		{
+			long start        = start(i);
+			ByteBuffer buffer = chunk(start);
+			int base          = position(start);
+			int keyLength     = (int) (start(i + 1) - start) - this.macLength;
+			int queryLength   = (suffix >= 0) ? length + 1 : length;
+
+			int common = Math.min(keyLength, queryLength);
+			for (int j = 0; j < common; j++)
+			{
+				int a = buffer.get(base + j) & 0xff;
+				int b = (j < length) ? (query[j] & 0xff) : suffix;
+				if (a != b)
+					return a - b;
+			}
+			return keyLength - queryLength;
+		}
+
+		public long find(byte[] query, int length, int suffix)
+		{
+			long low = 0, high = this.count - 1;
+			while (low <= high)
+			{
+				long middle = (low + high) >>> 1;
+				int temp    = compare(middle, query, length, suffix);
+				if (temp < 0)
+					low = middle + 1;
+				else if (temp > 0)
+					high = middle - 1;
+				else
+					return middle;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return The last record whose key is not larger than the query, or -1.
+		 */
+		public long floor(byte[] query)
+		{
+			long low = 0, high = this.count - 1;
+			while (low <= high)
+			{
+				long middle = (low + high) >>> 1;
+				if (compare(middle, query, query.length, -1) <= 0)
+					low = middle + 1;
+				else
+					high = middle - 1;
+			}
+			return high;
+		}
+
+		/**
+		 * @return The first record whose key is not smaller than the query, or 'count'.
+		 */
+		public long ceiling(byte[] query)
+		{
+			long i = floor(query);
+			return (i >= 0 && compare(i, query, query.length, -1) == 0) ? i : i + 1;
+		}
+
+		public int indexOf(long i, byte value)
+		{
+			long start        = start(i);
+			ByteBuffer buffer = chunk(start);
+			int base          = position(start);
+			int keyLength     = keyLength(i);
+			for (int j = 0; j < keyLength; j++)
+				if (buffer.get(base + j) == value)
+					return j;
+			return -1;
+		}
+
+		/**
+		 * It checks whether the key of a record continues with query[0, length) at position 'from'.
+		 */
+		public boolean startsWith(long i, int from, byte[] query, int length)
+		{
+			if (keyLength(i) - from < length)
+				return false;
+			long start        = start(i);
+			ByteBuffer buffer = chunk(start);
+			int base          = position(start) + from;
+			for (int j = 0; j < length; j++)
+				if (buffer.get(base + j) != query[j])
+					return false;
+			return true;
+		}
+
+		public String key(long i)
+		{
+			long start        = start(i);
+			ByteBuffer buffer = chunk(start);
+			int base          = position(start);
+			byte[] result     = new byte[keyLength(i)];
+			for (int j = 0; j < result.length; j++)
+				result[j] = buffer.get(base + j);
+			return new String(result, UTF8);
+		}
+
+		public byte[] mac(long i)
+		{
+			if (this.macLength == 0)
+				return null;
+			long start        = start(i);
+			ByteBuffer buffer = chunk(start);
+			int base          = position(start) + keyLength(i);  // the MAC follows the key
+			byte[] result     = new byte[this.macLength];
+			for (int j = 0; j < this.macLength; j++)
+				result[j] = buffer.get(base + j);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package fchen;
+
+import java.util.*;
+
+/**
+ * It implements a compact radix trie holding the existing file set and the prefix set of 'PrefixBasedOutsourcing'.
+ * The trie is built over the prefixes of all existing files; chains of prefixes with exactly one following character
+ * are merged into one node whose edge label is stored in a shared character array. No '@' or '#' key is stored at all:
+ * which keys exist at a prefix follows from the alphabet and the characters following the prefix, so only their MACs
+ * are kept, one after another in packed byte arrays.
+ *
+ * The MACs of a prefix form a block: first the MAC of the prefix itself ("prefix" if it is an existing file, "prefix@" otherwise;
+ * the empty prefix has none), then the MACs of "prefix + c + #" for every character c of the alphabet which does not follow the prefix,
+ * in the order of the alphabet. The blocks of an edge are stored in the order of the prefixes along the edge.
+ *
+ * @author Chen, Fei
+ */
+public class PrefixTrie
+{
+	private final static int PAGE_BITS = 16;                 // a page holds 2^16 MACs, so that a large index never needs one huge array
+	private final static int PAGE_SIZE = 1 << PAGE_BITS;
+
+	private String alphabet  = null;
+	private int macLength    = 0;
+
+	private int nodeCount    = 0;
+	private char[] label     = null;    // all edge labels, one after another
+	private int[] labelStart = null;    // the edge into node i is label[labelStart[i], labelStart[i] + labelLength[i])
+	private int[] labelLength= null;
+	private int[] firstChild = null;    // the children of a node are numbered consecutively and sorted by their first label character
+	private int[] childCount = null;
+	private int[] macStart   = null;    // index of the first MAC of the blocks along the edge into a node
+	private boolean[] terminal = null;  // whether the prefix at a node is an existing file
+	private byte[][] macs    = null;    // packed MACs, split into pages
+	private int macCount     = 0;
+
+	/**
+	 * It builds the trie from the two sets of the prefix-based scheme. The MACs are copied from the sets, not recomputed.
+	 * @param existingFile The existing file set.
+	 * @param prefix       The prefix set.
+	 * @param alphabet     All possible characters in a filename.
+	 */
+	public PrefixTrie(TreeMap<String, byte[]> existingFile, TreeMap<String, byte[]> prefix, String alphabet)
+	{
+		this.alphabet = alphabet;
+
+		String[] files = existingFile.keySet().toArray(new String[existingFile.size()]);  // already sorted
+
+		int capacity     = 16;
+		this.labelStart  = new int[capacity];
+		this.labelLength = new int[capacity];
+		this.firstChild  = new int[capacity];
+		this.childCount  = new int[capacity];
+		this.macStart    = new int[capacity];
+		this.terminal    = new boolean[capacity];
+		this.macs        = new byte[0][];
+
+		// nodes are numbered in breadth-first order so that the children of a node are consecutive.
+		// A queued node is described by the range of files starting with its prefix and the depths where its edge starts and ends.
+		int[] lo        = new int[capacity];
+		int[] hi        = new int[capacity];
+		int[] edgeStart = new int[capacity];
+		int[] depth     = new int[capacity];
+		StringBuilder labels = new StringBuilder();
+
+		if (files.length > 0)
+		{
+			lo[0] = 0; hi[0] = files.length; edgeStart[0] = 0; depth[0] = 0;
+			this.nodeCount = 1;
+		}
+
+		for (int n = 0; n < this.nodeCount; n++)
+		{
+			String first = files[lo[n]];
+
+			this.labelStart[n]  = labels.length();
+			this.labelLength[n] = depth[n] - edgeStart[n];
+			labels.append(first, edgeStart[n], depth[n]);
+			this.macStart[n]    = this.macCount;
+
+			// the prefixes inside the edge have exactly one following character and are not existing files
+			for (int e = edgeStart[n] + 1; e < depth[n]; e++)
+			{
+				String temp = first.substring(0, e);
+				addMac(prefix.get(temp + PrefixBasedOutsourcing.SPECIAL_PREVIOUS));
+				char next = first.charAt(e);
+				for (int j = 0; j < alphabet.length(); j++)
+					if (alphabet.charAt(j) != next)
+						addMac(prefix.get(temp + alphabet.charAt(j) + PrefixBasedOutsourcing.SPECIAL_AFTER));
+			}
+
+			// the prefix at the node itself
+			String temp     = first.substring(0, depth[n]);
+			this.terminal[n] = first.length() == depth[n];
+			if (this.terminal[n] == true)
+				addMac(existingFile.get(temp));
+			else if (depth[n] > 0)
+				addMac(prefix.get(temp + PrefixBasedOutsourcing.SPECIAL_PREVIOUS));
+
+			int from = this.terminal[n] ? lo[n] + 1 : lo[n];
+			this.firstChild[n] = this.nodeCount;
+			this.childCount[n] = 0;
+			StringBuilder following = new StringBuilder();
+			while (from < hi[n])
+			{
+				char c = files[from].charAt(depth[n]);
+				int to = from + 1;
+				while (to < hi[n] && files[to].charAt(depth[n]) == c)
+					to++;
+
+				// extend the edge as long as all files in the range share the next character
+				int end = depth[n] + 1;
+				while (files[from].length() > end && files[from].charAt(end) == files[to - 1].charAt(end))
+					end++;
+
+				if (this.nodeCount == lo.length)
+				{
+					capacity         = 2 * capacity;
+					lo               = Arrays.copyOf(lo, capacity);
+					hi               = Arrays.copyOf(hi, capacity);
+					edgeStart        = Arrays.copyOf(edgeStart, capacity);
+					depth            = Arrays.copyOf(depth, capacity);
+					this.labelStart  = Arrays.copyOf(this.labelStart, capacity);
+					this.labelLength = Arrays.copyOf(this.labelLength, capacity);
+					this.firstChild  = Arrays.copyOf(this.firstChild, capacity);
+					this.childCount  = Arrays.copyOf(this.childCount, capacity);
+					this.macStart    = Arrays.copyOf(this.macStart, capacity);
+					this.terminal    = Arrays.copyOf(this.terminal, capacity);
+				}
+				lo[this.nodeCount]        = from;
+				hi[this.nodeCount]        = to;
+				edgeStart[this.nodeCount] = depth[n];
+				depth[this.nodeCount]     = end;
+				this.nodeCount++;
+				this.childCount[n]++;
+				following.append(c);
+				from = to;
+			}
+
+			for (int j = 0; j < alphabet.length(); j++)
+				if (following.indexOf(alphabet.substring(j, j + 1)) < 0)
+					addMac(prefix.get(temp + alphabet.charAt(j) + PrefixBasedOutsourcing.SPECIAL_AFTER));
+		}
+
+		this.label       = labels.toString().toCharArray();
+		this.labelStart  = Arrays.copyOf(this.labelStart, this.nodeCount);
+		this.labelLength = Arrays.copyOf(this.labelLength, this.nodeCount);
+		this.firstChild  = Arrays.copyOf(this.firstChild, this.nodeCount);
+		this.childCount  = Arrays.copyOf(this.childCount, this.nodeCount);
+		this.macStart    = Arrays.copyOf(this.macStart, this.nodeCount);
+		this.terminal    = Arrays.copyOf(this.terminal, this.nodeCount);
+		if (this.macs.length > 0)   // trim the last page
+		{
+			int last = this.macs.length - 1;
+			this.macs[last] = Arrays.copyOf(this.macs[last], (this.macCount - last * PAGE_SIZE) * this.macLength);
+		}
+	}
+
+	/**
+	 * It searches a filename with one walk down the trie. The result is the same as the one of 'PrefixBasedOutsourcing.search'.
+	 * @param filename The file to be queried.
+	 * @return A proof data object; see 'PrefixBasedOutsourcing.search'.
+	 */
+	public ProofData search(String filename)
+	{
+		if (this.nodeCount == 0)
+			return new ProofData(0, filename, null);
+		return walk(filename, 0, this.macStart[0], 0, null);
+	}
+
+	/**
+	 * It searches a batch of filenames. The walk of a filename starts at the deepest node it shares with the walk of the previous filename,
+	 * so a batch in lexicographic order walks every shared prefix only once.
+	 * @param filenames The files to be queried, preferably in lexicographic order.
+	 * @return The proof data objects, in the order of the filenames.
+	 */
+	public ProofData[] search(String[] filenames)
+	{
+		ProofData[] result = new ProofData[filenames.length];
+		if (this.nodeCount == 0)
+		{
+			for (int k = 0; k < filenames.length; k++)
+				result[k] = new ProofData(0, filenames[k], null);
+			return result;
+		}
+
+		// the nodes passed by the previous walk, with their MAC blocks and depths; the root is always at the bottom.
+		Path path = new Path();
+		path.push(0, this.macStart[0], 0);
+		String previous = "";
+
+		for (int k = 0; k < filenames.length; k++)
+		{
+			String filename = filenames[k];
+			int shared      = PrefixBasedOutsourcing.commonPrefixLength(previous, filename);
+			while (path.depth[path.size - 1] > shared)
+				path.size--;
+
+			int top   = path.size - 1;
+			result[k] = walk(filename, path.node[top], path.slot[top], path.depth[top], path);
+			previous  = filename;
+		}
+		return result;
+	}
+
+	/**
+	 * It walks down the trie from a node whose prefix is a prefix of the filename.
+	 * @param filename The file to be queried.
+	 * @param node     The node.
+	 * @param slot     The first MAC of the block of the prefix at the node.
+	 * @param i        The length of the prefix at the node.
+	 * @param path     If it is not null, every node reached is pushed onto it.
+	 * @return A proof data object; see 'PrefixBasedOutsourcing.search'.
+	 */
+	private ProofData walk(String filename, int node, int slot, int i, Path path)
+	{
+		while (true)
+		{
+			// the current prefix is filename[0, i) and it is the prefix at 'node'
+			if (i == filename.length())
+			{
+				if (this.terminal[node] == true)
+					return new ProofData(1, filename, getMac(slot));
+				else if (i > 0)
+					return new ProofData(2, filename + PrefixBasedOutsourcing.SPECIAL_PREVIOUS, getMac(slot));
+				else
+					return new ProofData(0, filename, null);
+			}
+
+			char c    = filename.charAt(i);
+			int child = findChild(node, c);
+			if (child < 0)
+			{
+				int rank = missingRank(node, c);
+				if (rank < 0)
+					return new ProofData(0, filename, null);
+				int self = (i > 0) ? 1 : 0;
+				return new ProofData(3, filename.substring(0, i + 1) + PrefixBasedOutsourcing.SPECIAL_AFTER, getMac(slot + self + rank));
+			}
+
+			// walk along the edge into the child
+			i++;
+			slot = this.macStart[child];
+			int start = this.labelStart[child];
+			for (int j = 1; j < this.labelLength[child]; j++)
+			{
+				if (i == filename.length())
+					return new ProofData(2, filename + PrefixBasedOutsourcing.SPECIAL_PREVIOUS, getMac(slot));
+
+				char next = this.label[start + j];
+				c = filename.charAt(i);
+				if (c != next)
+				{
+					int rank = this.alphabet.indexOf(c);
+					if (rank < 0)
+						return new ProofData(0, filename, null);
+					if (this.alphabet.indexOf(next) >= 0 && this.alphabet.indexOf(next) < rank)
+						rank--;
+					return new ProofData(3, filename.substring(0, i + 1) + PrefixBasedOutsourcing.SPECIAL_AFTER, getMac(slot + 1 + rank));
+				}
+
+				i++;
+				slot = slot + 1 + this.alphabet.length() - (this.alphabet.indexOf(next) >= 0 ? 1 : 0);
+			}
+			node = child;
+			if (path != null)
+				path.push(node, slot, i);
+		}
+	}
+
+	/**
+	 * It finds the child of a node whose edge label starts with a given character.
+	 * @param node The node.
+	 * @param c    The character.
+	 * @return The child, or -1 if there is none.
+	 */
+	private int findChild(int node, char c)
+	{
+		int low  = this.firstChild[node];
+		int high = low + this.childCount[node] - 1;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			char temp  = this.label[this.labelStart[middle]];
+			if (temp < c)
+				low = middle + 1;
+			else if (temp > c)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	/**
+	 * It computes the position of the MAC of "prefix + c + #" among the '#' MACs of the prefix at a node.
+	 * @param node The node.
+	 * @param c    A character which does not follow the prefix.
+	 * @return The position, or -1 if the character is not in the alphabet.
+	 */
+	private int missingRank(int node, char c)
+	{
+		int position = this.alphabet.indexOf(c);
+		if (position < 0)
+			return -1;
+
+		int rank = position;
+		int from = this.firstChild[node];
+		int to   = from + this.childCount[node];
+		for (int child = from; child < to; child++)
+		{
+			int temp = this.alphabet.indexOf(this.label[this.labelStart[child]]);
+			if (temp >= 0 && temp < position)
+				rank--;
+		}
+		return rank;
+	}
+
+	/**
+	 * It appends a MAC to the packed MAC arrays.
+	 * @param mac The MAC; null MACs are stored as zeros.
+	 */
+	private void addMac(byte[] mac)
+	{
+		if (this.macLength == 0 && mac != null)
+			this.macLength = mac.length;
+
+		int page = this.macCount >>> PAGE_BITS;
+		if (page == this.macs.length)
+		{
+			this.macs = Arrays.copyOf(this.macs, page + 1);
+			this.macs[page] = new byte[PAGE_SIZE * Math.max(this.macLength, 1)];
+		}
+		if (mac != null && this.macLength > 0)
+			System.arraycopy(mac, 0, this.macs[page], (this.macCount & (PAGE_SIZE - 1)) * this.macLength, this.macLength);
+		this.macCount++;
+	}
+
+	/**
+	 * It copies a MAC out of the packed MAC arrays.
+	 * @param slot The index of the MAC.
+	 * @return The MAC.
+	 */
+	private byte[] getMac(int slot)
+	{
+		if (this.macLength == 0)
+			return null;
+
+		byte[] result = new byte[this.macLength];
+		System.arraycopy(this.macs[slot >>> PAGE_BITS], (slot & (PAGE_SIZE - 1)) * this.macLength, result, 0, this.macLength);
+		return result;
+	}
+
+	public int getNodeCount()
+	{
+		return nodeCount;
+	}
+
+	public int getMacCount()
+	{
+		return macCount;
+	}
+
+	/**
+	 * It records the nodes passed by a walk, for the batch search.
+	 */
+	private static class Path
+	{
+		private int[] node  = new int[16];
+		private int[] slot  = new int[16];
+		private int[] depth = new int[16];
+		private int size    = 0;
+
+		public void push(int node, int slot, int depth)
+		{
+			if (this.size == this.node.length)
+			{
+				this.node  = Arrays.copyOf(this.node, 2 * this.size);
+				this.slot  = Arrays.copyOf(this.slot, 2 * this.size);
+				this.depth = Arrays.copyOf(this.depth, 2 * this.size);
+			}
+			this.node[this.size]  = node;
+			this.slot[this.size]  = slot;
+			this.depth[this.size] = depth;
+			this.size++;
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package fchen;
+
+import java.security.*;
+import javax.crypto.*;
+
+/**
+ * It is the keyed function which tags the filenames of an outsourcing scheme, i.e. the MAC of a filename.
+ * Two tag functions are provided, chosen by name in the same way as 'Mac.getInstance':
+ * HMAC_SHA256 is the default and the function of our paper; AES_CMAC is AES-CMAC of RFC 4493 with a 128-bit key,
+ * which costs one AES block encryption per 16 bytes of the filename and runs on the AES instructions of the CPU when the JVM has them.
+ * A tag function is not thread-safe; a worker of a parallel scheme uses its own copy(), and a verifier the copy of its thread from perThread().
+ *
+ * @author Chen, Fei
+ */
+public abstract class TagFunction
+{
+	public final static String HMAC_SHA256 = "HmacSHA256";
+	public final static String AES_CMAC    = "AES-CMAC";
+
+	protected SecretKey key = null;
+
+	/**
+	 * It generates a secret key for a tag function.
+	 * @param algorithm HMAC_SHA256 or AES_CMAC.
+	 * @param sr        The source of randomness.
+	 * @return The key.
+	 * @throws GeneralSecurityException If the algorithm is not supported.
+	 */
+	public static SecretKey generateKey(String algorithm, SecureRandom sr) throws GeneralSecurityException
+	{
+		KeyGenerator kg = null;
+		if (AES_CMAC.equals(algorithm) == true)
+		{
+			kg = KeyGenerator.getInstance("AES");
+			kg.init(128, sr);
+		}
+		else if (HMAC_SHA256.equals(algorithm) == true)
+		{
+			kg = KeyGenerator.getInstance("HmacSHA256");
+			kg.init(sr);
+		}
+		else
+			throw new NoSuchAlgorithmException("unknown tag function: " + algorithm);
+		return kg.generateKey();
+	}
+
+	/**
+	 * It creates a tag function.
+	 * @param algorithm HMAC_SHA256 or AES_CMAC.
+	 * @param key       The secret key; an AES_CMAC key must have 16, 24 or 32 bytes.
+	 * @return The tag function.
+	 * @throws GeneralSecurityException If the algorithm is not supported or the key does not fit.
+	 */
+	public static TagFunction getInstance(String algorithm, SecretKey key) throws GeneralSecurityException
+	{
+		TagFunction result = null;
+		if (AES_CMAC.equals(algorithm) == true)
+			result = new AesCmac(key);
+		else if (HMAC_SHA256.equals(algorithm) == true)
+			result = new HmacSHA256(key);
+		else
+			throw new NoSuchAlgorithmException("unknown tag function: " + algorithm);
+		result.key = key;
+		return result;
+	}
+
+	/**
+	 * It tags a message.
+	 * @param message The message, e.g. the bytes of a filename.
+	 * @return The tag, of getTagLength() bytes.
+	 */
+	public abstract byte[] tag(byte[] message);
+
+	/**
+	 * @return The length of a tag in bytes.
+	 */
+	public abstract int getTagLength();
+
+	/**
+	 * @return The name of the tag function.
+	 */
+	public abstract String getAlgorithm();
+
+	/**
+	 * It creates another tag function with the same algorithm and key, e.g. for a worker of a parallel scheme.
+	 * @return The tag function, or null if it cannot be created.
+	 */
+	public TagFunction copy()
+	{
+		try
+		{
+			return getInstance(getAlgorithm(), this.key);
+		}
+		catch (GeneralSecurityException e)
+		{
+			System.out.println("Error occured when initializing the cryptographic primitives.\n" + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * It creates a pool of copies of a tag function, one per thread, so that a verifier can be called from many threads at once
+	 * without creating a Mac per call. A tag function is reset by computing a tag, so the copies are simply reused.
+	 * @param tagFunction The tag function.
+	 * @return The pool; get() returns the copy of the current thread.
+	 */
+	public static ThreadLocal<TagFunction> perThread(final TagFunction tagFunction)
+	{
+		return new ThreadLocal<TagFunction>()
+		{
+			protected TagFunction initialValue()
+			{
+				return tagFunction.copy();
+			}
+		};
+	}
+
+	/**
+	 * HMAC-SHA256 on top of 'Mac'.
+	 */
+	private static class HmacSHA256 extends TagFunction
+	{
+		private Mac mac = null;
+
+		public HmacSHA256(SecretKey key) throws GeneralSecurityException
+		{
+			this.mac = Mac.getInstance("HmacSHA256");
+			this.mac.init(key);
+		}
+
+		public byte[] tag(byte[] message)
+		{
+			return this.mac.doFinal(message);
+		}
+
+		public int getTagLength()
+		{
+			return this.mac.getMacLength();
+		}
+
+		public String getAlgorithm()
+		{
+			return HMAC_SHA256;
+		}
+	}
+
+	/**
+	 * AES-CMAC (RFC 4493) on top of the raw AES block cipher "AES/ECB/NoPadding".
+	 * The message is split into 16-byte blocks which are chained by AES; the last block is masked with the subkey K1 if it is complete,
+	 * and padded with 10..0 and masked with K2 otherwise.
+	 */
+	private static class AesCmac extends TagFunction
+	{
+		private final static int BLOCK_SIZE = 16;
+
+		private Cipher cipher = null;
+		private byte[] k1     = null;
+		private byte[] k2     = null;
+		private byte[] state  = new byte[BLOCK_SIZE];
+
+		public AesCmac(SecretKey key) throws GeneralSecurityException
+		{
+			this.cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			this.cipher.init(Cipher.ENCRYPT_MODE, key);
+
+			byte[] l = this.cipher.doFinal(new byte[BLOCK_SIZE]);
+			this.k1  = shift(l);
+			this.k2  = shift(this.k1);
+		}
+
+		/**
+		 * It doubles a block in GF(2^128), i.e. shifts it left by one bit and adds Rb = 0x87 if the highest bit was set.
+		 */
+		private static byte[] shift(byte[] block)
+		{
+			byte[] result = new byte[BLOCK_SIZE];
+			for (int i = 0; i < BLOCK_SIZE; i++)
+				result[i] = (byte) ((block[i] << 1) | ((i + 1 < BLOCK_SIZE) ? (block[i + 1] & 0xff) >>> 7 : 0));
+			if ((block[0] & 0x80) != 0)
+				result[BLOCK_SIZE - 1] ^= (byte) 0x87;
+			return result;
+		}
+
+		public byte[] tag(byte[] message)
+		{
+			int blocks       = Math.max(1, (message.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+			boolean complete = message.length > 0 && message.length % BLOCK_SIZE == 0;
+
+			try
+			{
+				for (int i = 0; i < BLOCK_SIZE; i++)
+					this.state[i] = 0;
+
+				for (int b = 0; b < blocks - 1; b++)
+				{
+					for (int i = 0; i < BLOCK_SIZE; i++)
+						this.state[i] ^= message[b * BLOCK_SIZE + i];
+					this.cipher.doFinal(this.state, 0, BLOCK_SIZE, this.state, 0);
+				}
+
+				int last = (blocks - 1) * BLOCK_SIZE;
+				if (complete == true)
+				{
+					for (int i = 0; i < BLOCK_SIZE; i++)
+						this.state[i] ^= message[last + i] ^ this.k1[i];
+				}
+				else
+				{
+					for (int i = 0; i < BLOCK_SIZE; i++)
+					{
+						int b = (last + i < message.length) ? message[last + i] : ((last + i == message.length) ? 0x80 : 0);
+						this.state[i] ^= b ^ this.k2[i];
+					}
+				}
+
+				return this.cipher.doFinal(this.state, 0, BLOCK_SIZE);
+			}
+			catch (GeneralSecurityException e)
+			{
+				System.out.println("Error occured when computing AES-CMAC.\n" + e.toString());
+				return null;
+			}
+		}
+
+		public int getTagLength()
+		{
+			return BLOCK_SIZE;
+		}
+
+		public String getAlgorithm()
+		{
+			return AES_CMAC;
+		}
+	}
+}
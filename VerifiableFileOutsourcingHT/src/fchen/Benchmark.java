@@ -1,5 +1,8 @@
 package fchen;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.javamex.classmexer.*;
 
 /**
@@ -25,10 +28,26 @@ public class Benchmark
     private int collisionCount[][] = null; // number of collisions for existing and non-existing files,
                                           // indexed by 0, 1, respectively.
     private String directory;
+    private String tagAlgorithm = TagFunction.HMAC_SHA256; // the MAC algorithm; see TagFunction
+    private boolean compactProof = false; // whether the proofs carry compact authentication paths
+    private boolean exactLeafCount = false; // whether the hash tree has the real number of slots instead of a power of two
+    private int cuckooTables     = 0;     // 0: h_1, h_2 and the probing hashes; d >= 2: cuckoo hashing with d tables
+    private double loadFactor    = 0.1;   // the ratio of files to leaves
+    private boolean sparseTree   = false; // whether the files are the keys of a sparse Merkle tree
+    private int arity            = 2;     // the fan-out of the hash tree
+    private int cachedLevels     = 0;     // the number of top levels of the hash tree which the verifier keeps
+    private int proofCacheSize   = 0;     // the number of proofs which the cloud keeps for repeated queries
+    private boolean versioned    = false; // whether searches read immutable versions of the hash tree without a lock
+    private volatile boolean stopped = false; // ends the threads of a concurrent run
 
     public final static int LOOP_TIMES = 40; // we run the performance
 					     // evaluation for such times and
 					     // then average the result.
+    public final static int CONCURRENT_MILLIS = 5000; // the length of a
+						      // concurrent run
+    public final static int WRITER_WINDOW = 64; // the files which the writer of
+						// a concurrent run has added
+						// and not removed yet
 
     public Benchmark(String directory)
     {
@@ -49,6 +68,12 @@ public class Benchmark
 		this.collisionCount[i][j] = 0;
     }
 
+    public Benchmark(String directory, String tagAlgorithm)
+    {
+	this(directory);
+	this.tagAlgorithm = tagAlgorithm;
+    }
+
     public long getStorage()
     {
 	return storage;
@@ -69,6 +94,106 @@ public class Benchmark
 	this.time = time;
     }
 
+    public String getTagAlgorithm()
+    {
+	return tagAlgorithm;
+    }
+
+    public void setTagAlgorithm(String tagAlgorithm)
+    {
+	this.tagAlgorithm = tagAlgorithm;
+    }
+
+    public boolean isCompactProof()
+    {
+	return compactProof;
+    }
+
+    public void setCompactProof(boolean compactProof)
+    {
+	this.compactProof = compactProof;
+    }
+
+    public boolean isExactLeafCount()
+    {
+	return exactLeafCount;
+    }
+
+    public void setExactLeafCount(boolean exactLeafCount)
+    {
+	this.exactLeafCount = exactLeafCount;
+    }
+
+    public int getCuckooTables()
+    {
+	return cuckooTables;
+    }
+
+    public void setCuckooTables(int cuckooTables)
+    {
+	this.cuckooTables = cuckooTables;
+    }
+
+    public int getArity()
+    {
+	return arity;
+    }
+
+    public void setArity(int arity)
+    {
+	this.arity = arity;
+    }
+
+    public int getCachedLevels()
+    {
+	return cachedLevels;
+    }
+
+    public void setCachedLevels(int cachedLevels)
+    {
+	this.cachedLevels = cachedLevels;
+    }
+
+    public int getProofCacheSize()
+    {
+	return proofCacheSize;
+    }
+
+    public void setProofCacheSize(int proofCacheSize)
+    {
+	this.proofCacheSize = proofCacheSize;
+    }
+
+    public boolean isVersioned()
+    {
+	return versioned;
+    }
+
+    public void setVersioned(boolean versioned)
+    {
+	this.versioned = versioned;
+    }
+
+    public boolean isSparseTree()
+    {
+	return sparseTree;
+    }
+
+    public void setSparseTree(boolean sparseTree)
+    {
+	this.sparseTree = sparseTree;
+    }
+
+    public double getLoadFactor()
+    {
+	return loadFactor;
+    }
+
+    public void setLoadFactor(double loadFactor)
+    {
+	this.loadFactor = loadFactor;
+    }
+
     public String getDirectory()
     {
 	return directory;
@@ -79,12 +204,30 @@ public class Benchmark
 	this.directory = directory;
     }
 
+    /**
+     * This function creates the outsourcing object with the parameters of
+     * this benchmark.
+     */
+    private HashTreeBasedOutsourcing newInstance()
+    {
+	HashTreeBasedOutsourcing instance = new HashTreeBasedOutsourcing(this.directory, this.loadFactor, this.tagAlgorithm);
+	instance.setCompactProof(this.compactProof);
+	instance.setExactLeafCount(this.exactLeafCount);
+	instance.setCuckooTables(this.cuckooTables);
+	instance.setSparseTree(this.sparseTree);
+	instance.setArity(this.arity);
+	instance.setCachedLevels(this.cachedLevels);
+	instance.setProofCacheSize(this.proofCacheSize);
+	instance.setVersioned(this.versioned);
+	return instance;
+    }
+
     /**
      * This is the main function to evaluate the performance.
      */
     public void run()
     {
-	HashTreeBasedOutsourcing instance = new HashTreeBasedOutsourcing(this.directory, 0.1);
+	HashTreeBasedOutsourcing instance = this.newInstance();
 
 	long startTime = 0, endTime = 0, startMemory = 0, endMemory = 0;
 
@@ -103,9 +246,12 @@ public class Benchmark
         // another more refined utility class is employed.
         // For the "MemoryUtil" class, please refer to "http://www.javamex.com/classmexer/api/".
 	if (this.storage == 0) 
-	    this.storage = MemoryUtil.deepMemoryUsageOf(instance.getHt());
+	    this.storage = MemoryUtil.deepMemoryUsageOf(this.sparseTree == true ? instance.getSparseTree() : instance.getHt());
 	
 	this.time[0] = endTime - startTime;
+	
+	if (this.cachedLevels > 0) // the verifier downloads the top levels once, before the first query
+	    instance.cacheTopLevels();
 
 	for (int i = 0; i < LOOP_TIMES; i++)
 	{
@@ -160,7 +306,14 @@ public class Benchmark
 	this.time[5] = (long) (this.time[5] / LOOP_TIMES);
 	this.proofSize[1] = (long) (this.proofSize[1] / LOOP_TIMES);
 
-	System.out.println("TEST CASE: " + this.directory + "\n");
+	System.out.println("TEST CASE: " + this.directory + ", MAC: " + this.tagAlgorithm + (this.compactProof == true ? ", compact proofs" : "")
+		+ (this.exactLeafCount == true ? ", exact leaf count" : "")
+		+ (this.cuckooTables > 0 ? ", " + this.cuckooTables + " cuckoo tables" : "")
+		+ (this.arity > 2 ? ", fan-out " + this.arity : "")
+		+ (this.cachedLevels > 0 ? ", top " + this.cachedLevels + " levels cached" : "")
+		+ (this.proofCacheSize > 0 ? ", " + this.proofCacheSize + " proofs cached" : "")
+		+ (this.versioned == true ? ", versioned hash tree" : "")
+		+ (this.sparseTree == true ? ", sparse Merkle tree" : ", load factor: " + this.loadFactor) + "\n");
 	System.out.println("storage is: " + this.storage + "Bytes");
 	System.out.println("time is: (ns)");
 	for (int i = 0; i < this.time.length; i++)
@@ -184,6 +337,110 @@ public class Benchmark
 	
     }
     
+    /**
+     * This function measures the search throughput under updates: 'readers'
+     * threads search random existing and non-existing files for
+     * CONCURRENT_MILLIS ms, while one writer thread keeps adding a new file
+     * and removing the one added WRITER_WINDOW files before. In the versioned
+     * mode, a reader pins the latest version with getVersion() before every
+     * search, and a sample of the proofs is verified against the versions
+     * which produced them once the run is over; otherwise a search takes the
+     * lock which the writer holds during an update. The tree is rebuilt in the
+     * background when the leaves of the removed files pile up; see
+     * setGrowthThreshold().
+     * 
+     * @param readers
+     *            - The number of reader threads
+     */
+    public void runConcurrent(int readers)
+    {
+	final HashTreeBasedOutsourcing instance = this.newInstance();
+	instance.setGrowthThreshold(Math.min(2 * this.loadFactor, (1 + this.loadFactor) / 2));
+	instance.prepareOutsource();
+	instance.outsource();
+
+	final byte[][] queries = new byte[1024][];
+	for (int i = 0; i < queries.length; i++)
+	    queries[i] = instance.query(i % 2 == 0 ? instance.getRandomExistingFile() : instance.getRandomNonExistingFile());
+
+	final long[] searches       = new long[readers];
+	final long[] updates        = new long[1];
+	final List<Object[]> sample = new ArrayList<Object[]>(); // query, proof and version
+	Thread[] threads            = new Thread[readers + 1];
+
+	for (int t = 0; t < readers; t++)
+	{
+	    final int reader = t;
+	    threads[t] = new Thread(new Runnable()
+	    {
+		public void run()
+		{
+		    int i = reader;
+		    while (Benchmark.this.stopped == false)
+		    {
+			byte[] query = queries[i++ % queries.length];
+			if (instance.isVersioned() == true)
+			{
+			    VersionedHashTree version = instance.getVersion();
+			    ProofData proof           = instance.search(version, query);
+			    if (searches[reader] % 64 == 0)
+				synchronized (sample)
+				{
+				    sample.add(new Object[] { query, proof, version });
+				}
+			}
+			else
+			    instance.search(query);
+			searches[reader]++;
+		    }
+		}
+	    });
+	}
+	threads[readers] = new Thread(new Runnable()
+	{
+	    public void run()
+	    {
+		for (long i = 0; Benchmark.this.stopped == false; i++)
+		{
+		    instance.addFile("concurrent" + i);
+		    if (i >= WRITER_WINDOW)
+			instance.removeFile("concurrent" + (i - WRITER_WINDOW));
+		    updates[0]++;
+		}
+	    }
+	});
+
+	this.stopped = false;
+	for (Thread thread : threads)
+	    thread.start();
+	try
+	{
+	    Thread.sleep(CONCURRENT_MILLIS);
+	    this.stopped = true;
+	    for (Thread thread : threads)
+		thread.join();
+	} catch (InterruptedException e)
+	{
+	    System.out.println("Error occured when waiting for the concurrent run.");
+	    return;
+	}
+
+	long total = 0;
+	for (int t = 0; t < readers; t++)
+	    total = total + searches[t];
+	int failed = 0;
+	for (Object[] item : sample)
+	    if (instance.verify((byte[]) item[0], (ProofData) item[1], (VersionedHashTree) item[2]) == false)
+		failed++;
+
+	System.out.println("CONCURRENT TEST CASE: " + this.directory + ", " + readers + " readers and 1 writer"
+		+ (this.versioned == true ? ", versioned hash tree" : ", one lock") + ", " + Runtime.getRuntime().availableProcessors() + " processors\n");
+	System.out.println("searches per second: " + total * 1000 / CONCURRENT_MILLIS);
+	System.out.println("updates per second: " + updates[0] * 1000 / CONCURRENT_MILLIS);
+	if (this.versioned == true)
+	    System.out.println("proofs verified against their versions: " + (sample.size() - failed) + " of " + sample.size());
+    }
+
     private void computeStatistic(int data[])
     {
 	int min = data[0], max = data[0], sum = 0;
@@ -0,0 +1,69 @@
+package fchen;
+
+import java.security.*;
+
+/**
+ * This class keeps the cryptographic primitives of the verifiers, one per
+ * thread, so that a verification neither looks up a provider nor creates a
+ * MessageDigest; and the verifiers can be called from many threads at once,
+ * since no two threads share an instance. The tag functions are kept per
+ * thread by TagFunction.perThread().
+ *
+ * A primitive is reset when it is handed out. It must not be kept across a
+ * call of another function which may use the pool on the same thread.
+ *
+ * @author Chen, Fei (https://sites.google.com/site/chenfeiorange/)
+ * @author Email: chenfeiorange@163.com
+ */
+public class CryptoPool
+{
+    private final static ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>()
+    {
+	protected MessageDigest initialValue()
+	{
+	    try
+	    {
+		return MessageDigest.getInstance("SHA-256");
+	    } catch (Exception e)
+	    {
+		System.out.println("get SHA-256 instance error - crypto pool");
+		System.out.println(e);
+		return null;
+	    }
+	}
+    };
+
+    private final static ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>()
+    {
+	protected byte[] initialValue()
+	{
+	    return new byte[HashTree.HASH_LENGTH];
+	}
+    };
+
+    private CryptoPool()
+    {
+    }
+
+    /**
+     * This function gets the SHA-256 digest of the current thread.
+     *
+     * @return - The digest, reset
+     */
+    public static MessageDigest sha256()
+    {
+	MessageDigest md = SHA256.get();
+	md.reset();
+	return md;
+    }
+
+    /**
+     * This function gets a buffer of HashTree.HASH_LENGTH bytes of the current
+     * thread, into which the verifiers compute their intermediate hash
+     * values.
+     */
+    static byte[] scratch()
+    {
+	return SCRATCH.get();
+    }
+}
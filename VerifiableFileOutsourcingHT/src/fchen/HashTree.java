@@ -1,27 +1,104 @@
 package fchen;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.*;
 
 /**
- * This class implements the hash authentication tree primitive. The hash tree
- * is stored in an array and indexed according to the node position in the
- * complete binary tree. The root node is stored at index 0;
+ * This class implements the hash authentication tree primitive. The nodes
+ * are stored in an array level by level, from the root down and from the left
+ * to the right within a level; the root node is stored at index 0, and the
+ * first node of every level follows the last node of the level above.
+ * 
+ * The number of leaf nodes need not be a power of two. The tree is then left
+ * balanced, as in RFC 6962: level l above the leaves has ceil(n / 2^l) nodes,
+ * node j of a level has the children 2j and 2j + 1 on the level below, and a
+ * last node without a right sibling is copied to the level above unhashed.
+ * The levels are stored from the root down, so for 2^h leaves the layout is
+ * exactly the one of the complete binary tree.
+ * 
+ * A tree may also have a fan-out k above 2 (the arity): node j then has the
+ * children kj to kj + k - 1, i.e. the hash value of their concatenation, and
+ * level l has ceil(n / k^l) nodes. The last node of a level may have fewer
+ * children; a single child is copied up. A tree of 2^24 leaves has 24 levels
+ * with k = 2 but only 6 with k = 16, i.e. 6 hashes per verification, while a
+ * compact authentication path grows from 24 to 90 siblings.
+ * 
+ * All the nodes are kept in one contiguous byte array: node i occupies the
+ * bytes from i * HASH_LENGTH to (i + 1) * HASH_LENGTH. The leaf nodes are kept
+ * in the same way in another byte array. There is no array object per node,
+ * and neighbouring nodes lie next to each other in memory. A tree has at most
+ * 2^26 - 1 nodes, i.e. height 25, which is the size limit of a Java array.
+ * 
+ * A tree can be saved to a file with save() and opened again with open(),
+ * which maps the file into memory instead of reading or rehashing it. The
+ * file holds a header of FILE_HEADER_LENGTH bytes (FILE_MAGIC, the format
+ * version, the number of leaves, the length of a leaf, the arity and the
+ * placement, as big-endian ints), then all the nodes in the same layout as
+ * above, then all the leaf nodes. The placement is a number which the tree
+ * keeps for its user, e.g. how the leaves have been placed, so that a file is
+ * not opened with another one. A file of version 1 has neither the arity nor
+ * the placement; it is opened as a binary tree with the placement -1. A
+ * mapped tree reads its nodes straight from the mapping. The file is mapped
+ * in chunks of CHUNK_SIZE bytes, since a mapping cannot exceed 2GB, and
+ * read-only unless the tree is opened for updates; then updateLeaf() writes
+ * through to the file.
  * 
  * @author Chen, Fei (https://sites.google.com/site/chenfeiorange/)
  * @author First draft on 12-03-2013. License: GNU GPL
  * @author Email: chenfeiorange@163.com
  */
-public class HashTree
+public class HashTree implements HashTreeView
 {
-    private byte[][] ht = null; // first dimension stores all nodes; second
-				// dimension stores the hash value
+    public final static int HASH_LENGTH = 32; // SHA-256
+
+    private byte[] ht = null; // all nodes; node i is stored at i * HASH_LENGTH
     private int treeSize = 0;
     private int treeHeight = 0;
-    private byte[][] leaf = null; // leaf nodes are with format (index,
-				  // filename); note that the leaf nodes are
-				  // longer than the hash value, i.e. this.ht
+    private int[] count = null; // number of nodes of every level; level 0
+				// holds the leaves
+    private int[] offset = null; // index of the first node of every level
+    private byte[] leaf = null; // leaf nodes are with format (index,
+				// filename); leaf i is stored at i *
+				// leafLength; note that the leaf nodes could
+				// be longer than the hash value
+    private int leafLength = 0;
+    private int arity = 2; // number of children of a node
+    private int placement = 0; // kept for the user of the tree and saved in
+			       // the file header; -1 if it is unknown
     private MessageDigest md = null; // SHA-256 is used here
+    private MappedByteBuffer[] mappedHt = null; // all nodes in chunks, if
+						// the tree has been opened
+						// from a file; 'ht' is null
+						// then
+    private MappedByteBuffer[] mappedLeaf = null; // leaf nodes in chunks, if
+						  // the tree has been opened
+						  // from a file; 'leaf' is
+						  // null then
+    private boolean readOnly = false; // whether the mappings are read-only;
+				      // see open()
+
+    public final static int FILE_MAGIC = 0x48545245; // "HTRE"
+    public final static int FILE_VERSION = 2; // version 1 has no arity and is
+					      // read as a binary tree
+    public final static int FILE_HEADER_LENGTH = 24;
+    private final static int CHUNK_SIZE = 1 << 30; // a mapping cannot exceed
+						    // 2GB; a chunk also maps
+						    // the first bytes of the
+						    // next one, so that a node
+						    // or a leaf lies in the
+						    // chunk where it starts
+
+    private final static int SUBTREE_HEIGHT = 12; // a subtree of up to 2^12,
+						  // i.e. 4096 leaves, is built
+						  // serially by one worker
 
     /**
      * This function constructs the hash authentication tree using the leaf nod
@@ -35,81 +112,881 @@ public class HashTree
      */
     public HashTree(int treeHeight, byte[][] leaf)
     {
-	this.treeHeight = treeHeight;
-	this.treeSize   = 2 * (int) Math.pow(2, this.treeHeight) - 1; 
-	// complete binary tree
-	this.leaf       = leaf;
+	this(treeHeight, flatten(leaf), leaf[0].length);
+    }
+
+    /**
+     * This function constructs the hash authentication tree using the leaf
+     * nodes provided in a contiguous array, where leaf i is stored at i *
+     * leafLength. The array is used as it is and not copied.
+     * 
+     * @param treeHeight
+     *            - The height of the tree
+     * @param leaf
+     *            - The leaf nodes
+     * @param leafLength
+     *            - The length of a leaf node
+     */
+    public HashTree(int treeHeight, byte[] leaf, int leafLength)
+    {
+	this.init((int) Math.pow(2, treeHeight), leaf, leafLength);
+
+	// construct the bottom level of the hash tree
+	for (int i = 0; i < this.count[0]; i++)
+	    this.hashLeaf(i, this.md);
+    }
+
+    /**
+     * This function constructs the hash authentication tree with an arbitrary
+     * number of leaf nodes, i.e. leaf.length / leafLength; see the description
+     * of the class. The array is used as it is and not copied.
+     * 
+     * @param leaf
+     *            - The leaf nodes; leaf i is stored at i * leafLength
+     * @param leafLength
+     *            - The length of a leaf node
+     */
+    public HashTree(byte[] leaf, int leafLength)
+    {
+	this.init(leaf.length / leafLength, leaf, leafLength);
+
+	for (int i = 0; i < this.count[0]; i++)
+	    this.hashLeaf(i, this.md);
+    }
+
+    /**
+     * This function constructs the hash authentication tree using the leaf
+     * nodes provided and builds it completely in parallel, i.e. the bottom
+     * level and all the levels above it; see build(int). There is no need to
+     * call build() afterwards.
+     * 
+     * @param treeHeight
+     *            - The height of the tree
+     * @param leaf
+     *            - The leaf nodes
+     * @param parallelism
+     *            - The number of worker threads
+     */
+    public HashTree(int treeHeight, byte[][] leaf, int parallelism)
+    {
+	this(treeHeight, flatten(leaf), leaf[0].length, parallelism);
+    }
+
+    /**
+     * This function constructs the hash authentication tree using the leaf
+     * nodes provided in a contiguous array and builds it completely in
+     * parallel; see HashTree(int, byte[][], int).
+     * 
+     * @param treeHeight
+     *            - The height of the tree
+     * @param leaf
+     *            - The leaf nodes; leaf i is stored at i * leafLength
+     * @param leafLength
+     *            - The length of a leaf node
+     * @param parallelism
+     *            - The number of worker threads
+     */
+    public HashTree(int treeHeight, byte[] leaf, int leafLength, int parallelism)
+    {
+	this.init((int) Math.pow(2, treeHeight), leaf, leafLength);
+	this.build(parallelism);
+    }
+
+    /**
+     * This function constructs the hash authentication tree with an arbitrary
+     * number of leaf nodes, i.e. leaf.length / leafLength, and builds it
+     * completely in parallel; see HashTree(int, byte[][], int).
+     * 
+     * @param leaf
+     *            - The leaf nodes; leaf i is stored at i * leafLength
+     * @param leafLength
+     *            - The length of a leaf node
+     * @param parallelism
+     *            - The number of worker threads
+     */
+    public HashTree(byte[] leaf, int leafLength, int parallelism)
+    {
+	this.init(leaf.length / leafLength, leaf, leafLength);
+	this.build(parallelism);
+    }
+
+    /**
+     * This function constructs a hash authentication tree of a given fan-out
+     * with an arbitrary number of leaf nodes, i.e. leaf.length / leafLength,
+     * and builds it completely; see the description of the class. The array
+     * is used as it is and not copied.
+     * 
+     * @param leaf
+     *            - The leaf nodes; leaf i is stored at i * leafLength
+     * @param leafLength
+     *            - The length of a leaf node
+     * @param arity
+     *            - The number of children of a node, at least 2
+     * @param parallelism
+     *            - The number of worker threads; 1 for a serial build
+     */
+    public HashTree(byte[] leaf, int leafLength, int arity, int parallelism)
+    {
+	this.arity = arity;
+	this.init(leaf.length / leafLength, leaf, leafLength);
+	if (parallelism > 1)
+	    this.build(parallelism);
+	else
+	{
+	    for (int i = 0; i < this.count[0]; i++)
+		this.hashLeaf(i, this.md);
+	    this.build();
+	}
+    }
+
+    /**
+     * This constructor is used by open().
+     */
+    private HashTree()
+    {
+    }
+
+    private void init(int leafCount, byte[] leaf, int leafLength)
+    {
+	this.layout(leafCount, leafLength);
+	this.leaf = leaf;
+	ht = new byte[this.treeSize * HASH_LENGTH];
+    }
+
+    private void layout(int leafCount, int leafLength)
+    {
+	this.treeHeight = height(leafCount, this.arity);
+	this.count      = levelSizes(leafCount, this.arity);
+	this.offset     = new int[this.treeHeight + 1];
+	for (int l = this.treeHeight - 1; l >= 0; l--) // the root level comes first
+	    this.offset[l] = this.offset[l + 1] + this.count[l + 1];
+	this.treeSize   = this.offset[0] + this.count[0];
+	this.leafLength = leafLength;
 	
 	try
 	{
 	    this.md = MessageDigest.getInstance("SHA-256");
 	} catch (Exception e)
 	{
-	    System.out.println("get SHA-256 instance error");
+	    System.out.println("get SHA-256 instance error");
+	    System.out.println(e);
+	}
+    }
+
+    /**
+     * This function writes the tree to a file, which can be opened again
+     * with open().
+     * 
+     * @param file
+     *            - The path of the file; it is overwritten
+     * @return - true if the tree has been written; false if an I/O error
+     *         occured
+     */
+    public boolean save(String file)
+    {
+	ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+	header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(this.count[0]).putInt(this.leafLength).putInt(this.arity)
+		.putInt(this.placement);
+	header.flip();
+
+	ByteBuffer[] nodes  = (this.ht != null) ? new ByteBuffer[] { ByteBuffer.wrap(this.ht) }
+		: this.views(this.mappedHt, (long) this.treeSize * HASH_LENGTH);
+	ByteBuffer[] leaves = (this.leaf != null)
+		? new ByteBuffer[] { ByteBuffer.wrap(this.leaf, 0, this.count[0] * this.leafLength) }
+		: this.views(this.mappedLeaf, (long) this.count[0] * this.leafLength);
+
+	try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+		StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+	{
+	    ByteBuffer[] all = new ByteBuffer[1 + nodes.length + leaves.length];
+	    all[0] = header;
+	    System.arraycopy(nodes, 0, all, 1, nodes.length);
+	    System.arraycopy(leaves, 0, all, 1 + nodes.length, leaves.length);
+	    while (all[all.length - 1].hasRemaining() == true)
+		channel.write(all);
+	    channel.force(false);
+	} catch (IOException e)
+	{
+	    System.out.println("Error occured when saving the hash tree to " + file + ".");
+	    System.out.println(e);
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * This function opens a tree written by save() for reading only; see
+     * open(String, boolean).
+     */
+    public static HashTree open(String file)
+    {
+	return open(file, false);
+    }
+
+    /**
+     * This function opens a tree written by save(). The file is mapped into
+     * memory, so nothing is read or hashed until a node is used, and the
+     * nodes are not copied onto the Java heap.
+     * 
+     * @param file
+     *            - The path of the file
+     * @param writable
+     *            - true if the tree is updated; an update of a leaf node then
+     *            changes the file. Otherwise the file is mapped read-only and
+     *            updateLeaf() must not be called.
+     * @return - The hash tree; null if the file is not a hash tree file or an
+     *         I/O error occured
+     */
+    public static HashTree open(String file, boolean writable)
+    {
+	StandardOpenOption[] options = (writable == true)
+		? new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE }
+		: new StandardOpenOption[] { StandardOpenOption.READ };
+	try (FileChannel channel = FileChannel.open(Paths.get(file), options))
+	{
+	    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+	    while (header.hasRemaining() == true && channel.read(header) >= 0)
+		;
+	    header.flip();
+	    int version = (header.remaining() < 16 || header.getInt() != FILE_MAGIC) ? 0 : header.getInt();
+	    if (version != 1 && version != FILE_VERSION)
+	    {
+		System.out.println("Error occured when opening the hash tree file " + file + ": wrong format.");
+		return null;
+	    }
+
+	    int headerLength = (version == 1) ? 16 : FILE_HEADER_LENGTH;
+	    if (header.remaining() < headerLength - 8)
+	    {
+		System.out.println("Error occured when opening the hash tree file " + file + ": wrong size.");
+		return null;
+	    }
+
+	    HashTree result  = new HashTree();
+	    int leafCount    = header.getInt();
+	    int leafLength   = header.getInt();
+	    result.arity     = (version == 1) ? 2 : header.getInt();
+	    result.placement = (version == 1) ? -1 : header.getInt();
+	    if (result.arity < 2 || leafCount < 1)
+	    {
+		System.out.println("Error occured when opening the hash tree file " + file + ": wrong format.");
+		return null;
+	    }
+	    result.layout(leafCount, leafLength);
+	    long nodeBytes  = (long) result.treeSize * HASH_LENGTH;
+	    long leafBytes  = (long) result.count[0] * result.leafLength;
+	    if (channel.size() != headerLength + nodeBytes + leafBytes)
+	    {
+		System.out.println("Error occured when opening the hash tree file " + file + ": wrong size.");
+		return null;
+	    }
+
+	    FileChannel.MapMode mode = (writable == true) ? FileChannel.MapMode.READ_WRITE
+		    : FileChannel.MapMode.READ_ONLY;
+	    result.readOnly   = (writable == false);
+	    result.mappedHt   = map(channel, mode, headerLength, nodeBytes, result.arity * HASH_LENGTH);
+	    result.mappedLeaf = map(channel, mode, headerLength + nodeBytes, leafBytes, result.leafLength);
+	    return result; // the mappings stay valid after the channel is closed
+	} catch (IOException e)
+	{
+	    System.out.println("Error occured when opening the hash tree file " + file + ".");
+	    System.out.println(e);
+	    return null;
+	}
+    }
+
+    /**
+     * This function maps 'length' bytes of a file from 'start' on in chunks;
+     * see CHUNK_SIZE.
+     * 
+     * @param overlap
+     *            - The length of the longest node or leaf read at once, which
+     *            every chunk also maps from the next one
+     */
+    private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long start, long length,
+	    int overlap) throws IOException
+    {
+	MappedByteBuffer[] result = new MappedByteBuffer[(int) (length / CHUNK_SIZE) + 1];
+	for (int i = 0; i < result.length; i++)
+	{
+	    long first = (long) i * CHUNK_SIZE;
+	    result[i]  = channel.map(mode, start + first, Math.min(length - first, (long) CHUNK_SIZE + overlap));
+	}
+	return result;
+    }
+
+    /**
+     * This function gets views of the chunks of a mapping which do not
+     * overlap, i.e. the first CHUNK_SIZE bytes of every chunk.
+     */
+    private ByteBuffer[] views(MappedByteBuffer[] chunks, long length)
+    {
+	ByteBuffer[] result = new ByteBuffer[chunks.length];
+	for (int i = 0; i < chunks.length; i++)
+	{
+	    long first = (long) i * CHUNK_SIZE;
+	    result[i]  = this.slice(chunks, first, (int) Math.min(length - first, CHUNK_SIZE));
+	}
+	return result;
+    }
+
+    /**
+     * This function writes the changes of a tree opened by open() to the
+     * disk.
+     */
+    public void force()
+    {
+	if (this.mappedHt != null && this.readOnly == false)
+	{
+	    for (MappedByteBuffer chunk : this.mappedLeaf)
+		chunk.force();
+	    for (MappedByteBuffer chunk : this.mappedHt)
+		chunk.force();
+	}
+    }
+
+    /**
+     * This function checks whether the tree has been opened from a file.
+     */
+    public boolean isMapped()
+    {
+	return this.mappedHt != null;
+    }
+
+    /**
+     * This function checks whether the tree has been opened from a file for
+     * reading only, so that it cannot be updated.
+     */
+    public boolean isReadOnly()
+    {
+	return this.readOnly;
+    }
+
+    /**
+     * This function copies leaf nodes of the same length into one contiguous
+     * array.
+     */
+    private static byte[] flatten(byte[][] leaf)
+    {
+	int length    = leaf[0].length;
+	byte[] result = new byte[leaf.length * length];
+	for (int i = 0; i < leaf.length; i++)
+	    System.arraycopy(leaf[i], 0, result, i * length, length);
+	return result;
+    }
+
+    /**
+     * This function computes the height of a tree with 'leafCount' leaves and
+     * fan-out 'arity', i.e. the smallest h with arity^h >= leafCount.
+     */
+    private static int height(int leafCount, int arity)
+    {
+	int result = 0;
+	for (long span = 1; span < leafCount; span = span * arity)
+	    result++;
+	return result;
+    }
+
+    /**
+     * This function computes the number of nodes of every level of a tree
+     * with 'leafCount' leaves and fan-out 'arity', from the leaves up to the
+     * root.
+     */
+    static int[] levelSizes(int leafCount, int arity)
+    {
+	int[] result = new int[height(leafCount, arity) + 1];
+	result[0]    = leafCount;
+	for (int l = 1; l < result.length; l++)
+	    result[l] = (result[l - 1] + arity - 1) / arity;
+	return result;
+    }
+
+    /**
+     * This function sets leaf node 'index' of the tree to hash(index,
+     * leaf[index]).
+     */
+    private void hashLeaf(int index, MessageDigest md)
+    {
+	if (this.mappedHt != null)
+	{
+	    md.update(int2byteArray(index));
+	    md.update(this.slice(this.mappedLeaf, (long) index * this.leafLength, this.leafLength));
+	    this.slice(this.mappedHt, (long) (this.offset[0] + index) * HASH_LENGTH, HASH_LENGTH).put(md.digest());
+	    return;
+	}
+
+	try
+	{
+	    md.update(int2byteArray(index));
+	    md.update(this.leaf, index * this.leafLength, this.leafLength);
+	    md.digest(this.ht, (this.offset[0] + index) * HASH_LENGTH, HASH_LENGTH);
+	} catch (DigestException e)
+	{
+	    System.out.println("hash tree digest error");
+	    System.out.println(e);
+	}
+    }
+
+    /**
+     * This function sets node j of level l to hash(left child, right child),
+     * or to its left child if it has no right child. With a fan-out k, it is
+     * the hash value of all its children, which are adjacent.
+     */
+    private void hashNode(int l, int j, MessageDigest md)
+    {
+	int child    = this.offset[l - 1] + this.arity * j;
+	int node     = this.offset[l] + j;
+	int children = Math.min(this.arity, this.count[l - 1] - this.arity * j);
+
+	if (this.mappedHt != null)
+	{
+	    ByteBuffer source = this.slice(this.mappedHt, (long) child * HASH_LENGTH, children * HASH_LENGTH);
+	    ByteBuffer target = this.slice(this.mappedHt, (long) node * HASH_LENGTH, HASH_LENGTH);
+	    if (children == 1) // no right child
+		target.put(source);
+	    else
+	    {
+		md.update(source);
+		target.put(md.digest());
+	    }
+	    return;
+	}
+
+	if (children == 1) // no right child
+	{
+	    System.arraycopy(this.ht, child * HASH_LENGTH, this.ht, node * HASH_LENGTH, HASH_LENGTH);
+	    return;
+	}
+
+	try
+	{
+	    md.update(this.ht, child * HASH_LENGTH, children * HASH_LENGTH); // the children are adjacent
+	    md.digest(this.ht, node * HASH_LENGTH, HASH_LENGTH);
+	} catch (DigestException e)
+	{
+	    System.out.println("hash tree digest error");
+	    System.out.println(e);
+	}
+    }
+
+    /**
+     * This function checks whether an authentication path is correct.
+     * 
+     * @param authenticationPath
+     *            - An authentication path from the bottom to the root. The root
+     *            value is at the end of the array.
+     * @param root
+     *            - The root value of an hash tree.
+     * @return - If it is correct, return true; else false.
+     */
+    public static boolean verify(byte[][] authenticationPath, byte[] root)
+    {
+	MessageDigest md = CryptoPool.sha256();
+	byte[] temp      = CryptoPool.scratch();
+	int height       = (authenticationPath.length - 1) / 2;
+	int cheatFlag    = 0;
+
+	try
+	{
+	    for (int i = 0; i < height - 1; i++) // calculate hash values from
+						 // the bottom to the top
+	    {
+		md.update(authenticationPath[2 * i]);
+		md.update(authenticationPath[2 * i + 1]);
+		md.digest(temp, 0, HASH_LENGTH);
+
+		if (Arrays.equals(temp, authenticationPath[2 * i + 2]) == false
+			&& Arrays.equals(temp, authenticationPath[2 * i + 3]) == false)
+		    cheatFlag = cheatFlag + 1;
+	    }
+
+	    md.update(authenticationPath[2 * height - 2]);
+	    md.update(authenticationPath[2 * height - 1]);
+	    md.digest(temp, 0, HASH_LENGTH);
+	} catch (DigestException e)
+	{
+	    System.out.println("hash tree digest error - static verify");
+	    System.out.println(e);
+	    return false;
+	}
+
+	if (Arrays.equals(temp, authenticationPath[2 * height]) == false)
+	    cheatFlag = cheatFlag + 1;
+
+	if (Arrays.equals(root, authenticationPath[2 * height]) == false)
+	    cheatFlag = cheatFlag + 1;
+
+	if (cheatFlag == 0)
+	    return true;
+	else
+	    return false;
+    }
+
+    /**
+     * This function checks whether a compact authentication path is correct.
+     * The parent hash values are rebuilt from the leaf hash value and the
+     * siblings, and the last one must be the root.
+     * 
+     * @param leafHash
+     *            - The hash value of the leaf node, i.e. hash(index, leaf)
+     * @param directions
+     *            - Bit i is 1 if the node beside the i-th sibling is a right
+     *            child
+     * @param siblingPath
+     *            - The siblings from the bottom to the top; see
+     *            getSiblingPath()
+     * @param root
+     *            - The root value of an hash tree.
+     * @return - If it is correct, return true; else false.
+     */
+    public static boolean verify(byte[] leafHash, int directions, byte[][] siblingPath, byte[] root)
+    {
+	MessageDigest md = CryptoPool.sha256();
+	byte[] temp      = CryptoPool.scratch();
+	System.arraycopy(leafHash, 0, temp, 0, HASH_LENGTH); // leafHash may be
+							    // 'temp' itself
+
+	try
+	{
+	    for (int i = 0; i < siblingPath.length; i++)
+	    {
+		if (((directions >>> i) & 1) == 1) // right child
+		{
+		    md.update(siblingPath[i]);
+		    md.update(temp);
+		} else
+		{
+		    md.update(temp);
+		    md.update(siblingPath[i]);
+		}
+		md.digest(temp, 0, HASH_LENGTH);
+	    }
+	} catch (DigestException e)
+	{
+	    System.out.println("hash tree digest error - static verify");
+	    System.out.println(e);
+	    return false;
+	}
+
+	return Arrays.equals(temp, root);
+    }
+
+    /**
+     * This function checks whether a compact authentication path of a tree of
+     * any fan-out is correct. The verifier knows the number of leaf nodes and
+     * the fan-out, so the position of the path within every group of
+     * children follows from the index, and no direction bitmask is needed.
+     * For a binary tree it accepts the same paths as verify(byte[], int,
+     * byte[][], byte[]).
+     * 
+     * @param leafCount
+     *            - The number of leaf nodes of the hash tree
+     * @param arity
+     *            - The fan-out of the hash tree
+     * @param index
+     *            - The index of the leaf node
+     * @param leafHash
+     *            - The hash value of the leaf node, i.e. hash(index, leaf)
+     * @param siblingPath
+     *            - The siblings from the bottom to the top; see
+     *            getSiblingPath()
+     * @param root
+     *            - The root value of an hash tree.
+     * @return - If it is correct, return true; else false.
+     */
+    public static boolean verify(int leafCount, int arity, int index, byte[] leafHash, byte[][] siblingPath, byte[] root)
+    {
+	return climb(leafCount, arity, index, leafHash, siblingPath, 1) == 0
+		&& Arrays.equals(CryptoPool.scratch(), root);
+    }
+
+    /**
+     * This function checks whether a truncated compact authentication path is
+     * correct, i.e. one which stops below a level that the verifier has
+     * cached and authenticated once; see getSiblingPath(int, int) and
+     * verifyLevel(). The node rebuilt from the path must be the cached node
+     * above the leaf.
+     * 
+     * @param leafCount
+     *            - The number of leaf nodes of the hash tree
+     * @param arity
+     *            - The fan-out of the hash tree
+     * @param index
+     *            - The index of the leaf node
+     * @param leafHash
+     *            - The hash value of the leaf node, i.e. hash(index, leaf)
+     * @param siblingPath
+     *            - The siblings from the bottom up to the cached level
+     * @param cache
+     *            - All the nodes of the cached level, from the left to the
+     *            right; the root alone for a full path
+     * @return - If it is correct, return true; else false.
+     */
+    public static boolean verify(int leafCount, int arity, int index, byte[] leafHash, byte[][] siblingPath,
+	    byte[][] cache)
+    {
+	int position = climb(leafCount, arity, index, leafHash, siblingPath, cache.length);
+	return position >= 0 && Arrays.equals(CryptoPool.scratch(), cache[position]);
+    }
+
+    /**
+     * This function rebuilds the nodes above a leaf from a compact path of a
+     * tree of any fan-out, up to the level with 'stopSize' nodes. The node of
+     * that level is left in the scratch buffer of the current thread; see
+     * CryptoPool.
+     * 
+     * @return - The index of the node within that level, or -1 if the path
+     *         does not fit the tree
+     */
+    private static int climb(int leafCount, int arity, int index, byte[] leafHash, byte[][] siblingPath, int stopSize)
+    {
+	if (arity < 2 || index < 0 || index >= leafCount)
+	    return -1;
+
+	MessageDigest md = CryptoPool.sha256();
+	byte[] temp      = CryptoPool.scratch();
+	System.arraycopy(leafHash, 0, temp, 0, HASH_LENGTH); // leafHash may be
+							    // 'temp' itself
+
+	int k         = 0; // next sibling
+	int levelSize = leafCount;
+	try
+	{
+	    while (levelSize > stopSize)
+	    {
+		int first = index - index % arity;
+		int last  = Math.min(first + arity, levelSize);
+		if (last - first > 1) // otherwise the node is copied up
+		{
+		    for (int p = first; p < last; p++)
+		    {
+			if (p == index)
+			    md.update(temp);
+			else if (k == siblingPath.length)
+			    return -1;
+			else
+			    md.update(siblingPath[k++]);
+		    }
+		    md.digest(temp, 0, HASH_LENGTH);
+		}
+		index     = index / arity;
+		levelSize = (levelSize + arity - 1) / arity;
+	    }
+	} catch (DigestException e)
+	{
+	    System.out.println("hash tree digest error - static verify");
 	    System.out.println(e);
+	    return -1;
 	}
 
-	ht = new byte[this.treeSize][];
-	// construct the bottom level of the hash tree
-	int first  = (int) Math.pow(2, this.treeHeight) - 1;
-	int end    = this.treeSize;
-	for (int i = first; i < end; i++)
-	{	    
-	    this.md.update(this.int2byteArray(i - first));
-	    ht[i] = this.md.digest(leaf[i - first]);
-	}
+	if (k != siblingPath.length || levelSize != stopSize)
+	    return -1;
+	return index;
     }
 
     /**
-     * This function checks whether an authentication path is correct.
+     * This function checks whether all the nodes of one level of a tree of
+     * any fan-out lead to the root. A verifier which keeps this level needs
+     * the paths only up to it; see verify(int, int, int, byte[], byte[][],
+     * byte[][]).
      * 
-     * @param authenticationPath
-     *            - An authentication path from the bottom to the root. The root
-     *            value is at the end of the array.
+     * @param arity
+     *            - The fan-out of the hash tree
+     * @param nodes
+     *            - All the nodes of the level, from the left to the right;
+     *            see getLevel()
      * @param root
      *            - The root value of an hash tree.
      * @return - If it is correct, return true; else false.
      */
-    public static boolean verify(byte[][] authenticationPath, byte[] root)
+    public static boolean verifyLevel(int arity, byte[][] nodes, byte[] root)
     {
-	MessageDigest md = null;
+	MessageDigest md = CryptoPool.sha256();
+	int n            = nodes.length;
+	byte[] hashes    = new byte[n * HASH_LENGTH]; // node i at i * HASH_LENGTH
+
+	if (arity < 2 || n == 0)
+	    return false;
+	for (int i = 0; i < n; i++)
+	{
+	    if (nodes[i].length != HASH_LENGTH)
+		return false;
+	    System.arraycopy(nodes[i], 0, hashes, i * HASH_LENGTH, HASH_LENGTH);
+	}
+
 	try
 	{
-	    md = MessageDigest.getInstance("SHA-256");
-	} catch (Exception e)
+	    while (n > 1)
+	    {
+		int m = (n + arity - 1) / arity;
+		for (int j = 0; j < m; j++) // node j overwrites a child of a
+					    // group which is already hashed
+		{
+		    int children = Math.min(arity, n - arity * j);
+		    if (children == 1) // copied up
+			System.arraycopy(hashes, arity * j * HASH_LENGTH, hashes, j * HASH_LENGTH, HASH_LENGTH);
+		    else
+		    {
+			md.update(hashes, arity * j * HASH_LENGTH, children * HASH_LENGTH);
+			md.digest(hashes, j * HASH_LENGTH, HASH_LENGTH);
+		    }
+		}
+		n = m;
+	    }
+	} catch (DigestException e)
 	{
-	    System.out.println("get SHA-256 instance error - static verify");
+	    System.out.println("hash tree digest error - static verify");
 	    System.out.println(e);
+	    return false;
 	}
 
-	int height    = (authenticationPath.length - 1) / 2;
-	byte[] temp   = null;
-	int cheatFlag = 0;
+	if (root.length != HASH_LENGTH)
+	    return false;
+	for (int i = 0; i < HASH_LENGTH; i++)
+	    if (hashes[i] != root[i])
+		return false;
+	return true;
+    }
 
-	for (int i = 0; i < height - 1; i++) // calculate hash values from the
-					     // bottom to the top
-	{
-	    md.update(authenticationPath[2 * i]);
-	    temp = md.digest(authenticationPath[2 * i + 1]);
+    /**
+     * This function checks whether a multi-leaf proof is correct; see
+     * getMultiProof(). The hash values of the leaf nodes are computed, the
+     * parents are rebuilt level by level from them and from the nodes of the
+     * proof, and the last one must be the root. Every node is hashed once,
+     * even if it lies on the paths of several leaves.
+     * 
+     * @param leafCount
+     *            - The number of leaf nodes of the hash tree
+     * @param indices
+     *            - The indices of the leaf nodes, in increasing order
+     * @param leaf
+     *            - The leaf nodes, in the order of 'indices'
+     * @param proof
+     *            - The nodes of the proof
+     * @param root
+     *            - The root value of an hash tree.
+     * @return - If it is correct, return true; else false.
+     */
+    public static boolean verifyMultiProof(int leafCount, int[] indices, byte[][] leaf, byte[][] proof, byte[] root)
+    {
+	return verifyMultiProof(leafCount, 2, indices, leaf, proof, root);
+    }
 
-	    if (Arrays.equals(temp, authenticationPath[2 * i + 2]) == false
-		    && Arrays.equals(temp, authenticationPath[2 * i + 3]) == false)
-		cheatFlag = cheatFlag + 1;
-	}
+    /**
+     * This function checks whether a multi-leaf proof of a tree of any
+     * fan-out is correct; see verifyMultiProof(int, int[], byte[][],
+     * byte[][], byte[]).
+     * 
+     * @param arity
+     *            - The fan-out of the hash tree
+     */
+    public static boolean verifyMultiProof(int leafCount, int arity, int[] indices, byte[][] leaf, byte[][] proof,
+	    byte[] root)
+    {
+	return verifyMultiProof(leafCount, arity, indices, leaf, proof, new byte[][] { root });
+    }
 
-	md.update(authenticationPath[2 * height - 2]);
-	temp = md.digest(authenticationPath[2 * height - 1]);
+    /**
+     * This function checks whether a multi-leaf proof is correct which stops
+     * below a level that the verifier has cached; see getMultiProof(int[],
+     * int) and verifyLevel(). The nodes rebuilt from the proof must be the
+     * cached nodes above the leaves.
+     * 
+     * @param cache
+     *            - All the nodes of the cached level, from the left to the
+     *            right; the root alone for a full proof
+     */
+    public static boolean verifyMultiProof(int leafCount, int arity, int[] indices, byte[][] leaf, byte[][] proof,
+	    byte[][] cache)
+    {
+	MessageDigest md = CryptoPool.sha256();
 
-	if (Arrays.equals(temp, authenticationPath[2 * height]) == false)
-	    cheatFlag = cheatFlag + 1;
+	int n = indices.length;
+	if (n == 0 || leaf.length != n)
+	    return false;
 
-	if (Arrays.equals(root, authenticationPath[2 * height]) == false)
-	    cheatFlag = cheatFlag + 1;
+	int[] position = new int[n];
+	byte[] hashes  = new byte[n * HASH_LENGTH]; // the known nodes of the
+						    // current level; node i at
+						    // i * HASH_LENGTH
+	int levelSize  = leafCount; // number of nodes of the current level
 
-	if (cheatFlag == 0)
-	    return true;
-	else
+	try
+	{
+	    for (int i = 0; i < n; i++)
+	    {
+		if (indices[i] < 0 || indices[i] >= leafCount || (i > 0 && indices[i] <= indices[i - 1]))
+		    return false;
+		position[i] = indices[i];
+		updateInt(md, indices[i]);
+		md.update(leaf[i]);
+		md.digest(hashes, i * HASH_LENGTH, HASH_LENGTH);
+	    }
+
+	    int k = 0; // next node of the proof
+	    while (levelSize > cache.length)
+	    {
+		int m = 0; // number of nodes on the level above
+		for (int i = 0; i < n;)
+		{
+		    int group = position[i] / arity;
+		    int first = group * arity;
+		    int last  = Math.min(first + arity, levelSize);
+		    if (last - first == 1) // copied up
+			System.arraycopy(hashes, i * HASH_LENGTH, hashes, m * HASH_LENGTH, HASH_LENGTH);
+		    else
+		    {
+			for (int p = first; p < last; p++) // the known children of the group come first in 'hashes'
+			{
+			    if (i < n && position[i] == p)
+				md.update(hashes, (i++) * HASH_LENGTH, HASH_LENGTH);
+			    else if (k == proof.length)
+				return false;
+			    else
+				md.update(proof[k++]);
+			}
+			md.digest(hashes, m * HASH_LENGTH, HASH_LENGTH);
+		    }
+		    if (last - first == 1)
+			i++;
+		    position[m] = group;
+		    m++;
+		}
+		n         = m;
+		levelSize = (levelSize + arity - 1) / arity;
+	    }
+
+	    if (k != proof.length || levelSize != cache.length)
+		return false;
+	} catch (DigestException e)
+	{
+	    System.out.println("hash tree digest error - static verify");
+	    System.out.println(e);
 	    return false;
+	}
+
+	for (int i = 0; i < n; i++)
+	{
+	    byte[] node = cache[position[i]];
+	    if (node.length != HASH_LENGTH)
+		return false;
+	    for (int j = 0; j < HASH_LENGTH; j++)
+		if (hashes[i * HASH_LENGTH + j] != node[j])
+		    return false;
+	}
+	return true;
+    }
+
+    /**
+     * This function feeds an int to a digest in the byte order of
+     * int2byteArray(), without creating an array.
+     */
+    static void updateInt(MessageDigest md, int num)
+    {
+	md.update((byte) (num));
+	md.update((byte) (num >>> 8));
+	md.update((byte) (num >>> 16));
+	md.update((byte) (num >>> 24));
     }
 
     /**
@@ -118,17 +995,138 @@ public class HashTree
      */
     public void build()
     {
-	for (int height = this.treeHeight - 1; height >= 0; height--)
+	for (int l = 1; l <= this.treeHeight; l++)
+	    for (int j = 0; j < this.count[l]; j++)
+		this.hashNode(l, j, this.md);
+    }
+
+    /**
+     * This function builds the whole hash tree, including the bottom level, on
+     * a fork-join pool. The tree is split into independent subtrees: a subtree
+     * of height SUBTREE_HEIGHT is built serially from its leaves by one worker
+     * with its own digest, and the nodes above these subtrees are hashed once
+     * both of their children are done. Every node is hashed from the same
+     * input as in the serial build, so the root is byte-identical.
+     * 
+     * @param parallelism
+     *            - The number of worker threads
+     */
+    public void build(int parallelism)
+    {
+	ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+	try
+	{
+	    pool.invoke(new BuildTask(this.treeHeight, 0));
+	} finally
 	{
-	    int first = (int) Math.pow(2, height) - 1;
-	    int end   = first + (int) Math.pow(2, height);
+	    pool.shutdown();
+	}
+    }
 
-	    for (int i = first; i < end; i++)
+    /**
+     * This function builds the subtree rooted at node j of level l serially,
+     * from its leaves up.
+     * 
+     * @param l
+     *            - The level of the root of the subtree; the leaves are on
+     *            level 0
+     * @param j
+     *            - The position of the root of the subtree on its level
+     * @param md
+     *            - The digest of the calling worker
+     */
+    private void buildSubtree(int l, int j, MessageDigest md)
+    {
+	for (int k = 0; k <= l; k++)
+	{
+	    int span = (int) span(l - k);
+	    int from = j * span;
+	    int to   = Math.min((j + 1) * span, this.count[k]);
+	    for (int i = from; i < to; i++)
+	    {
+		if (k == 0)
+		    hashLeaf(i, md);
+		else
+		    hashNode(k, i, md);
+	    }
+	}
+    }
+
+    /**
+     * This function computes the number of leaf nodes below a node of level
+     * l, i.e. arity^l, up to 2^62.
+     */
+    private long span(int l)
+    {
+	long result = 1;
+	for (int i = 0; i < l && result < (1L << 62) / this.arity; i++)
+	    result = result * this.arity;
+	return result;
+    }
+
+    /**
+     * This class builds a subtree of the hash tree; see build(int).
+     */
+    private class BuildTask extends RecursiveAction
+    {
+	private static final long serialVersionUID = 1L;
+
+	private int level;
+	private int position;
+
+	public BuildTask(int level, int position)
+	{
+	    this.level    = level;
+	    this.position = position;
+	}
+
+	@Override
+	protected void compute()
+	{
+	    MessageDigest md = CryptoPool.sha256(); // one per worker thread
+
+	    if (span(this.level) <= (1 << SUBTREE_HEIGHT))
 	    {
-		this.md.update(ht[2 * i + 1]);
-		ht[i] = this.md.digest(ht[2 * i + 2]);
+		buildSubtree(this.level, this.position, md);
+		return;
 	    }
+
+	    ArrayList<BuildTask> children = new ArrayList<BuildTask>();
+	    for (int c = arity * this.position; c < Math.min(arity * (this.position + 1), count[this.level - 1]); c++)
+		children.add(new BuildTask(this.level - 1, c));
+	    invokeAll(children);
+
+	    hashNode(this.level, this.position, md);
+	}
+    }
+
+    /**
+     * This function changes one leaf node and rehashes only the nodes on the
+     * path from it to the root, i.e. treeHeight + 1 hashes instead of the
+     * whole tree.
+     * 
+     * @param index
+     *            - The index of the leaf node. It starts with 0.
+     * @param value
+     *            - The new value of the leaf node, of the length of a leaf
+     *            node
+     * @return - The new root hash value
+     */
+    public byte[] updateLeaf(int index, byte[] value)
+    {
+	if (this.mappedLeaf != null)
+	    this.slice(this.mappedLeaf, (long) index * this.leafLength, this.leafLength).put(value, 0, this.leafLength);
+	else
+	    System.arraycopy(value, 0, this.leaf, index * this.leafLength, this.leafLength);
+
+	this.hashLeaf(index, this.md);
+	for (int l = 1; l <= this.treeHeight; l++)
+	{
+	    index = index / this.arity;
+	    this.hashNode(l, index, this.md);
 	}
+
+	return this.getRoot();
     }
 
     /**
@@ -138,7 +1136,7 @@ public class HashTree
      */
     public byte[] getRoot()
     {
-	return ht[0];
+	return this.getNode(0);
     }
 
     /**
@@ -149,29 +1147,188 @@ public class HashTree
      *            - The index of the leaf node which is to be authenticated. It
      *            starts with 0.
      * @return - An authentication path from the bottom to the top, with
-     *         corresponding index becoming large
+     *         corresponding index becoming large. A level on which the path
+     *         has no sibling, which happens only if the number of leaves is
+     *         not a power of two, is left out. This format is only defined
+     *         for a binary tree; null is returned for a wider one.
      */
     public byte[][] getAuthenticationPath(int index)
     {
-	byte[][] result = new byte[2 * this.treeHeight + 1][];
+	ArrayList<byte[]> result = new ArrayList<byte[]>();
+	if (this.arity != 2)
+	{
+	    System.out.println("Error occured when getting an authentication path: the tree is not binary; use getSiblingPath().");
+	    return null;
+	}
 
-	if (index % 2 == 0)
-	    index = (int) Math.pow(2, this.treeHeight) - 1 + index;
-	else
-	    index = (int) Math.pow(2, this.treeHeight) - 1 + index - 1;
+	for (int l = 0; l < this.treeHeight; l++)
+	{
+	    if (index % 2 == 1 || index + 1 < this.count[l])
+	    {
+		int left = this.offset[l] + index - index % 2;
+		result.add(this.getNode(left));
+		result.add(this.getNode(left + 1));
+	    }
+	    index = index / 2;
+	}
+
+	result.add(this.getRoot());
+
+	return result.toArray(new byte[result.size()][]);
+    }
+
+    /**
+     * This function gets the compact authentication path for the node with
+     * index 'index': only the sibling at every level, without the nodes which
+     * the verifier can compute itself and without the root.
+     * 
+     * @param index
+     *            - The index of the leaf node which is to be authenticated. It
+     *            starts with 0.
+     * @return - The siblings from the bottom to the top; there are treeHeight
+     *         of them if the number of leaves is a power of two
+     */
+    public byte[][] getSiblingPath(int index)
+    {
+	return this.getSiblingPath(index, this.treeHeight);
+    }
+
+    /**
+     * This function gets the compact authentication path for the node with
+     * index 'index' up to a level which the verifier has cached; see
+     * getLevel() and verify(int, int, int, byte[], byte[][], byte[][]).
+     * 
+     * @param index
+     *            - The index of the leaf node which is to be authenticated. It
+     *            starts with 0.
+     * @param levels
+     *            - The number of levels of the path, i.e. the cached level;
+     *            treeHeight for the whole path
+     * @return - The siblings of the lowest 'levels' levels from the bottom to
+     *         the top
+     */
+    public byte[][] getSiblingPath(int index, int levels)
+    {
+	ArrayList<byte[]> result = new ArrayList<byte[]>();
 
-	for (int i = 0; i <= 2 * this.treeHeight -2; i = i + 2) // note that i = i + 2
+	for (int l = 0; l < levels; l++)
 	{
-	    result[i]     = ht[index];
-	    result[i + 1] = ht[index + 1];
-	    index         = (index - 1) / 2;
-	    
-	    if (index % 2 == 0)
-		index = index - 1;// pay attention; this bug is discovered later
+	    int first = index - index % this.arity;
+	    int last  = Math.min(first + this.arity, this.count[l]);
+	    if (last - first > 1) // with a fan-out k, the other k - 1 children
+				  // from the left to the right
+		for (int p = first; p < last; p++)
+		    if (p != index)
+			result.add(this.getNode(this.offset[l] + p));
+	    index = index / this.arity;
 	}
-	
-	result[2 * this.treeHeight] = ht[0];          // pay attention; this bug is discovered later
 
+	return result.toArray(new byte[result.size()][]);
+    }
+
+    /**
+     * This function gets the direction bitmask of the compact authentication
+     * path for the node with index 'index': bit i is 1 if the node beside the
+     * i-th sibling is a right child. If the number of leaves is a power of
+     * two, this is the index itself. A wider tree does not need the bitmask,
+     * see verify(int, int, int, byte[], byte[][], byte[]); 0 is returned.
+     * 
+     * @param index
+     *            - The index of the leaf node
+     * @return - The direction bitmask
+     */
+    public int getDirections(int index)
+    {
+	int result = 0;
+	int i      = 0;
+	if (this.arity != 2)
+	    return 0;
+
+	for (int l = 0; l < this.treeHeight; l++)
+	{
+	    if (index % 2 == 1)
+		result = result | (1 << i++);
+	    else if (index + 1 < this.count[l])
+		i++;
+	    index = index / 2;
+	}
+
+	return result;
+    }
+
+    /**
+     * This function gets the proof for several leaf nodes at once: the minimal
+     * set of nodes needed to recompute the root from the leaves. A node is
+     * included only if it lies beside the paths of the leaves, not on them;
+     * so the upper levels, which the paths share, are not repeated.
+     * 
+     * @param indices
+     *            - The indices of the leaf nodes, in increasing order
+     * @return - The nodes level by level from the bottom to the top, and from
+     *         the left to the right within a level
+     */
+    public byte[][] getMultiProof(int[] indices)
+    {
+	return this.getMultiProof(indices, this.treeHeight);
+    }
+
+    /**
+     * This function gets the proof for several leaf nodes at once up to a
+     * level which the verifier has cached; see getMultiProof(int[]) and
+     * getLevel().
+     * 
+     * @param indices
+     *            - The indices of the leaf nodes, in increasing order
+     * @param levels
+     *            - The number of levels of the proof, i.e. the cached level;
+     *            treeHeight for the whole proof
+     * @return - The nodes of the lowest 'levels' levels
+     */
+    public byte[][] getMultiProof(int[] indices, int levels)
+    {
+	ArrayList<byte[]> result = new ArrayList<byte[]>();
+	int n                    = indices.length;
+	int[] position           = Arrays.copyOf(indices, n);
+
+	for (int l = 0; l < levels; l++)
+	{
+	    int m = 0;
+	    for (int i = 0; i < n;)
+	    {
+		int group = position[i] / this.arity;
+		int first = group * this.arity;
+		int last  = Math.min(first + this.arity, this.count[l]);
+		for (int p = first; p < last; p++)
+		{
+		    if (i < n && position[i] == p) // known child
+			i++;
+		    else if (last - first > 1)
+			result.add(this.getNode(this.offset[l] + p));
+		}
+		position[m++] = group;
+	    }
+	    n = m;
+	}
+
+	return result.toArray(new byte[result.size()][]);
+    }
+
+    /**
+     * This function gets all the nodes of one level. A verifier which checks
+     * many paths against the same root can authenticate the level once with
+     * verifyLevel() and keep it; the paths then stop below it, so they are
+     * shorter by 'treeHeight - l' levels and take as many hashes less.
+     * 
+     * @param l
+     *            - The level; 0 for the hash values of the leaf nodes,
+     *            treeHeight for the root
+     * @return - Copies of its nodes, from the left to the right
+     */
+    public byte[][] getLevel(int l)
+    {
+	byte[][] result = new byte[this.count[l]][];
+	for (int j = 0; j < result.length; j++)
+	    result[j] = this.getNode(this.offset[l] + j);
 	return result;
     }
 
@@ -182,20 +1339,20 @@ public class HashTree
     {
 	for (int height = 0; height <= this.treeHeight; height++)
 	{
-	    int first = (int) Math.pow(2, height) - 1;
-	    int end   = first + (int) Math.pow(2, height);
+	    int first = this.offset[this.treeHeight - height];
+	    int end   = first + this.count[this.treeHeight - height];
 	    
 	    System.out.println("*******************");
 	    System.out.println("height: " + height);
 	    for (int i = first; i < end; i++)
 	    {
-		System.out.println(HashTreeBasedOutsourcing.bytes2HexString(this.ht[i]));
+		System.out.println(HashTreeBasedOutsourcing.bytes2HexString(this.getNode(i)));
 	    }
 	    System.out.println("*******************");
 	}
     }
     
-    private byte[] int2byteArray(int num)
+    private static byte[] int2byteArray(int num)
     {
 	byte[] result = new byte[4];
 
@@ -207,12 +1364,117 @@ public class HashTree
 	return result;
     }
 
-    public byte[][] getHt()
+    /**
+     * This function gets a node of the hash tree.
+     * 
+     * @param i
+     *            - The index of the node; the root has index 0
+     * @return - A copy of its hash value
+     */
+    public byte[] getNode(int i)
+    {
+	if (this.mappedHt != null)
+	{
+	    byte[] result = new byte[HASH_LENGTH];
+	    this.slice(this.mappedHt, (long) i * HASH_LENGTH, HASH_LENGTH).get(result);
+	    return result;
+	}
+	return Arrays.copyOfRange(this.ht, i * HASH_LENGTH, (i + 1) * HASH_LENGTH);
+    }
+
+    /**
+     * This function gets a leaf node.
+     * 
+     * @param index
+     *            - The index of the leaf node. It starts with 0.
+     * @return - A copy of the leaf node
+     */
+    public byte[] getLeaf(int index)
+    {
+	if (this.mappedLeaf != null)
+	{
+	    byte[] result = new byte[this.leafLength];
+	    this.slice(this.mappedLeaf, (long) index * this.leafLength, this.leafLength).get(result);
+	    return result;
+	}
+	return Arrays.copyOfRange(this.leaf, index * this.leafLength, (index + 1) * this.leafLength);
+    }
+
+    /**
+     * This function gets a copy of all the leaf nodes on the Java heap, leaf i
+     * at i * leafLength.
+     */
+    public byte[] copyLeaves()
+    {
+	if (this.mappedLeaf != null)
+	{
+	    byte[] result = new byte[this.count[0] * this.leafLength];
+	    for (long first = 0; first < result.length; first += CHUNK_SIZE)
+	    {
+		int length = (int) Math.min(result.length - first, CHUNK_SIZE);
+		this.slice(this.mappedLeaf, first, length).get(result, (int) first, length);
+	    }
+	    return result;
+	}
+	return Arrays.copyOf(this.leaf, this.count[0] * this.leafLength);
+    }
+
+    /**
+     * This function gets a view of 'length' bytes of a mapping from
+     * 'position' on, so that several threads can read the mapping at once.
+     * The bytes lie in the chunk where they start; see CHUNK_SIZE.
+     */
+    private ByteBuffer slice(MappedByteBuffer[] chunks, long position, int length)
+    {
+	ByteBuffer result = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+	int start         = (int) (position % CHUNK_SIZE);
+	result.limit(start + length);
+	result.position(start);
+	return result;
+    }
+
+    /**
+     * This function checks whether a leaf node equals a value, without copying
+     * the leaf node.
+     * 
+     * @param index
+     *            - The index of the leaf node
+     * @param value
+     *            - The value
+     * @return - true if they are equal
+     */
+    public boolean leafEquals(int index, byte[] value)
+    {
+	if (value.length != this.leafLength)
+	    return false;
+
+	if (this.mappedLeaf != null)
+	{
+	    ByteBuffer leaf = this.slice(this.mappedLeaf, (long) index * this.leafLength, this.leafLength);
+	    for (int i = 0; i < this.leafLength; i++)
+		if (leaf.get() != value[i])
+		    return false;
+	    return true;
+	}
+
+	int offset = index * this.leafLength;
+
+	for (int i = 0; i < this.leafLength; i++)
+	    if (this.leaf[offset + i] != value[i])
+		return false;
+	return true;
+    }
+
+    /**
+     * This function gets the array of all the nodes; null for a tree opened by
+     * open().
+     */
+    public byte[] getHt()
     {
 	return ht;
     }
 
-    public void setHt(byte[][] ht)
+    public void setHt(byte[] ht)
     {
 	this.ht = ht;
     }
@@ -227,6 +1489,16 @@ public class HashTree
 	this.treeSize = treeSize;
     }
 
+    /**
+     * This function gets the number of leaf nodes.
+     * 
+     * @return - The number of leaf nodes
+     */
+    public int getLeafCount()
+    {
+	return this.count[0];
+    }
+
     public int getTreeHeight()
     {
 	return treeHeight;
@@ -237,16 +1509,48 @@ public class HashTree
 	this.treeHeight = treeHeight;
     }
 
-    public byte[][] getLeaf()
+    /**
+     * This function gets the array of all the leaf nodes; null for a tree opened by
+     * open().
+     */
+    public byte[] getLeaf()
     {
 	return leaf;
     }
 
-    public void setLeaf(byte[][] leaf)
+    public void setLeaf(byte[] leaf)
     {
 	this.leaf = leaf;
     }
 
+    public int getLeafLength()
+    {
+	return leafLength;
+    }
+
+    public int getArity()
+    {
+	return arity;
+    }
+
+    /**
+     * This function gets the placement saved with the tree; see save(). It is
+     * 0 for a new tree and -1 for a tree opened from a file of version 1.
+     */
+    public int getPlacement()
+    {
+	return placement;
+    }
+
+    /**
+     * This function sets the placement which save() writes into the file
+     * header. It does not change a file which the tree has been opened from.
+     */
+    public void setPlacement(int placement)
+    {
+	this.placement = placement;
+    }
+
     public MessageDigest getMd()
     {
 	return md;
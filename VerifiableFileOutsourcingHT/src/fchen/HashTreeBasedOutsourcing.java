@@ -1,6 +1,7 @@
 package fchen;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.security.*;
 import javax.crypto.*;
 import java.io.*;
@@ -17,82 +18,206 @@ import java.io.*;
 public class HashTreeBasedOutsourcing 
 {
 	private String rootDirectory = null;       // system parameter; files to be outsourced
-	private int hashSize         = 32;         // system parameter; depends on the HASH algorithm used; 32 * 8byte = 256bits
+	private int hashSize         = 32;         // system parameter; the length of a filename MAC; 32 * 8byte = 256bits for HMAC-SHA256, 16 for AES-CMAC
 	private byte[] specialFile   = null;       // system parameter; denotes all non-existing files
+	private byte[] deletedFile   = null;       // system parameter; denotes a removed file, which keeps the probing chains of the other files intact
 	
 	private byte[] seed          = null;       // used for HMAC to protect filename privacy
 	private SecureRandom sr      = null;       // used for key generator
-	private KeyGenerator kg      = null;       // key generator to generate a secrete key
 	private SecretKey sk         = null;       // secret key for HMAC
-	private Mac mac 	     = null;
+	private TagFunction mac      = null;       // the MAC of the filenames; HMAC-SHA256 by default, see TagFunction
+	private ThreadLocal<TagFunction> macs = null;  // copies of 'mac', one per thread calling query(); see TagFunction.perThread()
 	
-	private byte[][] filenameMac = null;       // one part of the outsourced data: index + filename MAC
+	private byte[] filenameMac   = null;       // one part of the outsourced data: index + filename MAC; the MAC at index i is stored at i * hashSize
 	private HashTree ht          = null;       // the other part of the outsourced data: hash(index + filename MAC)
 	private byte[] root          = null;       // the root value of the hash tree
 	
 	private int currentSize      = 0;          // performance parameter;
+	private int deletedSize      = 0;          // the leaves holding 'deletedFile'; they lengthen the probing chains until the tree is rebuilt
 	private int leafSize         = 0;          // performance parameter; 8 * # of maximal files	
 	private int treeHeight       = 0;
 	private int treeSize         = 0;
 	private double loadFactor    = 0.1;        // performance parameter;	
 	private byte[] visited       = null;       // indicating whether an index has been used when allocating indices
+	private DirectoryWalker.Sample sample = null;  // a few existing files for the evaluation; see getRandomExistingFile()
+	private boolean compactProof = false;      // whether search() returns compact authentication paths, i.e. only the siblings and a direction bitmask
+	private boolean exactLeafCount = false;    // whether the hash tree has currentSize / loadFactor leaves instead of the next power of two
+	private int cuckooTables     = 0;          // 0: h_1, h_2 and the probing hashes; d >= 2: cuckoo hashing with d tables, i.e. at most d probes
+	private Random cuckooRandom  = new Random((long)0xff);  // chooses where an evicted file goes
+	private int arity            = 2;          // the fan-out of the hash tree
+	private int cachedLevels     = 0;          // k > 0: the data user keeps the top k levels of the hash tree, and the paths stop below them
+	private volatile TopLevels topLevels = null;  // the nodes of the lowest cached level and the root they have been checked against
+	private volatile ConcurrentMap<ProofKey, ProofData> proofCache = null;  // the proofs of the recent queries; see setProofCacheSize()
+	private volatile long proofVersion = 0;    // bumped whenever the hash tree or the format of its proofs changes; see ProofKey
+	private long proofCacheVersion = 0;        // the version which the proofs in 'proofCache' belong to
+	private int proofCacheSize   = 0;          // the maximal number of proofs in 'proofCache'
+	private boolean versioned    = false;      // whether search() reads immutable versions of the hash tree without a lock; see setVersioned()
+	private volatile VersionedHashTree version = null;  // the latest published version of the hash tree, in the versioned mode
+	private volatile Published published = null;  // the hash tree, its root and its number of leaves as of the last complete update; see verify()
+	private VersionedHashTree draft = null;    // the version which the writer is updating; published when an update is complete
+	private boolean sparseTree   = false;      // whether the MACs are the keys of a sparse Merkle tree instead of being placed into a hash tree
+	private SparseMerkleTree smt = null;       // the outsourced data in the sparse Merkle tree mode
+	
+	private double growthThreshold = 0;        // 0: the number of leaves is fixed; otherwise the load above which the hash tree grows
+	private Thread growth        = null;       // the background rebuild of a larger hash tree, if any
+	private List<PendingUpdate> pending = null;  // the files added and removed during the rebuild, in order
+	
+	public final static int MAX_EVICTIONS = 500;  // the maximal number of evictions when a file is placed by cuckoo hashing
+	public final static int GROWTH_ATTEMPTS = 3;  // the maximal number of larger trees built by one growth; see grow()
 	
 	/**
-	 * It constructs the main object.
-	 * @param rootDirectory - the directory to be outsourced
+	 * This class records a file added to or removed from the hash tree while a larger one is being built,
+	 * so that the update can be replayed on the larger tree before it is swapped in.
 	 */
-	public HashTreeBasedOutsourcing(String rootDirectory) 
+	private static class PendingUpdate
 	{
-		super();
-		this.rootDirectory = rootDirectory;
+		private byte[] fileMac = null;
+		private boolean added  = false;
 		
-		this.specialFile = new byte[this.hashSize];
-		for (int i = 0; i < this.hashSize; i++)
-			this.specialFile[i] = 0;
+		private PendingUpdate(byte[] fileMac, boolean added)
+		{
+			this.fileMac = fileMac;
+			this.added   = added;
+		}
+	}
+	
+	/**
+	 * This class holds the hash tree, its root and its number of leaves of one complete update, so that verify() reads them
+	 * together without the lock; a new one is published after every update.
+	 */
+	private static class Published
+	{
+		private final HashTree ht;
+		private final byte[] root;
+		private final int leafSize;
 		
-		this.loadFactor = 0.1;
-		this.KeyGen();
+		private Published(HashTree ht, byte[] root, int leafSize)
+		{
+			this.ht       = ht;
+			this.root     = root;
+			this.leafSize = leafSize;
+		}
+	}
+	
+	/**
+	 * This class holds the nodes of the lowest cached level of the hash tree together with the root they have been checked against;
+	 * see topLevels().
+	 */
+	private static class TopLevels
+	{
+		private final byte[] root;
+		private final byte[][] nodes;
 		
-		try 
+		private TopLevels(byte[] root, byte[][] nodes)
 		{
-			this.sr  = new SecureRandom(this.seed);
-			this.kg  = KeyGenerator.getInstance("HmacSHA256");
-			this.kg.init(this.sr);
-			this.sk  = kg.generateKey();
-			this.mac = Mac.getInstance("HmacSHA256");
-			this.mac.init(sk);
-		} 
-		catch (Exception e)
+			this.root  = root;
+			this.nodes = nodes;
+		}
+	}
+	
+	/**
+	 * This class is the key of a proof in the proof cache: the query and the version of the hash tree which the proof belongs to,
+	 * so that a proof found by search() without the lock is never one of another version.
+	 */
+	private static class ProofKey
+	{
+		private final long version;
+		private final byte[] queryFile;
+		
+		private ProofKey(long version, byte[] queryFile)
+		{
+			this.version   = version;
+			this.queryFile = queryFile;
+		}
+		
+		public int hashCode()
 		{
-			System.out.println("Error occured when initializing HmacSHA256.");
+			return 31 * Arrays.hashCode(this.queryFile) + (int) (this.version ^ (this.version >>> 32));
+		}
+		
+		public boolean equals(Object other)
+		{
+			if (other instanceof ProofKey == false)
+				return false;
+			ProofKey key = (ProofKey) other;
+			return this.version == key.version && Arrays.equals(this.queryFile, key.queryFile) == true;
 		}
 	}
 	
+	/**
+	 * It constructs the main object.
+	 * @param rootDirectory - the directory to be outsourced
+	 */
+	public HashTreeBasedOutsourcing(String rootDirectory) 
+	{
+		this(rootDirectory, 0.1, TagFunction.HMAC_SHA256);
+	}
+	
 	public HashTreeBasedOutsourcing(String rootDirectory, double loadFactor) 
 	{
-	    	super();
+		this(rootDirectory, loadFactor, TagFunction.HMAC_SHA256);
+	}
+	
+	/**
+	 * It constructs the main object with a given MAC algorithm. The leaves of the hash tree hold MACs of its length.
+	 * @param rootDirectory - the directory to be outsourced
+	 * @param loadFactor - the ratio of files to leaves
+	 * @param tagAlgorithm - TagFunction.HMAC_SHA256 or TagFunction.AES_CMAC
+	 */
+	public HashTreeBasedOutsourcing(String rootDirectory, double loadFactor, String tagAlgorithm) 
+	{
+		super();
 		this.rootDirectory = rootDirectory;
 		
-		this.specialFile = new byte[this.hashSize];
-		for (int i = 0; i < this.hashSize; i++)
-			this.specialFile[i] = 0;
-		
 		this.loadFactor = loadFactor;
 		this.KeyGen();
 		
 		try 
 		{
-			this.sr  = new SecureRandom(this.seed);
-			this.kg  = KeyGenerator.getInstance("HmacSHA256");
-			this.kg.init(this.sr);
-			this.sk  = kg.generateKey();
-			this.mac = Mac.getInstance("HmacSHA256");
-			this.mac.init(sk);
+			this.sr       = new SecureRandom(this.seed);
+			this.sk       = TagFunction.generateKey(tagAlgorithm, this.sr);
+			this.mac      = TagFunction.getInstance(tagAlgorithm, this.sk);
+			this.hashSize = this.mac.getTagLength();
+			this.macs     = TagFunction.perThread(this.mac);
 		} 
 		catch (Exception e)
 		{
-			System.out.println("Error occured when initializing HmacSHA256.");
-		}	    
+			System.out.println("Error occured when initializing " + tagAlgorithm + ".");
+		}
+		
+		this.specialFile = new byte[this.hashSize];
+		for (int i = 0; i < this.hashSize; i++)
+			this.specialFile[i] = 0;
+		
+		this.deletedFile = new byte[this.hashSize];
+		for (int i = 0; i < this.hashSize; i++)
+			this.deletedFile[i] = (byte)0xff;
+	}
+	
+	/**
+	 * It constructs an empty object with the same key and parameters as another one, for a larger hash tree; see grow().
+	 * @param other - the object whose hash tree is outgrown
+	 */
+	private HashTreeBasedOutsourcing(HashTreeBasedOutsourcing other)
+	{
+		super();
+		this.rootDirectory  = other.rootDirectory;
+		this.hashSize       = other.hashSize;
+		this.specialFile    = other.specialFile;
+		this.deletedFile    = other.deletedFile;
+		this.seed           = other.seed;
+		this.sr             = other.sr;
+		this.sk             = other.sk;
+		this.mac            = other.mac;
+		this.macs           = other.macs;
+		this.loadFactor     = other.loadFactor;
+		this.sample         = other.sample;
+		this.compactProof   = other.compactProof;
+		this.exactLeafCount = other.exactLeafCount;
+		this.cuckooTables   = other.cuckooTables;
+		this.arity          = other.arity;
+		this.cachedLevels   = other.cachedLevels;
+		this.versioned      = other.versioned;
 	}
 	
 	/**
@@ -116,62 +241,804 @@ public class HashTreeBasedOutsourcing
     	    // two hash functions will be used to find the index in the hash tree.
     	    // h_1(x) = x % hash_tree_size
     	    // h_2(x) = 11 * x + 100 % hash_tree_size
-    	    File directory    = new File(this.rootDirectory);
-    	    String[] allFiles = directory.list();
+    	    // the files are streamed twice: once to size the tree, once to place them; their names are never held all at once.
+    	    DirectoryWalker walker = new DirectoryWalker(this.rootDirectory);
     
-    	    this.currentSize  = allFiles.length;
-    	    this.treeHeight   = (int) Math.ceil( Math.log(this.currentSize / this.loadFactor) / Math.log(2) );
-    	    this.leafSize     = (int) Math.pow(2, this.treeHeight);
-    	    this.treeSize     = 2 * this.leafSize - 1;
+    	    if (this.sparseTree == true)  // no slots to size: a file is a key of the sparse Merkle tree
+    	    {
+    		this.smt         = new SparseMerkleTree(this.hashSize * 8);
+    		this.currentSize = 0;
+    		this.sample      = new DirectoryWalker.Sample(1024);
+    		walker.walk(new DirectoryWalker.BatchHandler()
+    		{
+    		    public void handle(List<String> batch)
+    		    {
+    			for (String file : batch)
+    			{
+    			    smt.insert(mac.tag(file.getBytes()));
+    			    sample.add(file);
+    			}
+    		    }
+    		});
+    		this.currentSize = this.smt.size();
+    		return;
+    	    }
+    
+    	    this.currentSize  = (int) walker.count();
+    	    this.deletedSize  = 0;
+    	    if (this.exactLeafCount == true)
+    	    {
+    		// a left-balanced tree with the real number of slots; a multiple of 101 is avoided so that the probing hashes reach every slot
+    		this.leafSize     = Math.max(2, (int) Math.ceil(this.currentSize / this.loadFactor));
+    		if (this.leafSize % 101 == 0)
+    		    this.leafSize = this.leafSize + 1;
+    		this.treeHeight   = (int) Math.ceil( Math.log(this.leafSize) / Math.log(2) );
+    		this.treeSize     = 0;   // known after the tree is built
+    	    }
+    	    else
+    	    {
+    		this.treeHeight   = (int) Math.ceil( Math.log(this.currentSize / this.loadFactor) / Math.log(2) );
+    		this.leafSize     = (int) Math.pow(2, this.treeHeight);
+    		this.treeSize     = 2 * this.leafSize - 1;
+    	    }
     	    this.visited      = new byte[this.leafSize];
     
     	    for (int i = 0; i < this.leafSize; i++)
     		this.visited[i] = 0;
     
-    	    this.filenameMac = new byte [this.leafSize][this.hashSize];
+    	    this.filenameMac = new byte [this.leafSize * this.hashSize];  // for those empty slots in the leaf nodes, the MAC value is all zero which is regarded as special non-existing file MACs.
     
-    	    for (int i = 0; i < this.leafSize; i++)               // for those empty slots in the leaf nodes, assign the MAC value all zero which is regarded as special non-existing file MACs.
-    		for (int j = 0; j < this.hashSize; j++)
-    		    this.filenameMac[i][j] = 0;
-    
-    	    for (String file : allFiles)
+    	    this.sample = new DirectoryWalker.Sample(1024);
+    	    walker.walk(new DirectoryWalker.BatchHandler()
     	    {
-    		byte[] fileMac = this.mac.doFinal(file.getBytes());
-
-    		int index = 0;
-    		// for (int i = 0; i < this.hashSize; i = i + 4)
-    		// index = index + (int)fileMac[i] + ((int)fileMac[i + 1]) << 8 +
-    		// ((int)fileMac[i + 2]) << 16 + ((int)fileMac[i + 3]) << 24;
-    		index = ((int) fileMac[0]) + (((int) fileMac[1]) << 8) + (((int) fileMac[2]) << 16) + (((int) fileMac[3]) << 24);  // a bug is fixed here
-    		index = Math.abs(index) % this.leafSize; // h_1
-
-    		if (visited[index] == 1)
+    		public void handle(List<String> batch)
     		{
-    		    index = ((int) fileMac[4]) + (((int) fileMac[5]) << 8) + (((int) fileMac[6]) << 16) + (((int) fileMac[7]) << 24);
-    		    index = Math.abs(index) % this.leafSize; // h_2
+    		    for (String file : batch)
+    		    {
+    			placeFile(file);
+    			sample.add(file);
+    		    }
     		}
+    	    });
+	}
+	
+	/**
+	 * This function places the MAC of a file into a free leaf of the hash tree.
+	 * @param file - the filename
+	 */
+	private void placeFile(String file)
+	{
+	    if (this.placeMac(this.mac.tag(file.getBytes())) == false)
+		System.out.println("Error occured when placing the file " + file + ": the cuckoo tables are too full; use a lower load factor or more tables.");
+	}
+	
+	/**
+	 * This function places a MAC into a free leaf of the hash tree before it is built.
+	 * @param fileMac - the MAC of a file
+	 * @return false if the cuckoo tables are too full; true otherwise
+	 */
+	private boolean placeMac(byte[] fileMac)
+	{
+	    if (this.cuckooTables > 0)
+		return this.cuckooInsert(fileMac);
 
-    		while (visited[index] == 1)
-    		{
-    		    index = (index + 101) % this.leafSize; // probing hashes; this
-    		    // should seldom happen.
-    		}
+	    int index = 0;
+	    // for (int i = 0; i < this.hashSize; i = i + 4)
+	    // index = index + (int)fileMac[i] + ((int)fileMac[i + 1]) << 8 +
+	    // ((int)fileMac[i + 2]) << 16 + ((int)fileMac[i + 3]) << 24;
+	    index = ((int) fileMac[0]) + (((int) fileMac[1]) << 8) + (((int) fileMac[2]) << 16) + (((int) fileMac[3]) << 24);  // a bug is fixed here
+	    index = Math.abs(index) % this.leafSize; // h_1
 
-    		for (int i = 0; i < fileMac.length; i++)
-    		    this.filenameMac[index][i] = fileMac[i];
+	    if (visited[index] == 1)
+	    {
+		index = ((int) fileMac[4]) + (((int) fileMac[5]) << 8) + (((int) fileMac[6]) << 16) + (((int) fileMac[7]) << 24);
+		index = Math.abs(index) % this.leafSize; // h_2
+	    }
 
-    		visited[index] = 1;
-    	    }
+	    while (visited[index] == 1)
+	    {
+		index = (index + 101) % this.leafSize; // probing hashes; this
+		// should seldom happen.
+	    }
+
+	    System.arraycopy(fileMac, 0, this.filenameMac, index * this.hashSize, this.hashSize);
+
+	    visited[index] = 1;
+	    return true;
+	}
+	
+	/**
+	 * This function places a MAC by cuckoo hashing: into a free one of its d leaves (one per table) if there is one;
+	 * otherwise it evicts the file of one of these leaves, which then moves to another of its own d leaves, and so on.
+	 * If no free leaf is found after MAX_EVICTIONS evictions, all the moves are undone.
+	 * Once the data has been outsourced, every leaf which changes is updated in the hash tree.
+	 * @param fileMac - the MAC of the file
+	 * @return true if the MAC has been placed; false if the tables are too full
+	 */
+	private boolean cuckooInsert(byte[] fileMac)
+	{
+	    for (int t = 0; t < this.cuckooTables; t++)
+	    {
+		int index = this.probe(fileMac, t, 0);
+		if (this.slotEquals(index, this.specialFile) == true)
+		{
+		    this.writeSlot(index, fileMac);
+		    return true;
+		}
+	    }
+
+	    int[] trail         = new int[MAX_EVICTIONS];    // the leaves which have been overwritten
+	    byte[][] previous   = new byte[MAX_EVICTIONS][]; // and their previous MACs
+	    byte[] carried      = fileMac;
+	    int index           = this.probe(fileMac, this.cuckooRandom.nextInt(this.cuckooTables), 0);
+
+	    for (int k = 0; k < MAX_EVICTIONS; k++)
+	    {
+		trail[k]    = index;
+		previous[k] = (this.ht != null) ? this.ht.getLeaf(index) : Arrays.copyOfRange(this.filenameMac, index * this.hashSize, (index + 1) * this.hashSize);
+		this.writeSlot(index, carried);
+		carried     = previous[k];  // the evicted file
+
+		int table = 0;  // the table in which the evicted file was
+		for (int t = 0; t < this.cuckooTables; t++)
+		{
+		    int other = this.probe(carried, t, 0);
+		    if (other == index)
+			table = t;
+		    else if (this.slotEquals(other, this.specialFile) == true)
+		    {
+			this.writeSlot(other, carried);
+			return true;
+		    }
+		}
+
+		int t = this.cuckooRandom.nextInt(this.cuckooTables - 1);  // one of the other tables
+		if (t >= table)
+		    t = t + 1;
+		index = this.probe(carried, t, 0);
+	    }
+
+	    for (int k = MAX_EVICTIONS - 1; k >= 0; k--)
+		this.writeSlot(trail[k], previous[k]);
+	    return false;
+	}
+
+	/**
+	 * This function checks whether a MAC is in one of its d leaves with cuckoo hashing.
+	 */
+	private boolean cuckooContains(byte[] fileMac)
+	{
+	    for (int t = 0; t < this.cuckooTables; t++)
+		if (this.slotEquals(this.probe(fileMac, t, 0), fileMac) == true)
+		    return true;
+	    return false;
+	}
+
+	/**
+	 * This function checks whether the leaf at 'index' holds a given MAC.
+	 */
+	private boolean slotEquals(int index, byte[] value)
+	{
+	    if (this.ht != null)
+		return this.ht.leafEquals(index, value);
+
+	    int offset = index * this.hashSize;
+	    for (int i = 0; i < this.hashSize; i++)
+		if (this.filenameMac[offset + i] != value[i])
+		    return false;
+	    return true;
+	}
+
+	/**
+	 * This function writes a MAC into the leaf at 'index', and updates the hash tree and its root if the data has been outsourced.
+	 */
+	private void writeSlot(int index, byte[] value)
+	{
+	    if (this.ht != null)
+		this.updateLeaf(index, value);  // the leaves of the tree are 'filenameMac' itself
+	    else
+		System.arraycopy(value, 0, this.filenameMac, index * this.hashSize, this.hashSize);
+	}
+	
+	/**
+	 * This function updates a leaf of the hash tree and the root; in the versioned mode, also the draft version,
+	 * which the readers do not see until publish() is called.
+	 */
+	private void updateLeaf(int index, byte[] value)
+	{
+	    this.root = this.ht.updateLeaf(index, value);
+	    if (this.draft != null)
+		this.draft = this.draft.update(index, value);
+	    this.newProofVersion();
+	}
+	
+	/**
+	 * This function bumps the version of the proofs, so that the proofs in the proof cache are not found any more.
+	 */
+	private synchronized void newProofVersion()
+	{
+	    this.proofVersion = this.proofVersion + 1;
+	}
+	
+	/**
+	 * This function makes the first version of the hash tree in the versioned mode, once it has been built or opened,
+	 * and publishes it.
+	 */
+	private void firstVersion()
+	{
+	    if (this.versioned == true)
+		this.draft = new VersionedHashTree(this.ht);
+	    this.publish();
+	}
+	
+	/**
+	 * This function publishes the draft version, with all the leaves written by an update, to the readers at once,
+	 * and the new root to the verifiers.
+	 */
+	private void publish()
+	{
+	    if (this.draft != null)
+		this.version = this.draft;
+	    this.published = new Published(this.ht, this.root, this.leafSize);
+	    this.newProofVersion();  // e.g. a new hash tree
 	}
+	
 	/**
 	 * This function helps a data owner outsource the data.
 	 * The data owner only keeps the secret key and the root value of the hash tree.
 	 */
 	public void outsource()
 	{		
-		this.ht = new HashTree(this.treeHeight, this.filenameMac);		
-		this.ht.build();
+		if (this.sparseTree == true)
+		{
+			this.root = this.smt.getRoot();
+			this.publish();
+			return;
+		}
+		this.ht = new HashTree(this.filenameMac, this.hashSize, this.arity, 1);
 		this.root = this.ht.getRoot();
+		this.treeSize = this.ht.getTreeSize();
+		this.firstVersion();
+	}
+	
+	/**
+	 * This function helps a data owner outsource the data, building the hash tree on several threads.
+	 * The hash tree and its root are the same as those of outsource().
+	 * @param parallelism - the number of worker threads, e.g. Runtime.getRuntime().availableProcessors()
+	 */
+	public void outsource(int parallelism)
+	{		
+		if (this.sparseTree == true)  // the sparse Merkle tree is hashed while the files are inserted
+		{
+			this.root = this.smt.getRoot();
+			this.publish();
+			return;
+		}
+		this.ht = new HashTree(this.filenameMac, this.hashSize, this.arity, parallelism);
+		this.root = this.ht.getRoot();
+		this.treeSize = this.ht.getTreeSize();
+		this.firstVersion();
+	}
+	
+	/**
+	 * This function adds a new file to the outsourced data without outsourcing the whole directory again.
+	 * The MAC of the file is placed into the first free leaf of its probing chain (h_1, h_2, then +101),
+	 * which may be the leaf of a removed file, and only the path from that leaf to the root is rehashed.
+	 * With cuckoo hashing, it is placed as in prepareOutsource(), and the path of every leaf which changes is rehashed.
+	 * In the sparse Merkle tree mode, the MAC is inserted as a key.
+	 * If the load then passes the growth threshold, a larger hash tree is built in the background; see setGrowthThreshold().
+	 * If there is no room for the file before the larger tree is swapped in, it waits for it.
+	 * @param file - the filename
+	 * @return the new root value, which the data owner keeps; null if the file already exists, the hash tree is full and does not grow or the data has not been outsourced
+	 */
+	public synchronized byte[] addFile(String file)
+	{
+		if (this.sparseTree == true)
+		{
+			if (this.smt == null || this.root == null)
+			{
+				System.out.println("Error occured when adding a file: the data has not been outsourced.");
+				return null;
+			}
+			if (this.smt.insert(this.mac.tag(file.getBytes())) == false)
+				return null;  // file exists
+			this.currentSize = this.currentSize + 1;
+			this.root = this.smt.getRoot();
+			this.publish();
+			return this.root;
+		}
+		
+		if (this.ht == null)
+		{
+			System.out.println("Error occured when adding a file: the data has not been outsourced.");
+			return null;
+		}
+		if (this.ht.isReadOnly() == true)
+		{
+			System.out.println("Error occured when adding a file: the hash tree has been opened read-only.");
+			return null;
+		}
+		if (this.currentSize < 0)
+			this.countFiles();
+		
+		byte[] fileMac = this.mac.tag(file.getBytes());
+		byte[] result  = this.addMac(fileMac);
+		boolean full   = (this.cuckooTables > 0) ? this.cuckooContains(fileMac) == false : this.currentSize >= this.leafSize;
+		if (result == null && this.growthThreshold > 0 && full == true)
+		{
+			// the cuckoo tables or the leaves are too full: wait for the larger tree, which has room for the file
+			if (this.growth == null)
+				this.startGrowth();
+			while (this.growth != null)
+			{
+				try
+				{
+					this.wait();
+				} catch (InterruptedException e)
+				{
+					System.out.println("Error occured when adding a file: interrupted while the hash tree grows.");
+					return null;
+				}
+			}
+			result = this.addMac(fileMac);
+		}
+		if (result == null && this.cuckooTables > 0 && this.cuckooContains(fileMac) == false)
+			System.out.println("Error occured when adding a file: the cuckoo tables are too full.");
+		if (result == null && this.cuckooTables == 0 && this.currentSize >= this.leafSize)
+			System.out.println("Error occured when adding a file: the hash tree is full.");
+		if (result != null)
+			this.publish();  // all the leaves moved by cuckoo hashing at once
+		if (result != null && this.pending != null)
+			this.pending.add(new PendingUpdate(fileMac, true));
+		if (result != null && this.overloaded() == true)
+			this.startGrowth();
+		return result;
+	}
+	
+	/**
+	 * This function adds the MAC of a file to the outsourced data; see addFile().
+	 */
+	private byte[] addMac(byte[] fileMac)
+	{
+		int free       = -1;
+		int index      = 0;
+		
+		if (this.cuckooTables > 0)
+		{
+			if (this.cuckooContains(fileMac) == true)
+				return null;  // file exists
+			if (this.cuckooInsert(fileMac) == false)
+				return null;  // the cuckoo tables are too full
+			this.currentSize = this.currentSize + 1;
+			return this.root;
+		}
+		
+		for (int step = 0; step <= this.leafSize + 1; step++)   // the chain visits every leaf at most once after h_1 and h_2
+		{
+			index = this.probe(fileMac, step, index);
+			if (this.ht.leafEquals(index, fileMac) == true)
+				return null;  // file exists
+			if (free < 0 && this.ht.leafEquals(index, this.deletedFile) == true)
+				free = index;
+			if (this.ht.leafEquals(index, this.specialFile) == true)
+			{
+				if (free < 0)
+					free = index;
+				break;  // end of the chain
+			}
+		}
+		
+		if (free < 0)
+			return null;  // the hash tree is full
+		
+		if (this.ht.leafEquals(free, this.deletedFile) == true)
+			this.deletedSize = this.deletedSize - 1;
+		this.updateLeaf(free, fileMac);
+		if (this.visited != null)  // not kept for a reopened tree
+			this.visited[free] = 1;
+		this.currentSize   = this.currentSize + 1;
+		return this.root;
+	}
+	
+	/**
+	 * This function removes a file from the outsourced data without outsourcing the whole directory again.
+	 * The leaf of the file is marked as removed rather than emptied, so the files placed behind it on a probing chain are still found;
+	 * only the path from that leaf to the root is rehashed. With cuckoo hashing, there are no chains and the leaf is emptied.
+	 * In the sparse Merkle tree mode, the key of the MAC is removed and its leaf is empty again.
+	 * @param file - the filename
+	 * @return the new root value, which the data owner keeps; null if the file does not exist or the data has not been outsourced
+	 */
+	public synchronized byte[] removeFile(String file)
+	{
+		if (this.sparseTree == true)
+		{
+			if (this.smt == null || this.root == null)
+			{
+				System.out.println("Error occured when removing a file: the data has not been outsourced.");
+				return null;
+			}
+			if (this.smt.remove(this.mac.tag(file.getBytes())) == false)
+				return null;  // file does not exist
+			this.currentSize = this.currentSize - 1;
+			this.root = this.smt.getRoot();
+			this.publish();
+			return this.root;
+		}
+		
+		if (this.ht == null)
+		{
+			System.out.println("Error occured when removing a file: the data has not been outsourced.");
+			return null;
+		}
+		if (this.ht.isReadOnly() == true)
+		{
+			System.out.println("Error occured when removing a file: the hash tree has been opened read-only.");
+			return null;
+		}
+		if (this.currentSize < 0)
+			this.countFiles();
+		
+		byte[] fileMac = this.mac.tag(file.getBytes());
+		byte[] result  = this.removeMac(fileMac);
+		if (result != null)
+			this.publish();
+		if (result != null && this.pending != null)
+			this.pending.add(new PendingUpdate(fileMac, false));
+		if (result != null && this.overloaded() == true)
+			this.startGrowth();
+		return result;
+	}
+	
+	/**
+	 * This function removes the MAC of a file from the outsourced data; see removeFile().
+	 */
+	private byte[] removeMac(byte[] fileMac)
+	{
+		int index      = 0;
+		
+		if (this.cuckooTables > 0)
+		{
+			for (int t = 0; t < this.cuckooTables; t++)
+			{
+				index = this.probe(fileMac, t, 0);
+				if (this.ht.leafEquals(index, fileMac) == true)
+				{
+					this.updateLeaf(index, this.specialFile);
+					this.currentSize = this.currentSize - 1;
+					return this.root;
+				}
+			}
+			return null;
+		}
+		
+		for (int step = 0; step <= this.leafSize + 1; step++)
+		{
+			index = this.probe(fileMac, step, index);
+			if (this.ht.leafEquals(index, fileMac) == true)
+			{
+				this.updateLeaf(index, this.deletedFile);
+				this.currentSize = this.currentSize - 1;
+				this.deletedSize = this.deletedSize + 1;
+				return this.root;
+			}
+			if (this.ht.leafEquals(index, this.specialFile) == true)
+				break;  // file does not exist
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * This function writes the hash tree, whose leaves are the filename MACs, to a file, so that a restarted cloud
+	 * can open it with openTree() instead of outsourcing the whole directory again.
+	 * The number of cuckoo tables is saved as the placement of the tree; see HashTree.save().
+	 * @param file - the path of the file
+	 * @return true if the tree has been written; false otherwise
+	 */
+	public synchronized boolean saveTree(String file)
+	{
+		if (this.sparseTree == true || this.ht == null)
+		{
+			System.out.println("Error occured when saving the hash tree: the data has not been outsourced to a hash tree.");
+			return false;
+		}
+		if (this.ht.isMapped() == true)  // the tree is kept in its own file
+		{
+			this.ht.force();
+			return true;
+		}
+		this.ht.setPlacement(this.cuckooTables);
+		return this.ht.save(file);
+	}
+	
+	/**
+	 * This function opens a hash tree written by saveTree() for updates; see openTree(String, boolean).
+	 * @param file - the path of the file
+	 * @return true if the tree has been opened; false otherwise
+	 */
+	public boolean openTree(String file)
+	{
+		return this.openTree(file, true);
+	}
+	
+	/**
+	 * This function opens a hash tree written by saveTree(). The file is mapped into memory (see HashTree.open()),
+	 * so no leaf is read and nothing is hashed: search() reads the nodes of the proofs straight from the mapping,
+	 * and if the tree is opened for updates, addFile() and removeFile() write through to the file.
+	 * The placement (the cuckoo tables) must be set as when it was saved;
+	 * otherwise the tree is not opened, since the files would be looked for in the wrong leaves.
+	 * The data owner should compare the root with the one it keeps.
+	 * @param file - the path of the file
+	 * @param writable - true if files are added or removed; otherwise the file is mapped read-only
+	 * @return true if the tree has been opened; false otherwise
+	 */
+	public synchronized boolean openTree(String file, boolean writable)
+	{
+		HashTree tree = HashTree.open(file, writable);
+		if (tree == null)
+			return false;
+		if (tree.getLeafLength() != this.hashSize)
+		{
+			System.out.println("Error occured when opening the hash tree: its leaves are not " + this.hashSize + "-byte MACs.");
+			return false;
+		}
+		if (tree.getPlacement() != this.cuckooTables)
+		{
+			if (tree.getPlacement() < 0)
+				System.out.println("Error occured when opening the hash tree: the file does not record the placement; save it again.");
+			else
+				System.out.println("Error occured when opening the hash tree: it has been saved with " + tree.getPlacement()
+						+ " cuckoo tables, but " + this.cuckooTables + " are set.");
+			return false;
+		}
+		
+		this.ht          = tree;
+		this.filenameMac = null;  // the leaves stay in the mapping
+		this.visited     = null;
+		this.leafSize    = tree.getLeafCount();
+		this.arity       = tree.getArity();
+		this.treeHeight  = tree.getTreeHeight();
+		this.treeSize    = tree.getTreeSize();
+		this.root        = tree.getRoot();
+		this.currentSize = -1;    // counted when it is needed; see countFiles()
+		this.firstVersion();
+		return true;
+	}
+	
+	/**
+	 * This function counts the files and the leaves of the removed files in the hash tree.
+	 */
+	private void countFiles()
+	{
+		this.currentSize = 0;
+		this.deletedSize = 0;
+		for (int i = 0; i < this.leafSize; i++)
+		{
+			if (this.ht.leafEquals(i, this.deletedFile) == true)
+				this.deletedSize++;
+			else if (this.ht.leafEquals(i, this.specialFile) == false)
+				this.currentSize++;
+		}
+	}
+	
+	/**
+	 * This function checks whether the hash tree is to be rebuilt. The leaves of the removed files count toward the load,
+	 * since only a rebuild empties them; otherwise adding and removing files would use up the empty leaves which end the probing chains.
+	 */
+	private boolean overloaded()
+	{
+		return this.growthThreshold > 0 && this.growth == null && this.currentSize + this.deletedSize > this.growthThreshold * this.leafSize;
+	}
+	
+	/**
+	 * This function starts building a larger hash tree in the background, from a copy of the current leaves.
+	 * The new number of leaves is chosen as in prepareOutsource(), so that the load is back to the load factor.
+	 * The leaves of the removed files are emptied, so a tree which is overloaded by them is rebuilt with as many leaves as before.
+	 */
+	private void startGrowth()
+	{
+		int target = 0;
+		if (this.exactLeafCount == true)
+		{
+			target = Math.max(2, (int) Math.ceil(this.currentSize / this.loadFactor));
+			if (target % 101 == 0)
+				target = target + 1;
+		}
+		else
+		{
+			target = this.leafSize;
+			while (this.currentSize > this.loadFactor * target)
+				target = 2 * target;
+		}
+		
+		final byte[] leaves   = this.ht.copyLeaves();
+		final int newLeafSize = target;
+		this.pending = new ArrayList<PendingUpdate>();
+		this.growth  = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				grow(leaves, newLeafSize);
+			}
+		});
+		this.growth.setDaemon(true);
+		this.growth.start();
+	}
+	
+	/**
+	 * This function builds the larger hash tree and swaps it in. Meanwhile the current tree keeps answering searches
+	 * and taking updates, which are recorded and replayed on the new tree while it is swapped in.
+	 * If the files do not fit into the cuckoo tables of the new tree, it is dropped and a tree with twice as many leaves
+	 * is built instead, at most GROWTH_ATTEMPTS times; after that the current tree is kept.
+	 * However the growth ends, the recorded updates are dropped and the threads waiting in addFile() are woken up.
+	 * If the replayed updates overload the new tree again, e.g. with the leaves of files added and removed meanwhile, it is rebuilt once more.
+	 * @param leaves - the leaves of the current tree when the growth started
+	 * @param newLeafSize - the number of leaves of the new tree
+	 */
+	private void grow(byte[] leaves, int newLeafSize)
+	{
+		boolean swapped = false;
+		try
+		{
+			for (int attempt = 0; attempt < GROWTH_ATTEMPTS; attempt++)
+			{
+				HashTreeBasedOutsourcing next = this.build(leaves, newLeafSize);
+				if (next != null)
+				{
+					synchronized (this)
+					{
+						if (next.replay(this.pending) == true)
+						{
+							this.filenameMac = next.filenameMac;
+							this.ht          = next.ht;
+							this.root        = next.root;
+							this.leafSize    = next.leafSize;
+							this.treeHeight  = next.treeHeight;
+							this.treeSize    = next.treeSize;
+							this.visited     = next.visited;
+							this.currentSize = next.currentSize;
+							this.deletedSize = next.deletedSize;
+							this.draft       = next.draft;
+							this.publish();
+							swapped          = true;
+							return;
+						}
+						
+						// the new tree missed some of the updates: start again from the leaves of now
+						leaves       = this.ht.copyLeaves();
+						this.pending = new ArrayList<PendingUpdate>();
+					}
+				}
+				
+				newLeafSize = 2 * newLeafSize;
+				if (this.exactLeafCount == true && newLeafSize % 101 == 0)
+					newLeafSize = newLeafSize + 1;
+			}
+			System.out.println("Error occured when growing the hash tree: the cuckoo tables are too full; the current hash tree is kept.");
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				this.pending = null;
+				this.growth  = null;
+				if (swapped == true && this.overloaded() == true)
+					this.startGrowth();
+				this.notifyAll();  // see addFile()
+			}
+		}
+	}
+	
+	/**
+	 * This function builds a hash tree with a given number of leaves from the leaves of the current one; see grow().
+	 * It runs without the lock, since it only reads the copy of the leaves.
+	 * @param leaves - the leaves of the current tree
+	 * @param newLeafSize - the number of leaves of the new tree
+	 * @return the object holding the new tree; null if the files do not fit into its cuckoo tables
+	 */
+	private HashTreeBasedOutsourcing build(byte[] leaves, int newLeafSize)
+	{
+		HashTreeBasedOutsourcing next = new HashTreeBasedOutsourcing(this);
+		next.leafSize    = newLeafSize;
+		next.treeHeight  = (int) Math.ceil( Math.log(newLeafSize) / Math.log(2) );
+		next.visited     = new byte[newLeafSize];
+		next.filenameMac = new byte[newLeafSize * this.hashSize];
+		
+		for (int i = 0; i < leaves.length; i = i + this.hashSize)
+		{
+			byte[] fileMac = Arrays.copyOfRange(leaves, i, i + this.hashSize);
+			if (Arrays.equals(fileMac, this.specialFile) == true || Arrays.equals(fileMac, this.deletedFile) == true)
+				continue;
+			if (next.placeMac(fileMac) == false)
+				return null;
+			next.currentSize = next.currentSize + 1;
+		}
+		next.outsource();
+		return next;
+	}
+	
+	/**
+	 * This function applies the files added and removed during a growth to the new tree; see grow().
+	 * @param updates - the recorded updates, in order
+	 * @return true if all of them have been applied; false if an added file does not fit into the new tree
+	 */
+	private boolean replay(List<PendingUpdate> updates)
+	{
+		for (PendingUpdate update : updates)
+		{
+			if (update.added == true)
+			{
+				if (this.addMac(update.fileMac) == null)
+					return false;
+			}
+			else
+				this.removeMac(update.fileMac);
+		}
+		return true;
+	}
+	
+	/**
+	 * This function waits until the larger hash tree being built in the background, if any, has been swapped in,
+	 * together with the ones which its swap has started.
+	 */
+	public void waitForGrowth()
+	{
+		Thread t = null;
+		synchronized (this)
+		{
+			t = this.growth;
+		}
+		
+		try
+		{
+			while (t != null)
+			{
+				t.join();
+				synchronized (this)
+				{
+					t = (this.growth != t) ? this.growth : null;
+				}
+			}
+		} catch (InterruptedException e)
+		{
+			System.out.println("Error occured when waiting for the hash tree to grow.");
+		}
+	}
+	
+	/**
+	 * This function computes the leaf index of a MAC on its probing chain.
+	 * With cuckoo hashing, the leaves are split into d tables of leafSize / d leaves, and step t is the leaf of table t,
+	 * chosen by bytes 4t to 4t + 3 of the MAC.
+	 * @param fileMac - the MAC
+	 * @param step - 0 for h_1, 1 for h_2 and 2, 3, ... for the probing hashes; or the table with cuckoo hashing
+	 * @param previous - the index of the previous step
+	 * @return the index
+	 */
+	private int probe(byte[] fileMac, int step, int previous)
+	{
+		return this.probe(fileMac, step, previous, this.leafSize);
+	}
+	
+	/**
+	 * This function computes the leaf index of a MAC on its probing chain in a hash tree of 'leafSize' leaves; see probe(byte[], int, int).
+	 */
+	private int probe(byte[] fileMac, int step, int previous, int leafSize)
+	{
+		int index = 0;
+		if (this.cuckooTables > 0)
+		{
+			int tableSize = leafSize / this.cuckooTables;
+			int i         = 4 * step;
+			index = ((int) fileMac[i] & 0xff) + (((int) fileMac[i + 1] & 0xff) << 8) + (((int) fileMac[i + 2] & 0xff) << 16) + (((int) fileMac[i + 3] & 0x7f) << 24);
+			return step * tableSize + index % tableSize;
+		}
+		else if (step == 0)
+			index = ((int) fileMac[0]) + (((int) fileMac[1]) << 8) + (((int) fileMac[2]) << 16) + (((int) fileMac[3]) << 24);  // h_1
+		else if (step == 1)
+			index = ((int) fileMac[4]) + (((int) fileMac[5]) << 8) + (((int) fileMac[6]) << 16) + (((int) fileMac[7]) << 24);  // h_2
+		else
+			return (previous + 101) % leafSize;
+		return Math.abs(index) % leafSize;
 	}
 	
 	/**
@@ -181,76 +1048,382 @@ public class HashTreeBasedOutsourcing
 	 */
 	public byte[] query(String file)
 	{
-		byte[] fileMac = this.mac.doFinal(file.getBytes());
+		byte[] fileMac = this.macs.get().tag(file.getBytes());  // may be called from many threads
 		
 		return fileMac;
 	}
 	
 	/**
 	 * This function helps a cloud answer a query of a data user by searching all the files. 
+	 * If the proof cache is on, the proof of a query which has been answered since the root last changed is taken from the cache,
+	 * with a single lookup and without the lock.
+	 * In the versioned mode, the latest published version of the hash tree is searched without a lock (and without the proof cache).
 	 * @param queryFile - a query token send by the data user
-	 * @return the query result represented by the data class 'ProofData'
+	 * @return the query result represented by the data class 'ProofData'; it must not be modified if the proof cache is on
 	 */
 	public ProofData search(byte[] queryFile)
 	{
+		VersionedHashTree snapshot = this.version;
+		if (snapshot != null)  // the version never changes
+			return this.prove(snapshot, queryFile);
+		
+		ConcurrentMap<ProofKey, ProofData> cache = this.proofCache;
+		if (cache != null)
+		{
+			ProofData proof = cache.get(new ProofKey(this.proofVersion, queryFile));
+			if (proof != null)
+				return proof;
+		}
+		
+		synchronized (this)
+		{
+			ProofData proof = this.prove(this.ht, queryFile);
+			if (this.proofCache == null)
+				return proof;
+			
+			if (this.proofCacheVersion != this.proofVersion)  // every path leads to the root, so none of the proofs is valid any more
+			{
+				this.proofCache.clear();
+				this.proofCacheVersion = this.proofVersion;
+			}
+			if (this.proofCache.size() >= this.proofCacheSize)  // drop any one proof for the new one
+			{
+				Iterator<ProofKey> keys = this.proofCache.keySet().iterator();
+				keys.next();
+				keys.remove();
+			}
+			this.proofCache.put(new ProofKey(this.proofVersion, queryFile.clone()), proof);
+			return proof;
+		}
+	}
+	
+	/**
+	 * This function helps a cloud answer a query with a given version of the hash tree, in the versioned mode; see getVersion().
+	 * The proof is verified with the same version; see verify(byte[], ProofData, VersionedHashTree).
+	 * @param snapshot - the version
+	 * @param queryFile - a query token send by the data user
+	 * @return the query result represented by the data class 'ProofData'
+	 */
+	public ProofData search(VersionedHashTree snapshot, byte[] queryFile)
+	{
+		return this.prove(snapshot, queryFile);
+	}
+	
+	/**
+	 * This function searches all the files of a hash tree for a query and builds its proof; see search(byte[]).
+	 * @param tree - the hash tree, or a version of it; not used in the sparse Merkle tree mode
+	 */
+	private ProofData prove(HashTreeView tree, byte[] queryFile)
+	{
+		if (this.sparseTree == true)  // one path, to the leaf of the file, whether it exists or not
+		{
+			ProofData proof = new ProofData(queryFile);
+			proof.addProofData(this.smt.prove(queryFile));
+			proof.setExistingFlag(this.smt.contains(queryFile) == true ? 1 : 0);
+			return proof;
+		}
+		
+		int leafCount = tree.getLeafCount();
+		if (this.cuckooTables > 0)  // the leaves of all the tables up to the file, or all of them if it does not exist
+		{
+			ProofData proof = new ProofData(queryFile);
+			for (int t = 0; t < this.cuckooTables; t++)
+			{
+				int index = this.probe(queryFile, t, 0, leafCount);
+				proof.addProofData(this.newMetaProofData(tree, index));
+				if (tree.leafEquals(index, queryFile) == true)
+				{
+					proof.setExistingFlag(1);
+					return proof;
+				}
+			}
+			proof.setExistingFlag(0);
+			return proof;
+		}
+		
 		int index = 0;
 //		for (int i = 0; i < this.hashSize; i = i + 4)			
 //			index = index + (int)queryFile[i] + ((int)queryFile[i + 1]) << 8 +  ((int)queryFile[i + 2]) << 16 + ((int)queryFile[i + 3]) << 24;
 		index = ((int) queryFile[0]) + (((int) queryFile[1]) << 8) + (((int) queryFile[2]) << 16) + (((int) queryFile[3]) << 24);
-		index = Math.abs(index) % this.leafSize;
+		index = Math.abs(index) % leafCount;
 		
 		ProofData proof     = new ProofData(queryFile);
 		MetaProofData tuple = null;
 		int flag 	    = 0;  // used to choose proper index
+		int step            = 0;  // the chain visits every leaf at most once after h_1 and h_2; see addMac()
 		
-		while (flag == 0 || flag == 1)
+		proof.setExistingFlag(0);  // if the chain has no empty leaf, the proof cannot be verified; see overloaded()
+		while ((flag == 0 || flag == 1) && step++ <= leafCount + 1)
 		{
-			if ( Arrays.equals((ht.getLeaf())[index], queryFile) )
+			if ( tree.leafEquals(index, queryFile) )
 			{
-			    	tuple = new MetaProofData(index, this.ht.getLeaf()[index], this.ht.getAuthenticationPath(index));  // note that the bug is found later
+			    	tuple = this.newMetaProofData(tree, index);  // note that the bug is found later
 				proof.addProofData(tuple);				
 				flag = 2;  // file exists
 				proof.setExistingFlag(1);
 			}
-			else if (Arrays.equals((ht.getLeaf())[index], this.specialFile))
+			else if (tree.leafEquals(index, this.specialFile))
 			{
-			    	tuple = new MetaProofData(index, this.ht.getLeaf()[index], this.ht.getAuthenticationPath(index));  // note that the bug is found later
+			    	tuple = this.newMetaProofData(tree, index);  // note that the bug is found later
 				proof.addProofData(tuple);
 				flag = 3;  // file does not exist
 				proof.setExistingFlag(0);
 			}
 			else if (flag == 0)
 			{
-			    	tuple = new MetaProofData(index, this.ht.getLeaf()[index], this.ht.getAuthenticationPath(index));  // note that the bug is found later
+			    	tuple = this.newMetaProofData(tree, index);  // note that the bug is found later
 				proof.addProofData(tuple);
 				flag = 1;  // change index
 				index = ((int) queryFile[4]) + (((int) queryFile[5]) << 8) + (((int) queryFile[6]) << 16) + (((int) queryFile[7]) << 24);
-				index = Math.abs(index) % this.leafSize;  //h_2
+				index = Math.abs(index) % leafCount;  //h_2
 			} 
 			else
 			{
-			    	tuple = new MetaProofData(index, this.ht.getLeaf()[index], this.ht.getAuthenticationPath(index));  // note that the bug is found later
+			    	tuple = this.newMetaProofData(tree, index);  // note that the bug is found later
 				proof.addProofData(tuple);
-				index = (index + 101) % this.leafSize;    //probing hashes; this should seldom happen.	
+				index = (index + 101) % leafCount;    //probing hashes; this should seldom happen.	
 			}							
 		}
 		
 		return proof;
 	}
 	
+	/**
+	 * This function helps a cloud answer several queries at once.
+	 * The probing chain of every query is walked as in search(byte[]); the leaves of all the chains are then authenticated together
+	 * by one multi-leaf proof, so the nodes which the authentication paths share are sent and hashed only once.
+	 * In the versioned mode, the latest published version of the hash tree is searched without a lock.
+	 * @param queryFiles - the query tokens send by the data user
+	 * @return the query results and their proof
+	 */
+	public MultiProofData search(List<byte[]> queryFiles)
+	{
+		VersionedHashTree snapshot = this.version;
+		if (snapshot != null)
+			return this.prove(snapshot, queryFiles);
+		
+		synchronized (this)
+		{
+			return this.prove(this.ht, queryFiles);
+		}
+	}
+	
+	/**
+	 * This function helps a cloud answer several queries at once with a given version of the hash tree, in the versioned mode;
+	 * see search(VersionedHashTree, byte[]).
+	 */
+	public MultiProofData search(VersionedHashTree snapshot, List<byte[]> queryFiles)
+	{
+		return this.prove(snapshot, queryFiles);
+	}
+	
+	/**
+	 * This function searches a hash tree for several queries and builds their proof; see search(List).
+	 */
+	private MultiProofData prove(HashTreeView tree, List<byte[]> queryFiles)
+	{
+		if (this.sparseTree == true)
+		{
+			System.out.println("Error occured when searching several files: batched proofs are not supported in the sparse Merkle tree mode.");
+			return null;
+		}
+		
+		int leafCount      = tree.getLeafCount();
+		int n              = queryFiles.size();
+		byte[][] queries   = new byte[n][];
+		int[] existingFlag = new int[n];
+		int[] totalItems   = new int[n];
+		int[] indices      = new int[Math.max(16, 2 * n)];
+		int count          = 0;
+		
+		for (int q = 0; q < n; q++)
+		{
+			byte[] queryFile = queryFiles.get(q);
+			int index        = 0;
+			queries[q]       = queryFile;
+			existingFlag[q]  = -1;
+			
+			for (int step = 0; step <= leafCount + 1 && existingFlag[q] < 0; step++)
+			{
+				index = this.probe(queryFile, step, index, leafCount);
+				if (count == indices.length)
+					indices = Arrays.copyOf(indices, 2 * count);
+				indices[count++] = index;
+				totalItems[q]    = step + 1;
+				
+				if (tree.leafEquals(index, queryFile) == true)
+					existingFlag[q] = 1;  // file exists
+				else if (this.cuckooTables == 0 && tree.leafEquals(index, this.specialFile) == true)
+					existingFlag[q] = 0;  // file does not exist
+				else if (this.cuckooTables > 0 && step == this.cuckooTables - 1)
+					existingFlag[q] = 0;  // file is in none of the tables
+			}
+		}
+		
+		// the chains may share leaves; every leaf is proved once
+		Arrays.sort(indices, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; i++)
+			if (distinct == 0 || indices[i] != indices[distinct - 1])
+				indices[distinct++] = indices[i];
+		indices = Arrays.copyOf(indices, distinct);
+		
+		byte[][] filename = new byte[distinct][];
+		for (int i = 0; i < distinct; i++)
+			filename[i] = tree.getLeaf(indices[i]);
+		
+		return new MultiProofData(queries, existingFlag, totalItems, indices, filename, tree.getMultiProof(indices, this.pathLevels(tree)));
+	}
+	
+	/**
+	 * This function creates the tuple (index, filename, authentication path) of a leaf,
+	 * with a full or a compact authentication path according to 'compactProof'.
+	 * If the data user caches the top levels of the hash tree, the path is compact and stops below them.
+	 * @param tree - the hash tree, or a version of it
+	 * @param index - the index of the leaf
+	 * @return the tuple
+	 */
+	private MetaProofData newMetaProofData(HashTreeView tree, int index)
+	{
+		if (this.cachedLevels > 0)
+			return new MetaProofData(index, tree.getLeaf(index), 0, tree.getSiblingPath(index, this.pathLevels(tree)));
+		else if (this.compactProof == true || this.arity > 2)  // a wider tree only has compact paths
+			return new MetaProofData(index, tree.getLeaf(index), tree.getDirections(index), tree.getSiblingPath(index, tree.getTreeHeight()));
+		else
+			return new MetaProofData(index, tree.getLeaf(index), tree.getAuthenticationPath(index));
+	}
+	
+	/**
+	 * This function computes the number of levels of an authentication path, i.e. the level of the hash tree at which the paths stop:
+	 * the root, or the lowest of the top 'cachedLevels' levels.
+	 */
+	private int pathLevels(HashTreeView tree)
+	{
+		return Math.max(0, tree.getTreeHeight() - this.cachedLevels);
+	}
+	
+	/**
+	 * This function gets the lowest of the top 'cachedLevels' levels of the hash tree for the data user: it is downloaded and checked
+	 * against the root once, and again only after the root has changed, e.g. by addFile(). A cached level is found without the lock;
+	 * the level of the current tree is downloaded under the lock, since the updates change that tree in place.
+	 * @param tree - the hash tree, or the version of it, which the level is downloaded from
+	 * @param root - the root which the data user keeps
+	 * @return all the nodes of the level; null if they do not match the root
+	 */
+	private byte[][] topLevels(HashTreeView tree, byte[] root)
+	{
+		TopLevels cached = this.topLevels;
+		if (cached != null && Arrays.equals(cached.root, root) == true)
+			return cached.nodes;
+		
+		byte[][] nodes = null;
+		if (tree instanceof VersionedHashTree)  // a version does not change
+			nodes = tree.getLevel(this.pathLevels(tree));
+		else
+		{
+			synchronized (this)
+			{
+				nodes = tree.getLevel(this.pathLevels(tree));
+			}
+		}
+		if (HashTree.verifyLevel(this.arity, nodes, root) == false)
+		{
+			System.out.println("Error occured when caching the top levels of the hash tree: they do not match the root.");
+			return null;
+		}
+		this.topLevels = new TopLevels(root, nodes);
+		return nodes;
+	}
+	
+	/**
+	 * This function lets the data user download and check the top 'cachedLevels' levels of the hash tree ahead of the first verify(),
+	 * which would do so otherwise.
+	 * @return true if they match the root; false if the cloud cheats
+	 */
+	public boolean cacheTopLevels()
+	{
+		Published published = this.published;
+		if (this.cachedLevels == 0 || this.sparseTree == true || published == null)
+			return false;
+		return this.topLevels(published.ht, published.root) != null;
+	}
+	
+	/**
+	 * This function checks the authentication paths of a proof against the root, or against the cached top levels if any.
+	 */
+	private boolean validate(ProofData proof, HashTreeView tree, byte[] root, int leafCount)
+	{
+		if (this.cachedLevels == 0)
+			return proof.validate(leafCount, this.arity, root);
+		
+		byte[][] cache = this.topLevels(tree, root);
+		return cache != null && proof.validate(leafCount, this.arity, cache);
+	}
+	
+	/**
+	 * This function checks one authentication path against the root, or against the cached top levels if any.
+	 */
+	private boolean validate(MetaProofData metaData, HashTreeView tree, byte[] root, int leafCount)
+	{
+		if (this.cachedLevels == 0)
+			return metaData.validate(root, leafCount, this.arity);
+		
+		byte[][] cache = this.topLevels(tree, root);
+		return cache != null && metaData.validate(cache, leafCount, this.arity);
+	}
+	
 	/**
 	 * This function helps a data user to check whether the returned result from the cloud is correct.
+	 * It runs without the lock: the root, the number of leaves and the hash tree are those of the last complete update.
 	 * @param queryFile - the query token sent to the cloud by the data user
 	 * @param proof - the returned result from the cloud
 	 * @return true if the cloud is honest; false if the cloud cheats
 	 */
 	public boolean verify(byte[] queryFile, ProofData proof)
+	{
+		Published published = this.published;
+		if (published == null)
+		{
+			System.out.println("Error occured when verifying a result: the data has not been outsourced.");
+			return false;
+		}
+		return this.verify(queryFile, proof, published.ht, published.root, published.leafSize);
+	}
+	
+	/**
+	 * This function helps a data user to check a result which the cloud has found in a given version of the hash tree,
+	 * in the versioned mode; see search(VersionedHashTree, byte[]). The data user knows the root of every version which the data owner
+	 * has published, and checks the result against the root of that version.
+	 * @param queryFile - the query token sent to the cloud by the data user
+	 * @param proof - the returned result from the cloud
+	 * @param snapshot - the version
+	 * @return true if the cloud is honest; false if the cloud cheats
+	 */
+	public boolean verify(byte[] queryFile, ProofData proof, VersionedHashTree snapshot)
+	{
+		return this.verify(queryFile, proof, snapshot, snapshot.getRoot(), snapshot.getLeafCount());
+	}
+	
+	/**
+	 * This function checks a result against a root; see verify(byte[], ProofData).
+	 * @param tree - the hash tree, or the version of it, which the top levels are downloaded from if they are cached
+	 * @param root - the root
+	 * @param leafCount - the number of leaves of the hash tree
+	 */
+	private boolean verify(byte[] queryFile, ProofData proof, HashTreeView tree, byte[] root, int leafCount)
 	{
 		int cheatFlag = 0;
+		
+		if (proof.getTotalItems() == 0)  // a proof without any authentication path
+			return false;
+		if (this.cuckooTables > 0)
+			return this.verifyCuckoo(queryFile, proof, tree, root, leafCount);
+		if (this.sparseTree == true)
+			return this.verifySparse(queryFile, proof, root);
 				
 		if (proof.getExistingFlag() == 1)  // file exists
 		{
-			if (Arrays.equals(proof.getQueryFile(), queryFile) == false || proof.validate(this.leafSize, this.root) == false)
+			if (Arrays.equals(proof.getQueryFile(), queryFile) == false || this.validate(proof, tree, root, leafCount) == false)
 				cheatFlag = cheatFlag + 1;
 			
 			//System.out.println("cheat flag:" + cheatFlag);
@@ -269,7 +1442,7 @@ public class HashTreeBasedOutsourcing
 		}
 		else
 		{
-			if (Arrays.equals(proof.getQueryFile(), queryFile) == false || proof.validate(this.leafSize, this.root) == false)
+			if (Arrays.equals(proof.getQueryFile(), queryFile) == false || this.validate(proof, tree, root, leafCount) == false)
 				cheatFlag = cheatFlag + 1;
 			
 			int lastIndex = proof.getTotalItems() - 1;
@@ -284,6 +1457,159 @@ public class HashTreeBasedOutsourcing
 		}		
 	}
 	
+	/**
+	 * This function checks a proof with cuckoo hashing: the i-th authentication path must be the one of the leaf of table i,
+	 * the file must be in none of the leaves before the last one, and the last leaf must hold the file if it exists.
+	 * If it does not exist, the leaves of all d tables must be given.
+	 */
+	private boolean verifyCuckoo(byte[] queryFile, ProofData proof, HashTreeView tree, byte[] root, int leafCount)
+	{
+		int cheatFlag  = 0;
+		int totalItems = proof.getTotalItems();
+		
+		if (Arrays.equals(proof.getQueryFile(), queryFile) == false || totalItems < 1 || totalItems > this.cuckooTables)
+			return false;
+		if (proof.getExistingFlag() != 0 && proof.getExistingFlag() != 1)
+			return false;
+		
+		for (int i = 0; i < totalItems; i++)
+		{
+			MetaProofData metaData = proof.getAuthentication(i);
+			if (metaData.getIndex() != this.probe(queryFile, i, 0, leafCount) || this.validate(metaData, tree, root, leafCount) == false)
+				cheatFlag = cheatFlag + 1;
+			
+			boolean found = Arrays.equals(metaData.getFilename(), queryFile);
+			if (i < totalItems - 1 && found == true)
+				cheatFlag = cheatFlag + 1;
+			else if (i == totalItems - 1 && proof.getExistingFlag() == 1 && found == false)
+				cheatFlag = cheatFlag + 1;
+			else if (i == totalItems - 1 && proof.getExistingFlag() == 0 && (found == true || totalItems != this.cuckooTables))
+				cheatFlag = cheatFlag + 1;
+		}
+		
+		if (cheatFlag == 0)
+			return true;
+		else
+			return false;
+	}
+	
+	/**
+	 * This function checks a proof in the sparse Merkle tree mode: there must be one authentication path, to the leaf of the queried MAC,
+	 * and the leaf must hold the MAC if the file exists and be empty if it does not.
+	 */
+	private boolean verifySparse(byte[] queryFile, ProofData proof, byte[] root)
+	{
+		if (Arrays.equals(proof.getQueryFile(), queryFile) == false || proof.getTotalItems() != 1)
+			return false;
+		
+		MetaProofData metaData = proof.getAuthentication(0);
+		if (metaData.getKey() == null || Arrays.equals(metaData.getKey(), queryFile) == false || metaData.validate(root) == false)
+			return false;
+		
+		if (proof.getExistingFlag() == 1)
+			return Arrays.equals(metaData.getFilename(), queryFile);
+		else if (proof.getExistingFlag() == 0)
+			return Arrays.equals(metaData.getFilename(), this.specialFile);
+		else
+			return false;
+	}
+	
+	/**
+	 * This function helps a data user to check the results of several queries returned by the cloud at once.
+	 * The multi-leaf proof is checked against the root once; then, for every query, the leaves of its probing chain must all be in the proof,
+	 * the last one must be the queried file (if it exists) or the special non-existing file (if not), and the ones before must be neither.
+	 * With cuckoo hashing, a file which does not exist must be in none of the leaves of all the d tables.
+	 * @param queryFiles - the query tokens sent to the cloud by the data user
+	 * @param proof - the returned result from the cloud
+	 * @return for every query, true if the cloud is honest; false if the cloud cheats. If the proof itself is wrong, all are false.
+	 */
+	public boolean[] verify(List<byte[]> queryFiles, MultiProofData proof)
+	{
+		Published published = this.published;
+		if (published == null)
+		{
+			System.out.println("Error occured when verifying the results: the data has not been outsourced.");
+			return new boolean[queryFiles.size()];
+		}
+		return this.verify(queryFiles, proof, published.ht, published.root, published.leafSize);
+	}
+	
+	/**
+	 * This function helps a data user to check the results of several queries which the cloud has found in a given version
+	 * of the hash tree, in the versioned mode; see verify(byte[], ProofData, VersionedHashTree).
+	 */
+	public boolean[] verify(List<byte[]> queryFiles, MultiProofData proof, VersionedHashTree snapshot)
+	{
+		return this.verify(queryFiles, proof, snapshot, snapshot.getRoot(), snapshot.getLeafCount());
+	}
+	
+	/**
+	 * This function checks the results of several queries against a root; see verify(List, MultiProofData).
+	 */
+	private boolean[] verify(List<byte[]> queryFiles, MultiProofData proof, HashTreeView tree, byte[] root, int leafCount)
+	{
+		int n            = queryFiles.size();
+		boolean[] result = new boolean[n];
+		
+		if (this.sparseTree == true || proof == null)
+			return result;
+		
+		int[] indices  = proof.getIndex();
+		byte[][] cache = this.cachedLevels > 0 ? this.topLevels(tree, root) : new byte[][] { root };
+		if (proof.getQueryFile().length != n || cache == null
+				|| HashTree.verifyMultiProof(leafCount, this.arity, indices, proof.getFilename(), proof.getProof(), cache) == false)
+			return result;
+		
+		for (int q = 0; q < n; q++)
+		{
+			byte[] queryFile = queryFiles.get(q);
+			int totalItems   = proof.getTotalItems()[q];
+			int existingFlag = proof.getExistingFlag()[q];
+			int cheatFlag    = 0;
+			int index        = 0;
+			
+			if (Arrays.equals(proof.getQueryFile()[q], queryFile) == false || totalItems < 1 || totalItems > leafCount + 2)
+				cheatFlag = cheatFlag + 1;
+			if (this.cuckooTables > 0 && totalItems > this.cuckooTables)
+				cheatFlag = cheatFlag + 1;
+			
+			for (int step = 0; step < totalItems && cheatFlag == 0; step++)
+			{
+				index = this.probe(queryFile, step, index, leafCount);
+				int i = Arrays.binarySearch(indices, index);
+				if (i < 0)
+				{
+					cheatFlag = cheatFlag + 1;
+					break;
+				}
+				
+				byte[] fileName = proof.getFilename()[i];
+				if (step < totalItems - 1)
+				{
+					if (Arrays.equals(fileName, queryFile) == true)
+						cheatFlag = cheatFlag + 1;
+					else if (this.cuckooTables == 0 && Arrays.equals(fileName, this.specialFile) == true)
+						cheatFlag = cheatFlag + 1;
+				}
+				else if (existingFlag == 1)
+				{
+					if (Arrays.equals(fileName, queryFile) == false)
+						cheatFlag = cheatFlag + 1;
+				}
+				else if (existingFlag != 0)
+					cheatFlag = cheatFlag + 1;
+				else if (this.cuckooTables == 0 && Arrays.equals(fileName, this.specialFile) == false)
+					cheatFlag = cheatFlag + 1;
+				else if (this.cuckooTables > 0 && (Arrays.equals(fileName, queryFile) == true || totalItems != this.cuckooTables))
+					cheatFlag = cheatFlag + 1;
+			}
+			
+			result[q] = (cheatFlag == 0);
+		}
+		
+		return result;
+	}
+	
 	private final static byte[] hex = "0123456789ABCDEF".getBytes();
 	/**
 	 * It transforms a byte array into a string in the Hexadecimal format in an entry-wise way.
@@ -303,16 +1629,20 @@ public class HashTreeBasedOutsourcing
 	
 	/**
 	 * This function generates a random existing filename.
+	 * It is picked from a sample of the files taken while preparing the outsourcing, so the directory is not listed again.
 	 * It is used for performance evaluation.
 	 * @return - an existing filename
 	 */
 	public String getRandomExistingFile()
 	{
-	    File directory    = new File(this.rootDirectory);
-    	    String[] allFiles = directory.list();
+	    if (this.sample == null)   // not prepared yet
+	    {
+		this.sample = new DirectoryWalker.Sample(1024);
+		new DirectoryWalker(this.rootDirectory).walk(this.sample);
+	    }
     	    
-    	    int r = (int)Math.floor( Math.random() * allFiles.length );
-    	    return allFiles[r];
+    	    int r = (int)Math.floor( Math.random() * this.sample.size() );
+    	    return this.sample.get(r);
 	}
 	
 	/**
@@ -328,6 +1658,8 @@ public class HashTreeBasedOutsourcing
 	
 	public double getLoadFactor()
 	{
+	    if (this.currentSize < 0)
+		this.countFiles();
 	    return this.currentSize / this.leafSize;
 		
 	}
@@ -337,6 +1669,210 @@ public class HashTreeBasedOutsourcing
 	    return this.treeSize;
 	}
 
+	public boolean isCompactProof()
+	{
+	    return compactProof;
+	}
+
+	/**
+	 * It chooses the format of the authentication paths returned by search().
+	 * A compact path carries only the sibling at every level and a direction bitmask, i.e. about half of a full path;
+	 * verify() accepts both formats.
+	 * @param compactProof - true for compact paths; false for full paths (the default)
+	 */
+	public void setCompactProof(boolean compactProof)
+	{
+	    this.compactProof = compactProof;
+	    this.newProofVersion();  // the cached proofs have the other format
+	}
+
+	public int getCuckooTables()
+	{
+	    return cuckooTables;
+	}
+
+	/**
+	 * It chooses cuckoo hashing for placing the files, before prepareOutsource() is called.
+	 * The leaves are split into d tables and a file may only be in one leaf per table, so a search probes at most d leaves
+	 * and a proof has at most d authentication paths, whatever the load. Files are moved between their leaves when placed.
+	 * With 2 tables the load factor must stay below about 0.5; with 3 tables it may reach about 0.9, and with 4 tables 0.97.
+	 * @param tables - the number d of tables, from 2 to the MAC length / 4; 0 for h_1, h_2 and the probing hashes (the default)
+	 */
+	public void setCuckooTables(int tables)
+	{
+	    if (tables != 0 && (tables < 2 || 4 * tables > this.hashSize))
+	    {
+		System.out.println("Error occured when setting the cuckoo tables: " + tables + " tables are not supported with " + this.hashSize + "-byte MACs.");
+		return;
+	    }
+	    this.cuckooTables = tables;
+	}
+
+	public boolean isExactLeafCount()
+	{
+	    return exactLeafCount;
+	}
+
+	/**
+	 * It chooses the number of leaves of the hash tree, before prepareOutsource() is called.
+	 * By default, currentSize / loadFactor is rounded up to the next power of two, so the tree can be up to twice as large as needed.
+	 * With an exact leaf count, the tree has about currentSize / loadFactor leaves in a left-balanced layout (see HashTree),
+	 * and its memory and build time follow the real number of slots. The proofs and verify() work with both.
+	 * @param exactLeafCount - true for the exact leaf count; false for a power of two (the default)
+	 */
+	public void setExactLeafCount(boolean exactLeafCount)
+	{
+	    this.exactLeafCount = exactLeafCount;
+	}
+
+	public int getArity()
+	{
+	    return arity;
+	}
+
+	/**
+	 * It chooses the fan-out of the hash tree, before outsource() is called.
+	 * With a fan-out k, a tree of n leaves has log_k(n) levels instead of log_2(n), so a verification needs fewer hashes,
+	 * but every level of a path carries k - 1 siblings: for 2^24 leaves, 6 hashes and 90 siblings with k = 16
+	 * against 24 hashes and 24 siblings with k = 2. search() then always returns compact paths.
+	 * @param arity - 2 (the default), 4, 8 or 16; any fan-out from 2 to 16 is accepted
+	 */
+	public void setArity(int arity)
+	{
+	    if (arity < 2 || arity > 16)
+	    {
+		System.out.println("Error occured when setting the fan-out of the hash tree: " + arity + " is not supported.");
+		return;
+	    }
+	    this.arity = arity;
+	}
+
+	public int getCachedLevels()
+	{
+	    return cachedLevels;
+	}
+
+	/**
+	 * It lets the data user keep the top k levels of the hash tree, i.e. the nodes of level treeHeight - k, which are downloaded and
+	 * checked against the root once (see cacheTopLevels()). search() then returns compact paths which stop below them,
+	 * so a path and its verification are shorter by k levels; the user stores about arity^k nodes instead.
+	 * Whenever the root changes, the level is downloaded again. It is not used in the sparse Merkle tree mode.
+	 * @param cachedLevels - k; 0 for paths up to the root (the default)
+	 */
+	public void setCachedLevels(int cachedLevels)
+	{
+	    if (cachedLevels < 0)
+	    {
+		System.out.println("Error occured when setting the cached levels of the hash tree: " + cachedLevels + " is negative.");
+		return;
+	    }
+	    this.cachedLevels   = cachedLevels;
+	    this.topLevels      = null;
+	    this.newProofVersion();  // the cached proofs have the other length
+	}
+
+	public int getProofCacheSize()
+	{
+	    return proofCacheSize;
+	}
+
+	/**
+	 * It lets the cloud keep the proofs of the recently queried files, so that a query which is repeated, e.g. for one of a few
+	 * popular files, is answered by search() with a single lookup, without the lock, instead of walking its probing chain and copying its paths.
+	 * The proofs are keyed by the query and a version which every update bumps (see ProofKey), so all of them are dropped when the root
+	 * changes, since every path leads to the root; the cache thus suits a file set which is queried much more often than it is updated.
+	 * When the cache is full, any one proof is dropped for a new one.
+	 * @param proofCacheSize - the maximal number of proofs; 0 for no cache (the default)
+	 */
+	public synchronized void setProofCacheSize(int proofCacheSize)
+	{
+	    if (proofCacheSize <= 0)
+	    {
+		this.proofCache     = null;
+		this.proofCacheSize = 0;
+		return;
+	    }
+	    
+	    this.proofCacheSize = proofCacheSize;
+	    this.proofCache     = new ConcurrentHashMap<ProofKey, ProofData>(2 * proofCacheSize);
+	}
+
+	public boolean isVersioned()
+	{
+	    return versioned;
+	}
+
+	/**
+	 * It lets search() run on many threads at once, without a lock, while addFile() and removeFile() keep updating the files,
+	 * before outsource() or openTree() is called. The updates are then also applied to a persistent copy of the hash tree
+	 * (see VersionedHashTree), which copies only the path of every changed leaf into a new immutable version; when an update
+	 * is complete, its version is published with its root at once, and search() reads the latest published one.
+	 * A proof must be verified against the root of the version which produced it: take the version with getVersion(),
+	 * then call search(VersionedHashTree, byte[]) and verify(byte[], ProofData, VersionedHashTree).
+	 * The hash tree is kept as well for the writer, i.e. the memory is about twice as large. Neither the proof cache
+	 * nor the sparse Merkle tree mode is used.
+	 * @param versioned - true for the versioned mode; false for one lock around the hash tree (the default)
+	 */
+	public void setVersioned(boolean versioned)
+	{
+	    this.versioned = versioned;
+	}
+
+	/**
+	 * This function gets the latest published version of the hash tree in the versioned mode.
+	 * @return the version; null if the mode is off or the data has not been outsourced
+	 */
+	public VersionedHashTree getVersion()
+	{
+	    return this.version;
+	}
+
+	public boolean isSparseTree()
+	{
+	    return sparseTree;
+	}
+
+	/**
+	 * It chooses the sparse Merkle tree mode, before prepareOutsource() is called.
+	 * The tree has a leaf for every possible MAC (2^256 for HMAC-SHA256) and a file is the leaf of its own MAC, so there are no collisions,
+	 * no load factor and no probing chains: a proof is always one path, also for a file which does not exist.
+	 * Only the nodes where the paths of the files branch are stored, i.e. the storage is proportional to the number of files.
+	 * The hash tree, compactProof, exactLeafCount and the cuckoo tables are not used, nor are the batched proofs.
+	 * @param sparseTree - true for the sparse Merkle tree; false for the hash tree (the default)
+	 */
+	public void setSparseTree(boolean sparseTree)
+	{
+	    this.sparseTree = sparseTree;
+	}
+
+	public double getGrowthThreshold()
+	{
+	    return growthThreshold;
+	}
+
+	/**
+	 * It lets the hash tree grow as files are added, so that the probing chains and the proofs stay short.
+	 * When addFile() brings the load above the threshold, a hash tree with about currentSize / loadFactor leaves is built
+	 * in a background thread from the current leaves, while the current tree keeps answering search() and taking updates;
+	 * the updates are then replayed on the new tree, which is swapped in atomically together with its root.
+	 * A proof must be verified against the tree which produced it, i.e. not across a swap.
+	 * @param growthThreshold - a load above the load factor (e.g. twice the load factor); 0 for a fixed number of leaves (the default)
+	 */
+	public void setGrowthThreshold(double growthThreshold)
+	{
+	    if (growthThreshold != 0 && growthThreshold <= this.loadFactor)
+	    {
+		System.out.println("Error occured when setting the growth threshold: it must be above the load factor " + this.loadFactor + ".");
+		return;
+	    }
+	    this.growthThreshold = growthThreshold;
+	}
+
+	public SparseMerkleTree getSparseTree()
+	{
+	    return smt;
+	}
+
 	public HashTree getHt()
 	{
 	    return ht;
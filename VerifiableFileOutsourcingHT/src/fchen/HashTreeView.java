@@ -0,0 +1,35 @@
+package fchen;
+
+/**
+ * This interface gathers the read-only functions of a hash tree with which the
+ * cloud answers a query: the leaves and the authentication paths. It is
+ * implemented by HashTree, which is updated in place, and by
+ * VersionedHashTree, of which every version is immutable.
+ *
+ * @author Chen, Fei (https://sites.google.com/site/chenfeiorange/)
+ * @author Email: chenfeiorange@163.com
+ */
+public interface HashTreeView
+{
+    public int getLeafCount();
+
+    public int getTreeHeight();
+
+    public int getArity();
+
+    public byte[] getRoot();
+
+    public byte[] getLeaf(int index);
+
+    public boolean leafEquals(int index, byte[] value);
+
+    public byte[][] getAuthenticationPath(int index);
+
+    public byte[][] getSiblingPath(int index, int levels);
+
+    public int getDirections(int index);
+
+    public byte[][] getMultiProof(int[] indices, int levels);
+
+    public byte[][] getLevel(int l);
+}
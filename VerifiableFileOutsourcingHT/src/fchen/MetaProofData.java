@@ -1,5 +1,6 @@
 package fchen;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
@@ -8,6 +9,16 @@ import java.util.Arrays;
  * some corresponding methods. The cloud could return a few of such tuples
  * because of the hash collisions.
  * 
+ * The authentication path comes in one of two formats: the full path of
+ * HashTree.getAuthenticationPath(), or the compact path of
+ * HashTree.getSiblingPath() together with a direction bitmask, which is about
+ * half as large. The compact path does not need to be bound to the index
+ * separately, since the leaf hash value already covers the index.
+ * 
+ * In the sparse Merkle tree mode, the index is replaced by the queried key,
+ * and the path is that of SparseMerkleTree.prove() together with a bitmap of
+ * the siblings which are given.
+ * 
  * @author Chen, Fei (https://sites.google.com/site/chenfeiorange/)
  * @author First draft on 12-03-2013. License: GNU GPL
  * @author Email: chenfeiorange@163.com
@@ -21,6 +32,15 @@ public class MetaProofData
 						// bottom to the root; the
 						// bottom node lies at the
 						// beginning of the array
+    private byte[][] siblingPath        = null; // compact authentication path;
+						// only the siblings from the
+						// bottom to the top
+    private int directions              = 0; // direction bitmask of the compact
+					     // path
+    private byte[] key                  = null; // key of the leafnode in a
+						// sparse Merkle tree
+    private byte[] bitmap               = null; // bitmap of the given siblings
+						// in a sparse Merkle tree
 
     public MetaProofData(int index, byte[] filename, byte[][] authenticationPath)
     {
@@ -30,6 +50,24 @@ public class MetaProofData
 	this.authenticationPath = authenticationPath;
     }
 
+    public MetaProofData(int index, byte[] filename, int directions, byte[][] siblingPath)
+    {
+	super();
+	this.index       = index;
+	this.filename    = filename;
+	this.directions  = directions;
+	this.siblingPath = siblingPath;
+    }
+
+    public MetaProofData(byte[] key, byte[] filename, byte[] bitmap, byte[][] siblingPath)
+    {
+	super();
+	this.key         = key;
+	this.filename    = filename;
+	this.bitmap      = bitmap;
+	this.siblingPath = siblingPath;
+    }
+
     /**
      * This function check whether an authentication path is legal. A legal path
      * has two properties: one is that the leaf node value is equal to
@@ -43,18 +81,16 @@ public class MetaProofData
     {
 	int cheatFlag = 0;
 
-	MessageDigest md = null;
-	try
-	{
-	    md = MessageDigest.getInstance("SHA-256");
-	} catch (Exception e)
-	{
-	    System.out.println("get SHA-256 instance error - static verify");
-	    System.out.println(e);
-	}
+	if (this.key != null) // path of a sparse Merkle tree
+	    return SparseMerkleTree.verify(this.key, this.filename, this.bitmap, this.siblingPath, root);
+
+	byte[] tempMac = this.leafHash();
+	if (tempMac == null)
+	    return false;
 
-	md.update(int2byteArray(this.index));
-	byte[] tempMac = md.digest(this.filename);
+	if (this.siblingPath != null) // compact path: the leaf node value is
+				      // checked by rebuilding the path
+	    return HashTree.verify(tempMac, this.directions, this.siblingPath, root);
 
 	// check the leaf node value
 	if (Arrays.equals(tempMac, this.authenticationPath[0]) == false
@@ -75,15 +111,76 @@ public class MetaProofData
 	    return false;
     }
 
-    private byte[] int2byteArray(int num)
+    /**
+     * This function checks whether an authentication path of a hash tree of
+     * any fan-out is legal; see validate(byte[]). A tree whose fan-out is
+     * above 2 only has compact paths, which are checked with the number of
+     * leaves and the fan-out known to the verifier.
+     * 
+     * @param root
+     *            - the root value of the hash authentication tree
+     * @param leafCount
+     *            - the number of leaves of the tree
+     * @param arity
+     *            - the fan-out of the tree
+     */
+    public boolean validate(byte[] root, int leafCount, int arity)
+    {
+	if (arity == 2 || this.key != null)
+	    return this.validate(root);
+	if (this.siblingPath == null)
+	    return false;
+
+	byte[] tempMac = this.leafHash();
+	if (tempMac == null)
+	    return false;
+	return HashTree.verify(leafCount, arity, this.index, tempMac, this.siblingPath, root);
+    }
+
+    /**
+     * This function checks whether a compact authentication path which stops
+     * at a level cached by the verifier is legal; see
+     * HashTree.getSiblingPath(int, int). It does not apply to the sparse
+     * Merkle tree mode.
+     * 
+     * @param cache
+     *            - all the nodes of the cached level, authenticated against
+     *            the root; see HashTree.verifyLevel()
+     * @param leafCount
+     *            - the number of leaves of the tree
+     * @param arity
+     *            - the fan-out of the tree
+     */
+    public boolean validate(byte[][] cache, int leafCount, int arity)
     {
-	byte[] result = new byte[4];
+	if (this.key != null || this.siblingPath == null)
+	    return false;
 
-	result[3] = (byte) (num >>> 24);
-	result[2] = (byte) (num >>> 16);
-	result[1] = (byte) (num >>> 8);
-	result[0] = (byte) (num);
+	byte[] tempMac = this.leafHash();
+	if (tempMac == null)
+	    return false;
+	return HashTree.verify(leafCount, arity, this.index, tempMac, this.siblingPath, cache);
+    }
 
+    /**
+     * This function computes the leaf node value hash(index, filename) into
+     * the scratch buffer of the current thread; see CryptoPool.
+     */
+    private byte[] leafHash()
+    {
+	MessageDigest md = CryptoPool.sha256();
+	byte[] result    = CryptoPool.scratch();
+	HashTree.updateInt(md, this.index);
+	md.update(this.filename);
+	try
+	{
+	    md.digest(result, 0, result.length);
+	} catch (DigestException e)
+	{
+	    System.out.println("meta data digest error - validate");
+	    System.out.println(e);
+	    return null;
+	}
 	return result;
     }
 
@@ -93,11 +190,27 @@ public class MetaProofData
     public void print()
     {
 	String temp = "[ ";
-	temp = temp + String.valueOf(this.index) + "; ";
+	if (this.key != null)
+	    temp = temp + HashTreeBasedOutsourcing.bytes2HexString(this.key) + "; ";
+	else
+	    temp = temp + String.valueOf(this.index) + "; ";
 	temp = temp + HashTreeBasedOutsourcing.bytes2HexString(this.filename) + "; ";
 	
-	for (int i = 0; i < this.authenticationPath.length; i++)
-	    temp = temp + HashTreeBasedOutsourcing.bytes2HexString(this.authenticationPath[i]) + " ";
+	if (this.key != null)
+	{
+	    temp = temp + HashTreeBasedOutsourcing.bytes2HexString(this.bitmap) + "; ";
+	    for (int i = 0; i < this.siblingPath.length; i++)
+		temp = temp + HashTreeBasedOutsourcing.bytes2HexString(this.siblingPath[i]) + " ";
+	}
+	else if (this.siblingPath != null)
+	{
+	    temp = temp + Integer.toBinaryString(this.directions) + "; ";
+	    for (int i = 0; i < this.siblingPath.length; i++)
+		temp = temp + HashTreeBasedOutsourcing.bytes2HexString(this.siblingPath[i]) + " ";
+	}
+	else
+	    for (int i = 0; i < this.authenticationPath.length; i++)
+		temp = temp + HashTreeBasedOutsourcing.bytes2HexString(this.authenticationPath[i]) + " ";
 	temp = temp + "]";
 	System.out.println(temp);
     }    
@@ -132,4 +245,44 @@ public class MetaProofData
 	this.authenticationPath = authenticationPath;
     }
 
+    public byte[][] getSiblingPath()
+    {
+	return siblingPath;
+    }
+
+    public void setSiblingPath(byte[][] siblingPath)
+    {
+	this.siblingPath = siblingPath;
+    }
+
+    public int getDirections()
+    {
+	return directions;
+    }
+
+    public void setDirections(int directions)
+    {
+	this.directions = directions;
+    }
+
+    public byte[] getKey()
+    {
+	return key;
+    }
+
+    public void setKey(byte[] key)
+    {
+	this.key = key;
+    }
+
+    public byte[] getBitmap()
+    {
+	return bitmap;
+    }
+
+    public void setBitmap(byte[] bitmap)
+    {
+	this.bitmap = bitmap;
+    }
+
 }
@@ -0,0 +1,785 @@
+package fchen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * It checks the correctness of 'HashTreeBasedOutsourcing' and 'HashTree' in their modes, one method per mode.
+ * In every mode, the proofs of existing and non-existing files must verify, and every tampered proof must be rejected:
+ * a flipped existing flag, a changed filename, leaf index or path node, a dropped authentication path, the proof of another query,
+ * and a proof which is older than the root.
+ *
+ * The directory is the first argument, or the one of 'CorrectnessCheck'. It prints every failed check and the totals at the end.
+ * @author Chen, Fei
+ */
+public class ModeCorrectnessCheck
+{
+	private static int checks   = 0;
+	private static int failures = 0;
+
+	public static void main(String[] args)
+	{
+		String rootDirectory = (args.length > 0) ? args[0] : "D:\\test\\files\\test1";
+
+		checkDirectoryWalk(rootDirectory);
+		checkAesCmac(rootDirectory);
+		checkParallelBuild(rootDirectory);
+		checkFlatArrays();
+		checkIncrementalUpdates(rootDirectory);
+		checkCompactProofs(rootDirectory);
+		checkMultiProofs(rootDirectory);
+		checkExactLeafCount(rootDirectory);
+		checkCuckooHashing(rootDirectory);
+		checkSparseTree(rootDirectory);
+		checkGrowth(rootDirectory, 0);
+		checkGrowth(rootDirectory, 3);
+		checkSaveOpen(rootDirectory, 0);
+		checkSaveOpen(rootDirectory, 3);
+		checkConcurrentVerify(rootDirectory);
+		checkFanOut(rootDirectory);
+		checkCachedLevels(rootDirectory);
+		checkProofCache(rootDirectory);
+		checkVersions(rootDirectory);
+
+		System.out.println(checks + " checks, " + failures + " failed.");
+	}
+
+	/**
+	 * It checks the binary tree over the files found by the directory walk, including the files of subdirectories by their relative paths.
+	 */
+	private static void checkDirectoryWalk(String rootDirectory)
+	{
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+		outsource(test);
+		checkSearches("binary tree", test);
+
+		String[] names   = {"a1", "docs/readme", "docs/2013/a.txt", "docs/2013/b.txt", "src/main.c", "src/util.c", "src/lib/x.c"};
+		String directory = createDirectory(names);
+		if (directory == null)
+			return;
+		check("directory tree: the relative paths", new DirectoryWalker(directory).count() == names.length);
+
+		test = newInstance(directory, 0.5);
+		outsource(test);
+		for (String name : names)
+		{
+			byte[] query    = test.query(name);
+			ProofData proof = test.search(query);
+			check("directory tree: " + name, test.verify(query, proof) == true && proof.getExistingFlag() == 1);
+		}
+		checkSearches("directory tree", test);
+	}
+
+	/**
+	 * It checks the binary tree over AES-CMAC tags.
+	 */
+	private static void checkAesCmac(String rootDirectory)
+	{
+		HashTreeBasedOutsourcing test = new HashTreeBasedOutsourcing(rootDirectory, 0.2, TagFunction.AES_CMAC);
+		outsource(test);
+		checkSearches(TagFunction.AES_CMAC, test);
+	}
+
+	/**
+	 * It checks that a tree built by several workers has the same nodes as the tree built serially.
+	 */
+	private static void checkParallelBuild(String rootDirectory)
+	{
+		Random random = new Random(11);
+		for (int treeHeight = 1; treeHeight <= 13; treeHeight = treeHeight + 4)
+		{
+			byte[][] leaf = new byte[1 << treeHeight][HashTree.HASH_LENGTH];
+			for (byte[] temp : leaf)
+				random.nextBytes(temp);
+
+			HashTree serial   = new HashTree(treeHeight, leaf);  // it hashes the leaves; build() hashes the rest
+			serial.build();
+			HashTree parallel = new HashTree(treeHeight, leaf, 4);
+			boolean same      = true;
+			for (int l = 0; l <= treeHeight; l++)
+				same = same && Arrays.deepEquals(serial.getLevel(l), parallel.getLevel(l)) == true;
+			check("parallel build, height " + treeHeight + ": the same nodes", same == true && Arrays.equals(serial.getRoot(), parallel.getRoot()) == true);
+		}
+
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+		test.prepareOutsource();
+		test.outsource();
+		byte[] root = test.getHt().getRoot();
+		test.outsource(4);
+		check("parallel outsourcing: the same root", Arrays.equals(root, test.getHt().getRoot()) == true);
+		checkSearches("parallel outsourcing", test);
+	}
+
+	/**
+	 * It checks that a tree over a contiguous leaf array is the tree over the separate leaves, and that its leaves are read back unchanged.
+	 */
+	private static void checkFlatArrays()
+	{
+		Random random  = new Random(12);
+		int treeHeight = 6;
+		byte[][] leaf  = new byte[1 << treeHeight][HashTree.HASH_LENGTH];
+		byte[] flat    = new byte[leaf.length * HashTree.HASH_LENGTH];
+		random.nextBytes(flat);
+		for (int i = 0; i < leaf.length; i++)
+			System.arraycopy(flat, i * HashTree.HASH_LENGTH, leaf[i], 0, HashTree.HASH_LENGTH);
+
+		HashTree separate = new HashTree(treeHeight, leaf);
+		HashTree test     = new HashTree(treeHeight, flat.clone(), HashTree.HASH_LENGTH);
+		separate.build();
+		test.build();
+		check("flat arrays: the same root", Arrays.equals(separate.getRoot(), test.getRoot()) == true);
+		check("flat arrays: the leaves copied", Arrays.equals(flat, test.copyLeaves()) == true);
+		for (int i = 0; i < leaf.length; i++)
+		{
+			byte[] other = leaf[i].clone();
+			other[0] ^= 1;
+			check("flat arrays: leaf " + i, Arrays.equals(leaf[i], test.getLeaf(i)) == true && test.leafEquals(i, leaf[i]) == true && test.leafEquals(i, other) == false);
+
+			byte[][] path = test.getAuthenticationPath(i);
+			check("flat arrays: the path of leaf " + i, HashTree.verify(path, test.getRoot()) == true);
+			path[path.length - 1][0] ^= 1;
+			check("flat arrays: a changed path of leaf " + i, HashTree.verify(path, test.getRoot()) == false);
+		}
+	}
+
+	/**
+	 * It checks that the root after updating some leaves is the root of the tree built again from the leaves, and that a tree in which
+	 * files are added and removed again and again still answers every search, with a proof when it is rebuilt by growth.
+	 */
+	private static void checkIncrementalUpdates(String rootDirectory)
+	{
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+		outsource(test);
+		checkUpdates("binary tree", test);
+		test.addFile("updated" + test.getRandomNonExistingFile());
+		HashTree rebuilt = new HashTree(test.getHt().copyLeaves(), test.getHt().copyLeaves().length / test.getHt().getLeafCount(), 2, 1);
+		check("binary tree: the updated root is the rebuilt root", Arrays.equals(rebuilt.getRoot(), test.getHt().getRoot()) == true);
+
+		String directory = createDirectory(new String[] {"a1", "b2", "c3"});
+		if (directory == null)
+			return;
+		for (int growth = 0; growth < 2; growth++)
+		{
+			String mode = "churn" + (growth == 1 ? " with growth" : "");
+			test = newInstance(directory, 0.5);
+			if (growth == 1)
+				test.setGrowthThreshold(0.8);
+			outsource(test);
+			for (int i = 0; i < 200; i++)
+			{
+				test.addFile("churn" + i);
+				test.removeFile("churn" + i);
+			}
+			test.waitForGrowth();
+
+			byte[] query    = test.query("churn0");
+			ProofData proof = test.search(query);  // it must return although the removed files fill every probing chain
+			check(mode + ": a removed file answered", proof != null);
+			if (growth == 1)
+				check(mode + ": a removed file not found", test.verify(query, proof) == true && proof.getExistingFlag() == 0);
+			query = test.query("a1");
+			proof = test.search(query);
+			check(mode + ": an existing file found", test.verify(query, proof) == true && proof.getExistingFlag() == 1);
+		}
+	}
+
+	private static void checkCompactProofs(String rootDirectory)
+	{
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+		test.setCompactProof(true);
+		outsource(test);
+		checkSearches("compact proofs", test);
+		checkUpdates("compact proofs", test);
+	}
+
+	/**
+	 * It checks the proofs of batches of queries, in the binary tree and with compact proofs.
+	 */
+	private static void checkMultiProofs(String rootDirectory)
+	{
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+		outsource(test);
+		checkBatch("multi-leaf proofs", test);
+
+		test = newInstance(rootDirectory, 0.2);
+		test.setCompactProof(true);
+		outsource(test);
+		checkBatch("multi-leaf proofs, compact", test);
+	}
+
+	/**
+	 * It checks that the tree has currentSize / loadFactor leaves instead of the next power of two, and its proofs.
+	 */
+	private static void checkExactLeafCount(String rootDirectory)
+	{
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+		test.setExactLeafCount(true);
+		outsource(test);
+
+		int leaves = Math.max(2, (int) Math.ceil(new DirectoryWalker(rootDirectory).count() / 0.2));
+		if (leaves % 101 == 0)
+			leaves++;
+		check("exact leaf count: " + leaves + " leaves", test.getHt().getLeafCount() == leaves);
+		checkSearches("exact leaf count", test);
+		checkBatch("exact leaf count", test);
+		checkUpdates("exact leaf count", test);
+	}
+
+	private static void checkCuckooHashing(String rootDirectory)
+	{
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.8);
+		test.setExactLeafCount(true);
+		test.setCuckooTables(3);
+		outsource(test);
+		checkSearches("cuckoo hashing", test);
+		checkBatch("cuckoo hashing", test);
+		checkUpdates("cuckoo hashing", test);
+	}
+
+	private static void checkSparseTree(String rootDirectory)
+	{
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+		test.setSparseTree(true);
+		outsource(test);
+		check("sparse Merkle tree: one key per file", test.getSparseTree().size() == new DirectoryWalker(rootDirectory).count());
+		checkSearches("sparse Merkle tree", test);
+		checkUpdates("sparse Merkle tree", test);
+	}
+
+	/**
+	 * It checks that a tree which grows in the background while files are added keeps all of them.
+	 */
+	private static void checkGrowth(String rootDirectory, int cuckooTables)
+	{
+		String mode = "growth" + (cuckooTables > 0 ? " with cuckoo hashing" : "");
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, cuckooTables > 0 ? 0.5 : 0.2);
+		test.setExactLeafCount(true);
+		test.setCuckooTables(cuckooTables);
+		test.setGrowthThreshold(cuckooTables > 0 ? 0.8 : 0.4);
+		outsource(test);
+
+		int leaves = test.getHt().getLeafCount();
+		int count  = 4 * leaves;
+		for (int i = 0; i < count; i++)
+			if (test.addFile("grown" + i) == null)
+				check(mode + ": add grown" + i, false);
+		test.waitForGrowth();
+		check(mode + ": the tree has grown", test.getHt().getLeafCount() > leaves);
+
+		for (int i = 0; i < count; i = i + 7)
+		{
+			byte[] query    = test.query("grown" + i);
+			ProofData proof = test.search(query);
+			check(mode + ": grown" + i, test.verify(query, proof) == true && proof.getExistingFlag() == 1);
+		}
+		checkSearches(mode, test);
+		checkBatch(mode, test);
+	}
+
+	/**
+	 * It checks that a saved tree is reopened with the same root and proofs, and only with the same placement.
+	 */
+	private static void checkSaveOpen(String rootDirectory, int cuckooTables)
+	{
+		String mode = "saved tree" + (cuckooTables > 0 ? " with cuckoo hashing" : "");
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.5);
+		test.setCuckooTables(cuckooTables);
+		outsource(test);
+
+		File file = null;
+		try
+		{
+			file = File.createTempFile("hashtree", ".bin");
+		}
+		catch (Exception e)
+		{
+			check(mode + ": create a temporary file", false);
+			return;
+		}
+		file.deleteOnExit();
+
+		byte[] root = test.getHt().getRoot();
+		check(mode + ": save", test.saveTree(file.getPath()) == true);
+		test.setCuckooTables(cuckooTables > 0 ? 0 : 3);
+		check(mode + ": open with another placement", test.openTree(file.getPath()) == false);
+		test.setCuckooTables(cuckooTables);
+		check(mode + ": open", test.openTree(file.getPath()) == true);
+		check(mode + ": the same root", Arrays.equals(root, test.getHt().getRoot()) == true);
+		checkSearches(mode, test);
+		checkBatch(mode, test);
+		check(mode + ": open read-only", test.openTree(file.getPath(), false) == true);
+		check(mode + ": the same root read-only", Arrays.equals(root, test.getHt().getRoot()) == true);
+		checkSearches(mode + " read-only", test);
+		check(mode + ": no update read-only", test.addFile("readonly" + test.getRandomNonExistingFile()) == null);
+		check(mode + ": open again", test.openTree(file.getPath()) == true);
+		checkUpdates(mode, test);
+	}
+
+	/**
+	 * It checks that threads verifying proofs at the same time, each with its own tag function, accept the honest proofs and reject a forged one.
+	 */
+	private static void checkConcurrentVerify(String rootDirectory)
+	{
+		String[] algorithms = {TagFunction.HMAC_SHA256, TagFunction.AES_CMAC};
+		for (String algorithm : algorithms)
+		{
+			final HashTreeBasedOutsourcing test = new HashTreeBasedOutsourcing(rootDirectory, 0.2, algorithm);
+			outsource(test);
+
+			final List<byte[]> queries   = new ArrayList<byte[]>();
+			final List<ProofData> proofs = new ArrayList<ProofData>();
+			for (String file : files(test))
+			{
+				byte[] query = test.query(file);
+				queries.add(query);
+				proofs.add(test.search(query));
+			}
+			final ProofData forged = copy(proofs.get(0));
+			forged.setExistingFlag(1 - forged.getExistingFlag());
+			final AtomicInteger wrong = new AtomicInteger(0);
+
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; t++)
+			{
+				threads[t] = new Thread()
+				{
+					public void run()
+					{
+						for (int round = 0; round < 20; round++)
+						{
+							for (int k = 0; k < queries.size(); k++)
+								if (test.verify(queries.get(k), proofs.get(k)) == false)
+									wrong.incrementAndGet();
+							if (test.verify(queries.get(0), forged) == true)
+								wrong.incrementAndGet();
+						}
+					}
+				};
+				threads[t].start();
+			}
+			try
+			{
+				for (Thread thread : threads)
+					thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				check(algorithm + ": wait for the threads", false);
+			}
+			check(algorithm + ": " + threads.length + " threads verifying at the same time", wrong.get() == 0);
+
+			// verify() does not wait for the lock, which e.g. a long update holds
+			Thread verifier = new Thread()
+			{
+				public void run()
+				{
+					if (test.verify(queries.get(0), proofs.get(0)) == false)
+						wrong.incrementAndGet();
+				}
+			};
+			synchronized (test)
+			{
+				verifier.start();
+				try
+				{
+					verifier.join(10000);
+				}
+				catch (InterruptedException e)
+				{
+					check(algorithm + ": wait for the verifier", false);
+				}
+				check(algorithm + ": verify while the lock is held", verifier.isAlive() == false && wrong.get() == 0);
+			}
+		}
+	}
+
+	/**
+	 * It checks wider trees: the parallel build against the serial one, and the proofs of a 4-ary tree and of a 16-ary tree with cuckoo hashing.
+	 */
+	private static void checkFanOut(String rootDirectory)
+	{
+		Random random = new Random(22);
+		int[] counts  = {1, 5, 17, 1000, 5000};
+		for (int arity = 4; arity <= 16; arity = arity * 4)
+		{
+			for (int count : counts)
+			{
+				byte[] leaf = new byte[count * HashTree.HASH_LENGTH];
+				random.nextBytes(leaf);
+				HashTree serial   = new HashTree(leaf, HashTree.HASH_LENGTH, arity, 1);
+				HashTree parallel = new HashTree(leaf.clone(), HashTree.HASH_LENGTH, arity, 4);
+				check("fan-out " + arity + ", " + count + " leaves: the same root", serial.getLeafCount() == count && Arrays.equals(serial.getRoot(), parallel.getRoot()) == true);
+			}
+
+			HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+			test.setArity(arity);
+			test.setCuckooTables(arity == 4 ? 0 : 3);
+			outsource(test);
+			checkSearches("fan-out " + arity, test);
+			checkBatch("fan-out " + arity, test);
+			checkUpdates("fan-out " + arity, test);
+		}
+	}
+
+	private static void checkCachedLevels(String rootDirectory)
+	{
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+		test.setArity(4);
+		test.setCachedLevels(2);
+		outsource(test);
+		check("cached levels: download the top levels", test.cacheTopLevels() == true);
+		checkSearches("cached levels", test);
+		checkBatch("cached levels", test);
+		checkUpdates("cached levels", test);
+	}
+
+	/**
+	 * It checks that the proofs of the proof cache are the same as the ones it was filled with, and that no proof survives an update.
+	 */
+	private static void checkProofCache(String rootDirectory)
+	{
+		HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+		test.setProofCacheSize(16);
+		outsource(test);
+		checkSearches("proof cache", test);
+		checkSearches("proof cache, repeated", test);
+
+		// a cached proof is found without the lock, which e.g. a long update holds
+		final HashTreeBasedOutsourcing cache = test;
+		final byte[] query                   = test.query(files(test).get(0));
+		final ProofData cached               = test.search(query);
+		final ProofData[] found              = new ProofData[1];
+		Thread searcher = new Thread()
+		{
+			public void run()
+			{
+				found[0] = cache.search(query);
+			}
+		};
+		synchronized (test)
+		{
+			searcher.start();
+			try
+			{
+				searcher.join(10000);
+			}
+			catch (InterruptedException e)
+			{
+				check("proof cache: wait for the search", false);
+			}
+			check("proof cache: a hit while the lock is held", searcher.isAlive() == false && found[0] == cached);
+		}
+		checkUpdates("proof cache", test);
+	}
+
+	/**
+	 * It checks that a proof is verified against the version which produced it, and only against it,
+	 * also while files are added and removed by another thread.
+	 */
+	private static void checkVersions(String rootDirectory)
+	{
+		String mode = "versioned";
+		final HashTreeBasedOutsourcing test = newInstance(rootDirectory, 0.2);
+		test.setVersioned(true);
+		outsource(test);
+		checkSearches(mode, test);
+		checkBatch(mode, test);
+		checkUpdates(mode, test);
+
+		String file              = "versioned" + test.getRandomNonExistingFile();
+		byte[] query             = test.query(file);
+		VersionedHashTree before = test.getVersion();
+		ProofData proof          = test.search(before, query);
+
+		test.addFile(file);
+		VersionedHashTree after  = test.getVersion();
+		check(mode + ": a new version", after.getVersion() > before.getVersion());
+		check(mode + ": the old proof against its version", test.verify(query, proof, before) == true && proof.getExistingFlag() == 0);
+		check(mode + ": the old proof against the new version", test.verify(query, proof, after) == false);
+
+		proof = test.search(after, query);
+		check(mode + ": the new proof against its version", test.verify(query, proof, after) == true && proof.getExistingFlag() == 1);
+		check(mode + ": the new proof against the old version", test.verify(query, proof, before) == false);
+
+		List<byte[]> queries = new ArrayList<byte[]>();
+		queries.add(query);
+		queries.add(test.query(test.getRandomExistingFile()));
+		MultiProofData multi = test.search(before, queries);
+		check(mode + ": the old batch against its version", test.verify(queries, multi, before)[0] == true && test.verify(queries, multi, before)[1] == true);
+		check(mode + ": the old batch against the new version", test.verify(queries, multi, after)[0] == false);
+
+		final List<byte[]> reads = new ArrayList<byte[]>();
+		for (String temp : files(test))
+			reads.add(test.query(temp));
+		final AtomicInteger wrong = new AtomicInteger(0);
+		Thread reader = new Thread()
+		{
+			public void run()
+			{
+				for (int round = 0; round < 50; round++)
+				{
+					for (byte[] temp : reads)
+					{
+						VersionedHashTree snapshot = test.getVersion();
+						if (test.verify(temp, test.search(snapshot, temp), snapshot) == false)
+							wrong.incrementAndGet();
+					}
+				}
+			}
+		};
+		reader.start();
+		for (int i = 0; i < 100; i++)
+		{
+			test.addFile("concurrent" + i);
+			test.removeFile("concurrent" + (i / 2));
+		}
+		try
+		{
+			reader.join();
+		}
+		catch (InterruptedException e)
+		{
+			check(mode + ": wait for the reader", false);
+		}
+		check(mode + ": searches against snapshots while files are updated", wrong.get() == 0);
+	}
+
+	/**
+	 * It creates an object for the files of the directory, with a new key.
+	 */
+	private static HashTreeBasedOutsourcing newInstance(String rootDirectory, double loadFactor)
+	{
+		return new HashTreeBasedOutsourcing(rootDirectory, loadFactor);
+	}
+
+	private static void outsource(HashTreeBasedOutsourcing test)
+	{
+		test.prepareOutsource();
+		test.outsource();
+	}
+
+	private static void check(String name, boolean result)
+	{
+		checks++;
+		if (result == false)
+		{
+			failures++;
+			System.out.println("FAILED: " + name);
+		}
+	}
+
+	/**
+	 * It creates a temporary directory holding empty files with the given relative paths; it is deleted when the program exits.
+	 * @return The directory; null if it cannot be created.
+	 */
+	private static String createDirectory(String[] names)
+	{
+		try
+		{
+			File root = File.createTempFile("files", "");
+			root.delete();
+			root.mkdir();
+			root.deleteOnExit();
+			for (String name : names)
+			{
+				File file = new File(root, name);
+				List<File> parents = new ArrayList<File>();
+				for (File parent = file.getParentFile(); parent.equals(root) == false; parent = parent.getParentFile())
+					parents.add(0, parent);
+				for (File parent : parents)
+					if (parent.mkdir() == true)
+						parent.deleteOnExit();  // files registered later are deleted before it
+				file.createNewFile();
+				file.deleteOnExit();
+			}
+			return root.getPath();
+		}
+		catch (Exception e)
+		{
+			check("create a temporary directory", false);
+			return null;
+		}
+	}
+
+	/**
+	 * It gets some existing files and some non-existing files.
+	 */
+	private static List<String> files(HashTreeBasedOutsourcing test)
+	{
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i < 10; i++)
+		{
+			result.add(test.getRandomExistingFile());
+			result.add(test.getRandomNonExistingFile());
+		}
+		return result;
+	}
+
+	/**
+	 * It checks the proofs of single queries and their tampered copies.
+	 */
+	private static void checkSearches(String mode, HashTreeBasedOutsourcing test)
+	{
+		ProofData other = null;
+		for (String file : files(test))
+		{
+			byte[] query    = test.query(file);
+			ProofData proof = test.search(query);
+			int expected    = (file.endsWith("?!") == true) ? 0 : 1;
+
+			check(mode + ": " + file, test.verify(query, proof) == true && proof.getExistingFlag() == expected);
+			checkTampered(mode + ": " + file, test, query, proof);
+			if (other != null)
+				check(mode + ": the proof of another query for " + file, test.verify(query, other) == false);
+			other = proof;
+		}
+	}
+
+	/**
+	 * It checks that every kind of tampering with the proof of a single query is rejected.
+	 */
+	private static void checkTampered(String name, HashTreeBasedOutsourcing test, byte[] query, ProofData proof)
+	{
+		ProofData tampered = copy(proof);
+		tampered.setExistingFlag(1 - proof.getExistingFlag());
+		check(name + ": flipped existing flag", test.verify(query, tampered) == false);
+
+		tampered = copy(proof);
+		MetaProofData last = tampered.getAuthentication(tampered.getTotalItems() - 1);
+		last.getFilename()[0] ^= 1;
+		check(name + ": changed filename", test.verify(query, tampered) == false);
+
+		tampered = copy(proof);
+		last     = tampered.getAuthentication(tampered.getTotalItems() - 1);
+		if (last.getKey() != null)
+			last.getKey()[0] ^= 1;
+		else
+			last.setIndex(last.getIndex() + 1);
+		check(name + ": changed leaf index", test.verify(query, tampered) == false);
+
+		tampered = copy(proof);
+		last     = tampered.getAuthentication(tampered.getTotalItems() - 1);
+		byte[][] path = (last.getAuthenticationPath() != null) ? last.getAuthenticationPath() : last.getSiblingPath();
+		if (path.length > 0)
+		{
+			path[0][0] ^= 1;
+			check(name + ": changed path node", test.verify(query, tampered) == false);
+		}
+
+		tampered = new ProofData(query);
+		tampered.setExistingFlag(proof.getExistingFlag());
+		for (int i = 0; i < proof.getTotalItems() - 1; i++)
+			tampered.addProofData(proof.getAuthentication(i));
+		check(name + ": dropped authentication path", test.verify(query, tampered) == false);
+	}
+
+	/**
+	 * It checks the multi-leaf proof of a batch of queries, and its tampered copies.
+	 */
+	private static void checkBatch(String mode, HashTreeBasedOutsourcing test)
+	{
+		List<String> files   = files(test);
+		List<byte[]> queries = new ArrayList<byte[]>();
+		for (String file : files)
+			queries.add(test.query(file));
+
+		MultiProofData proof = test.search(queries);
+		boolean[] result     = test.verify(queries, proof);
+		for (int i = 0; i < result.length; i++)
+			check(mode + ": batch, " + files.get(i), result[i] == true && proof.getExistingFlag()[i] == (files.get(i).endsWith("?!") == true ? 0 : 1));
+		checkTampered(mode + ": batch", test, queries, proof);
+	}
+
+	/**
+	 * It checks that every kind of tampering with a multi-leaf proof is rejected for the queries which it touches.
+	 */
+	private static void checkTampered(String name, HashTreeBasedOutsourcing test, List<byte[]> queries, MultiProofData proof)
+	{
+		MultiProofData tampered = copy(proof);
+		tampered.getExistingFlag()[0] = 1 - tampered.getExistingFlag()[0];
+		check(name + ": flipped existing flag", test.verify(queries, tampered)[0] == false);
+
+		tampered = copy(proof);
+		tampered.getFilename()[0][0] ^= 1;
+		check(name + ": changed filename", test.verify(queries, tampered)[0] == false);
+
+		if (proof.getProof().length > 0)
+		{
+			tampered = copy(proof);
+			tampered.getProof()[0][0] ^= 1;
+			check(name + ": changed proof node", rejectsAny(test.verify(queries, tampered)) == true);
+		}
+	}
+
+	/**
+	 * A changed node of a multi-leaf proof rejects at least the queries whose paths use it.
+	 */
+	private static boolean rejectsAny(boolean[] result)
+	{
+		for (boolean temp : result)
+			if (temp == false)
+				return true;
+		return false;
+	}
+
+	/**
+	 * It checks that added and removed files are found as such, and that a proof made before an update is rejected after it.
+	 */
+	private static void checkUpdates(String mode, HashTreeBasedOutsourcing test)
+	{
+		String file     = "added" + test.getRandomNonExistingFile();
+		byte[] query    = test.query(file);
+		ProofData stale = test.search(query);
+
+		check(mode + ": add " + file, test.addFile(file) != null);
+		ProofData proof = test.search(query);
+		check(mode + ": added file found", test.verify(query, proof) == true && proof.getExistingFlag() == 1);
+		check(mode + ": proof from before the add", test.verify(query, stale) == false);
+		check(mode + ": add the file again", test.addFile(file) == null);
+
+		stale = proof;
+		check(mode + ": remove " + file, test.removeFile(file) != null);
+		proof = test.search(query);
+		check(mode + ": removed file not found", test.verify(query, proof) == true && proof.getExistingFlag() == 0);
+		check(mode + ": proof from before the removal", test.verify(query, stale) == false);
+		check(mode + ": remove the file again", test.removeFile(file) == null);
+	}
+
+	/**
+	 * It copies a proof, so that it can be tampered with while the cloud may keep the original.
+	 */
+	private static ProofData copy(ProofData proof)
+	{
+		ProofData result = new ProofData(proof.getQueryFile().clone());
+		result.setExistingFlag(proof.getExistingFlag());
+		for (int i = 0; i < proof.getTotalItems(); i++)
+		{
+			MetaProofData temp = proof.getAuthentication(i);
+			if (temp.getKey() != null)
+				result.addProofData(new MetaProofData(temp.getKey().clone(), temp.getFilename().clone(), temp.getBitmap().clone(), copy(temp.getSiblingPath())));
+			else if (temp.getAuthenticationPath() != null)
+				result.addProofData(new MetaProofData(temp.getIndex(), temp.getFilename().clone(), copy(temp.getAuthenticationPath())));
+			else
+				result.addProofData(new MetaProofData(temp.getIndex(), temp.getFilename().clone(), temp.getDirections(), copy(temp.getSiblingPath())));
+		}
+		return result;
+	}
+
+	private static MultiProofData copy(MultiProofData proof)
+	{
+		return new MultiProofData(copy(proof.getQueryFile()), proof.getExistingFlag().clone(), proof.getTotalItems().clone(),
+				proof.getIndex().clone(), copy(proof.getFilename()), copy(proof.getProof()));
+	}
+
+	private static byte[][] copy(byte[][] nodes)
+	{
+		byte[][] result = new byte[nodes.length][];
+		for (int i = 0; i < nodes.length; i++)
+			result[i] = nodes[i].clone();
+		return result;
+	}
+}
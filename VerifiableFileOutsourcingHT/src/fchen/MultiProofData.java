@@ -0,0 +1,117 @@
+package fchen;
+
+/**
+ * This class encapsulates the search result for several queries returned by
+ * the cloud, together with one correctness proof for all of them. For every
+ * query, it tells whether the file exists and how many leaves its probing
+ * chain has; the leaves of all the chains are given once, in the increasing
+ * order of their indices, and are authenticated by one multi-leaf proof of
+ * the hash tree (see HashTree.getMultiProof()) instead of one authentication
+ * path per leaf.
+ *
+ * @author Chen, Fei (https://sites.google.com/site/chenfeiorange/)
+ * @author Email: chenfeiorange@163.com
+ */
+public class MultiProofData
+{
+    private byte[][] queryFile  = null; // queried filename MACs
+    private int[] existingFlag  = null; // for every query, 1: file exists; 0:
+					// file not exist
+    private int[] totalItems    = null; // for every query, the number of
+					// leaves of its probing chain
+    private int[] index         = null; // indices of all the leaves of the
+					// chains, in increasing order
+    private byte[][] filename   = null; // filenames of these leaves
+    private byte[][] proof      = null; // the nodes of the multi-leaf proof
+
+    public MultiProofData(byte[][] queryFile, int[] existingFlag, int[] totalItems, int[] index, byte[][] filename,
+	    byte[][] proof)
+    {
+	super();
+
+	this.queryFile    = queryFile;
+	this.existingFlag = existingFlag;
+	this.totalItems   = totalItems;
+	this.index        = index;
+	this.filename     = filename;
+	this.proof        = proof;
+    }
+
+    /**
+     * This function prints out the whole proof data.
+     */
+    public void print()
+    {
+	for (int i = 0; i < this.queryFile.length; i++)
+	    System.out.println("query file: " + HashTreeBasedOutsourcing.bytes2HexString(this.queryFile[i])
+		    + "; existing flag: " + this.existingFlag[i] + "; total items: " + this.totalItems[i]);
+
+	for (int i = 0; i < this.index.length; i++)
+	    System.out.println("[ " + this.index[i] + "; " + HashTreeBasedOutsourcing.bytes2HexString(this.filename[i]) + " ]");
+
+	String temp = "proof: ";
+	for (int i = 0; i < this.proof.length; i++)
+	    temp = temp + HashTreeBasedOutsourcing.bytes2HexString(this.proof[i]) + " ";
+	System.out.println(temp);
+    }
+
+    public byte[][] getQueryFile()
+    {
+	return queryFile;
+    }
+
+    public void setQueryFile(byte[][] queryFile)
+    {
+	this.queryFile = queryFile;
+    }
+
+    public int[] getExistingFlag()
+    {
+	return existingFlag;
+    }
+
+    public void setExistingFlag(int[] existingFlag)
+    {
+	this.existingFlag = existingFlag;
+    }
+
+    public int[] getTotalItems()
+    {
+	return totalItems;
+    }
+
+    public void setTotalItems(int[] totalItems)
+    {
+	this.totalItems = totalItems;
+    }
+
+    public int[] getIndex()
+    {
+	return index;
+    }
+
+    public void setIndex(int[] index)
+    {
+	this.index = index;
+    }
+
+    public byte[][] getFilename()
+    {
+	return filename;
+    }
+
+    public void setFilename(byte[][] filename)
+    {
+	this.filename = filename;
+    }
+
+    public byte[][] getProof()
+    {
+	return proof;
+    }
+
+    public void setProof(byte[][] proof)
+    {
+	this.proof = proof;
+    }
+}
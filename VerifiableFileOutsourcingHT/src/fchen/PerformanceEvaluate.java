@@ -14,8 +14,56 @@ package fchen;
 public class PerformanceEvaluate {
 
 	public static void main(String[] args) {
-		Benchmark b = new Benchmark("D:\\test\\files\\test6");
+		// the same directory with both MAC algorithms
+		Benchmark b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
 		b.run();
+		b = new Benchmark("D:\\test\\files\\test6", TagFunction.AES_CMAC);
+		b.run();
+		// the same directory with compact authentication paths
+		b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
+		b.setCompactProof(true);
+		b.run();
+		// the same directory with a hash tree of the real number of slots
+		b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
+		b.setExactLeafCount(true);
+		b.run();
+		// the same directory with cuckoo hashing at a high load
+		b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
+		b.setExactLeafCount(true);
+		b.setCuckooTables(3);
+		b.setLoadFactor(0.8);
+		b.run();
+		// the same directory with a sparse Merkle tree keyed by the filename MACs
+		b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
+		b.setSparseTree(true);
+		b.run();
+		// the same directory with wider hash trees: fewer hashes per verification, larger proofs
+		for (int arity = 4; arity <= 16; arity = arity * 2)
+		{
+			b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
+			b.setArity(arity);
+			b.run();
+		}
+		// the same directory with the top levels of the hash tree kept by the verifier: shorter proofs and fewer hashes
+		b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
+		b.setCachedLevels(8);
+		b.run();
+		// the same directory with the proofs of repeated queries cached by the cloud
+		b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
+		b.setProofCacheSize(1024);
+		b.run();
+		// the same directory with searches on immutable versions of the hash tree, which take no lock
+		b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
+		b.setVersioned(true);
+		b.run();
+		// the same directory searched by one thread per processor while another thread adds and removes files,
+		// first with one lock around the hash tree, then with the searches on pinned versions
+		for (boolean versioned : new boolean[] { false, true })
+		{
+			b = new Benchmark("D:\\test\\files\\test6", TagFunction.HMAC_SHA256);
+			b.setVersioned(versioned);
+			b.runConcurrent(Runtime.getRuntime().availableProcessors());
+		}
 	}
 
 }
@@ -47,6 +47,41 @@ public class ProofData
      *         else false.
      */
     public boolean validate(int leafSize, byte[] root)
+    {
+	return this.validate(leafSize, 2, root);
+    }
+
+    /**
+     * This function checks whether the proof of a hash tree of any fan-out is
+     * correct on its own; see validate(int, byte[]).
+     * 
+     * @param arity
+     *            - the fan-out of the authentication tree
+     */
+    public boolean validate(int leafSize, int arity, byte[] root)
+    {
+	return this.validate(leafSize, arity, root, null);
+    }
+
+    /**
+     * This function checks whether a proof whose paths stop at a level cached
+     * by the verifier is correct on its own; see validate(int, byte[]) and
+     * MetaProofData.validate(byte[][], int, int).
+     * 
+     * @param cache
+     *            - all the nodes of the cached level, authenticated against
+     *            the root
+     */
+    public boolean validate(int leafSize, int arity, byte[][] cache)
+    {
+	return this.validate(leafSize, arity, null, cache);
+    }
+
+    /**
+     * This function checks the paths against the root, or against the cached
+     * level if it is given.
+     */
+    private boolean validate(int leafSize, int arity, byte[] root, byte[][] cache)
     {
 	int cheatFlag     = 0;
 	int indexExpected = -1;
@@ -59,7 +94,7 @@ public class ProofData
 
 	MetaProofData metaData = this.authentication.get(0);
 	if (metaData.getIndex() != indexExpected
-		|| metaData.validate(root) == false)
+		|| this.validate(metaData, leafSize, arity, root, cache) == false)
 	    cheatFlag = cheatFlag + 1;
 
 	if (this.totalItems == 1)
@@ -80,7 +115,7 @@ public class ProofData
 	
 	//System.out.println("proof data validate cheat flag" + cheatFlag);
 	
-	if (metaData.validate(root) == false)
+	if (this.validate(metaData, leafSize, arity, root, cache) == false)
 	    cheatFlag = cheatFlag + 1;
 
 	//System.out.println("proof data validate cheat flag" + cheatFlag);
@@ -100,7 +135,7 @@ public class ProofData
 	    indexExpected = (indexExpected + 101) % leafSize;
 	    metaData = this.authentication.get(i);
 	    if (metaData.getIndex() != indexExpected
-		    || metaData.validate(root) == false)
+		    || this.validate(metaData, leafSize, arity, root, cache) == false)
 		cheatFlag = cheatFlag + 1;
 	}
 
@@ -110,6 +145,13 @@ public class ProofData
 	    return false;
     }
     
+    private boolean validate(MetaProofData metaData, int leafSize, int arity, byte[] root, byte[][] cache)
+    {
+	if (cache != null)
+	    return metaData.validate(cache, leafSize, arity);
+	return metaData.validate(root, leafSize, arity);
+    }
+    
     /**
      * This function prints out the whole proof data.
      */
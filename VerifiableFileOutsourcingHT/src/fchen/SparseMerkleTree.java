@@ -0,0 +1,473 @@
+package fchen;
+
+import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * This class implements a sparse Merkle tree keyed by filename MACs. The tree
+ * has a leaf for every possible MAC, i.e. 2^256 leaves for HMAC-SHA256: the
+ * leaf of a MAC which is in the tree holds hash(MAC), and all the other
+ * leaves are empty. The i-th bit of a MAC, from the most significant bit of
+ * its first byte, tells whether its leaf lies to the left (0) or to the right
+ * (1) below a node of depth i.
+ *
+ * An empty subtree of height h has the default hash value DEFAULTS[h], where
+ * DEFAULTS[0] is all zero and DEFAULTS[h] = hash(DEFAULTS[h - 1], DEFAULTS[h
+ * - 1]); so only the nodes where the paths of the MACs branch are stored, and
+ * the storage is proportional to the number of files. Every MAC has exactly
+ * one leaf, so both membership and non-membership are proved by one
+ * authentication path; a sibling with a default hash value is not sent but
+ * marked by a 0 in a bitmap.
+ *
+ * @author Chen, Fei (https://sites.google.com/site/chenfeiorange/)
+ * @author Email: chenfeiorange@163.com
+ */
+public class SparseMerkleTree
+{
+    public final static int MAX_KEY_BITS = 256;
+
+    private final static byte[][] DEFAULTS = defaultHashes(); // default hash
+							       // values of the
+							       // empty
+							       // subtrees
+
+    private int keyBits      = 0; // the length of a key (MAC) in bits, i.e.
+				  // the height of the tree
+    private Node root        = null; // null if the tree is empty
+    private int size         = 0; // number of keys
+    private boolean changed  = false; // whether the last insert or remove
+				      // changed the tree
+    private MessageDigest md = null; // SHA-256 is used here
+
+    /**
+     * This class is a node of the tree which is stored: a leaf of a key, or a
+     * node where the paths of two keys branch. The nodes of depth between a
+     * node and its parent in the stored tree have a default hash value as the
+     * other child, and are not stored.
+     */
+    private static class Node
+    {
+	private int depth    = 0; // keyBits for a leaf
+	private byte[] key   = null; // the key of the leaf, or one of the keys
+				     // below the node
+	private Node left    = null; // null for a leaf
+	private Node right   = null;
+	private byte[] hash  = null; // the hash value of the node
+	private byte[] top   = null; // the hash value of the node extended up to
+				     // depth 'topDepth'; see extend()
+	private int topDepth = -1;
+    }
+
+    /**
+     * This function constructs an empty sparse Merkle tree.
+     *
+     * @param keyBits
+     *            - The length of the keys in bits, a multiple of 8 up to 256,
+     *            e.g. 256 for HMAC-SHA256 and 128 for AES-CMAC
+     */
+    public SparseMerkleTree(int keyBits)
+    {
+	this.keyBits = keyBits;
+
+	try
+	{
+	    this.md = MessageDigest.getInstance("SHA-256");
+	} catch (Exception e)
+	{
+	    System.out.println("get SHA-256 instance error");
+	    System.out.println(e);
+	}
+    }
+
+    private static byte[][] defaultHashes()
+    {
+	byte[][] result = new byte[MAX_KEY_BITS + 1][];
+	result[0]       = new byte[HashTree.HASH_LENGTH];
+
+	try
+	{
+	    MessageDigest md = MessageDigest.getInstance("SHA-256");
+	    for (int h = 1; h <= MAX_KEY_BITS; h++)
+	    {
+		md.update(result[h - 1]);
+		result[h] = md.digest(result[h - 1]);
+	    }
+	} catch (Exception e)
+	{
+	    System.out.println("get SHA-256 instance error - default hashes");
+	    System.out.println(e);
+	}
+
+	return result;
+    }
+
+    /**
+     * This function inserts a key.
+     *
+     * @param key
+     *            - The key, of keyBits bits
+     * @return - true if it has been inserted; false if it is already in the
+     *         tree
+     */
+    public boolean insert(byte[] key)
+    {
+	this.changed = false;
+	if (this.root == null)
+	{
+	    this.root    = this.newLeaf(key);
+	    this.changed = true;
+	} else
+	    this.root = this.insert(this.root, key);
+
+	if (this.changed == true)
+	    this.size = this.size + 1;
+	return this.changed;
+    }
+
+    private Node insert(Node node, byte[] key)
+    {
+	int p = firstDifference(key, node.key, node.depth);
+	if (p < node.depth) // the key leaves the path of the node above it
+	{
+	    Node branch  = new Node();
+	    branch.depth = p;
+	    branch.key   = node.key;
+	    if (bit(key, p) == 1)
+	    {
+		branch.left  = node;
+		branch.right = this.newLeaf(key);
+	    } else
+	    {
+		branch.left  = this.newLeaf(key);
+		branch.right = node;
+	    }
+	    this.hashBranch(branch);
+	    this.changed = true;
+	    return branch;
+	}
+
+	if (node.left == null) // the same key
+	    return node;
+
+	if (bit(key, node.depth) == 1)
+	    node.right = this.insert(node.right, key);
+	else
+	    node.left = this.insert(node.left, key);
+
+	if (this.changed == true)
+	    this.hashBranch(node);
+	return node;
+    }
+
+    /**
+     * This function removes a key.
+     *
+     * @param key
+     *            - The key
+     * @return - true if it has been removed; false if it is not in the tree
+     */
+    public boolean remove(byte[] key)
+    {
+	this.changed = false;
+	if (this.root != null)
+	    this.root = this.remove(this.root, key);
+
+	if (this.changed == true)
+	    this.size = this.size - 1;
+	return this.changed;
+    }
+
+    private Node remove(Node node, byte[] key)
+    {
+	if (firstDifference(key, node.key, node.depth) < node.depth) // not below the node
+	    return node;
+
+	if (node.left == null) // the leaf of the key
+	{
+	    this.changed = true;
+	    return null;
+	}
+
+	boolean right = (bit(key, node.depth) == 1);
+	Node child    = this.remove(right == true ? node.right : node.left, key);
+	if (this.changed == false)
+	    return node;
+	if (child == null) // the node does not branch any more
+	    return (right == true) ? node.left : node.right;
+
+	if (right == true)
+	    node.right = child;
+	else
+	    node.left = child;
+	this.hashBranch(node);
+	return node;
+    }
+
+    /**
+     * This function checks whether a key is in the tree.
+     *
+     * @param key
+     *            - The key
+     * @return - true if it is in the tree
+     */
+    public boolean contains(byte[] key)
+    {
+	Node node = this.root;
+	while (node != null && firstDifference(key, node.key, node.depth) == node.depth)
+	{
+	    if (node.left == null)
+		return true;
+	    node = (bit(key, node.depth) == 1) ? node.right : node.left;
+	}
+	return false;
+    }
+
+    /**
+     * This function gets the root hash value of the tree.
+     *
+     * @return - The root hash value
+     */
+    public byte[] getRoot()
+    {
+	if (this.root == null)
+	    return DEFAULTS[this.keyBits].clone();
+	return this.extend(this.root, 0).clone();
+    }
+
+    /**
+     * This function gets the proof for a key, whether it is in the tree or
+     * not: the authentication path of its leaf.
+     *
+     * @param key
+     *            - The key
+     * @return - The proof, where the filename is the key if it is in the tree
+     *         and all zero otherwise; the siblings with a default hash value
+     *         are left out and marked by a 0 in the bitmap
+     */
+    public MetaProofData prove(byte[] key)
+    {
+	byte[] bitmap             = new byte[this.keyBits / 8];
+	ArrayList<byte[]> sibling = new ArrayList<byte[]>(); // from the top
+	boolean member            = false;
+	Node node                 = this.root;
+
+	while (node != null)
+	{
+	    int p = firstDifference(key, node.key, node.depth);
+	    if (p < node.depth) // the leaf of the key lies in an empty subtree
+				// beside the node
+	    {
+		sibling.add(this.extend(node, p + 1).clone());
+		bitmap[p >>> 3] |= (byte) (0x80 >>> (p & 7));
+		break;
+	    }
+	    if (node.left == null)
+	    {
+		member = true;
+		break;
+	    }
+
+	    boolean right = (bit(key, node.depth) == 1);
+	    sibling.add(this.extend(right == true ? node.left : node.right, node.depth + 1).clone());
+	    bitmap[node.depth >>> 3] |= (byte) (0x80 >>> (node.depth & 7));
+	    node = (right == true) ? node.right : node.left;
+	}
+
+	Collections.reverse(sibling); // from the bottom
+	byte[] filename = (member == true) ? key.clone() : new byte[key.length];
+	return new MetaProofData(key.clone(), filename, bitmap, sibling.toArray(new byte[sibling.size()][]));
+    }
+
+    /**
+     * This function checks whether an authentication path of a sparse Merkle
+     * tree is correct; see prove().
+     *
+     * @param key
+     *            - The key
+     * @param filename
+     *            - The content of its leaf: the key itself if it is in the
+     *            tree; all zero if it is not
+     * @param bitmap
+     *            - Bit i, from the most significant bit of the first byte, is
+     *            1 if the sibling at depth i + 1 is given
+     * @param siblingPath
+     *            - The given siblings from the bottom to the top
+     * @param root
+     *            - The root value of the tree
+     * @return - If it is correct, return true; else false.
+     */
+    public static boolean verify(byte[] key, byte[] filename, byte[] bitmap, byte[][] siblingPath, byte[] root)
+    {
+	MessageDigest md = CryptoPool.sha256();
+	byte[] temp      = CryptoPool.scratch();
+
+	int keyBits = key.length * 8;
+	if (keyBits > MAX_KEY_BITS || bitmap.length * 8 != keyBits)
+	    return false;
+
+	boolean empty = false; // whether the current node is the root of an
+			       // empty subtree; its hash value is a default
+			       // one, which is not copied into 'temp'
+	if (Arrays.equals(filename, key) == true)
+	{
+	    md.update(key);
+	    if (digest(md, temp) == false)
+		return false;
+	} else if (isZero(filename) == true && filename.length == key.length)
+	    empty = true;
+	else
+	    return false;
+
+	int k = 0; // next given sibling
+	for (int level = keyBits - 1; level >= 0; level--)
+	{
+	    int height     = keyBits - 1 - level; // of the sibling
+	    boolean given  = (bitmap[level >>> 3] & (0x80 >>> (level & 7))) != 0;
+	    if (empty == true && given == false) // still empty
+		continue;
+
+	    byte[] sibling = DEFAULTS[height];
+	    if (given == true)
+	    {
+		if (k == siblingPath.length)
+		    return false;
+		sibling = siblingPath[k++];
+	    }
+
+	    if (empty == true)
+	    {
+		System.arraycopy(DEFAULTS[height], 0, temp, 0, HashTree.HASH_LENGTH);
+		empty = false;
+	    }
+
+	    if (bit(key, level) == 1)
+	    {
+		md.update(sibling);
+		md.update(temp);
+	    } else
+	    {
+		md.update(temp);
+		md.update(sibling);
+	    }
+	    if (digest(md, temp) == false)
+		return false;
+	}
+
+	if (empty == true)
+	    temp = DEFAULTS[keyBits];
+	return k == siblingPath.length && Arrays.equals(temp, root);
+    }
+
+    private static boolean digest(MessageDigest md, byte[] result)
+    {
+	try
+	{
+	    md.digest(result, 0, HashTree.HASH_LENGTH);
+	    return true;
+	} catch (DigestException e)
+	{
+	    System.out.println("sparse Merkle tree digest error - static verify");
+	    System.out.println(e);
+	    return false;
+	}
+    }
+
+    private static boolean isZero(byte[] value)
+    {
+	for (int i = 0; i < value.length; i++)
+	    if (value[i] != 0)
+		return false;
+	return true;
+    }
+
+    private Node newLeaf(byte[] key)
+    {
+	Node leaf  = new Node();
+	leaf.depth = this.keyBits;
+	leaf.key   = key.clone();
+	this.md.update(leaf.key);
+	leaf.hash  = this.md.digest();
+	return leaf;
+    }
+
+    /**
+     * This function computes the hash value of a branching node from its two
+     * children.
+     */
+    private void hashBranch(Node node)
+    {
+	byte[] left  = this.extend(node.left, node.depth + 1);
+	byte[] right = this.extend(node.right, node.depth + 1);
+	this.md.update(left);
+	node.hash = this.md.digest(right);
+	node.top  = null;
+    }
+
+    /**
+     * This function computes the hash value of the ancestor of depth 'depth'
+     * of a node, when all the subtrees beside the path in between are empty.
+     * The result is kept until the node changes.
+     */
+    private byte[] extend(Node node, int depth)
+    {
+	if (node.top != null && node.topDepth == depth)
+	    return node.top;
+
+	byte[] temp = node.hash;
+	for (int level = node.depth - 1; level >= depth; level--)
+	{
+	    byte[] sibling = DEFAULTS[this.keyBits - 1 - level];
+	    if (bit(node.key, level) == 1)
+	    {
+		this.md.update(sibling);
+		temp = this.md.digest(temp);
+	    } else
+	    {
+		this.md.update(temp);
+		temp = this.md.digest(sibling);
+	    }
+	}
+
+	node.top      = temp;
+	node.topDepth = depth;
+	return temp;
+    }
+
+    /**
+     * This function gets the i-th bit of a key, from the most significant bit
+     * of the first byte.
+     */
+    private static int bit(byte[] key, int i)
+    {
+	return (key[i >>> 3] >>> (7 - (i & 7))) & 1;
+    }
+
+    /**
+     * This function finds the first bit in which two keys differ, among the
+     * first 'limit' bits.
+     *
+     * @return - The index of the bit, or 'limit' if they do not differ
+     */
+    private static int firstDifference(byte[] a, byte[] b, int limit)
+    {
+	for (int i = 0; i < limit; i = i + 8)
+	{
+	    int x = (a[i >>> 3] ^ b[i >>> 3]) & 0xff;
+	    if (x != 0)
+		return Math.min(limit, i + Integer.numberOfLeadingZeros(x) - 24);
+	}
+	return limit;
+    }
+
+    public int size()
+    {
+	return size;
+    }
+
+    public int getKeyBits()
+    {
+	return keyBits;
+    }
+}
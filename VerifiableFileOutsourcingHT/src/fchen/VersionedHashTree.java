@@ -0,0 +1,376 @@
+package fchen;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class implements a persistent hash tree: a version never changes once
+ * it has been created, and update() returns a new version instead. The new
+ * version copies only the nodes on the path from the updated leaf to the root,
+ * i.e. treeHeight + 1 nodes, and shares all the other nodes with the previous
+ * one. A version can therefore be read by any number of threads without a
+ * lock while a writer derives the next versions from it.
+ *
+ * The tree has the shape and the hash values of a HashTree with the same
+ * leaves and fan-out: node j of a level has the children kj to kj + k - 1 on
+ * the level below, and a node with a single child has the hash value of the
+ * child. The roots and the authentication paths of both are the same, so
+ * they are checked by the same functions of HashTree.
+ *
+ * Every node is an object of its own, which takes more memory than the arrays
+ * of HashTree; the nodes of old versions are garbage collected once no reader
+ * holds them.
+ *
+ * @author Chen, Fei (https://sites.google.com/site/chenfeiorange/)
+ * @author Email: chenfeiorange@163.com
+ */
+public class VersionedHashTree implements HashTreeView
+{
+    /**
+     * A node of the tree. A leaf node has the leaf and no children.
+     */
+    private static class Node
+    {
+	private final byte[] hash;     // hash(index, leaf) for a leaf node
+	private final Node[] children; // from the left to the right; null for
+				       // a leaf node
+	private final byte[] leaf;     // null for an inner node
+
+	private Node(byte[] hash, Node[] children, byte[] leaf)
+	{
+	    this.hash     = hash;
+	    this.children = children;
+	    this.leaf     = leaf;
+	}
+    }
+
+    private final Node root;
+    private final int[] count;     // number of nodes of every level; level 0
+				   // holds the leaves; shared by all versions
+    private final int treeHeight;
+    private final int leafLength;
+    private final int arity;
+    private final long version;    // 0 for the first version, then 1, 2, ...
+
+    /**
+     * It constructs the first version of a persistent tree with the nodes and
+     * the leaves of a hash tree. Nothing is hashed.
+     *
+     * @param tree
+     *            - The hash tree
+     */
+    public VersionedHashTree(HashTree tree)
+    {
+	super();
+	this.arity      = tree.getArity();
+	this.leafLength = tree.getLeafLength();
+	this.count      = HashTree.levelSizes(tree.getLeafCount(), this.arity);
+	this.treeHeight = this.count.length - 1;
+	this.version    = 0;
+
+	byte[][] hashes = tree.getLevel(0);
+	Node[] level    = new Node[hashes.length];
+	for (int i = 0; i < level.length; i++)
+	    level[i] = new Node(hashes[i], null, tree.getLeaf(i));
+
+	for (int l = 1; l <= this.treeHeight; l++)
+	{
+	    hashes    = tree.getLevel(l);
+	    Node[] up = new Node[hashes.length];
+	    for (int j = 0; j < up.length; j++)
+		up[j] = new Node(hashes[j], Arrays.copyOfRange(level, this.arity * j,
+			Math.min(this.arity * (j + 1), level.length)), null);
+	    level = up;
+	}
+
+	this.root = level[0];
+    }
+
+    /**
+     * It constructs the version which follows another one and has a new root.
+     */
+    private VersionedHashTree(VersionedHashTree previous, Node root)
+    {
+	super();
+	this.root       = root;
+	this.count      = previous.count;
+	this.treeHeight = previous.treeHeight;
+	this.leafLength = previous.leafLength;
+	this.arity      = previous.arity;
+	this.version    = previous.version + 1;
+    }
+
+    /**
+     * This function updates a leaf node in a new version of the tree. The path
+     * from the leaf to the root is copied and rehashed; this version does not
+     * change.
+     *
+     * @param index
+     *            - The index of the leaf node. It starts with 0.
+     * @param value
+     *            - The new value of the leaf node, of the length of a leaf
+     *            node
+     * @return - The new version
+     */
+    public VersionedHashTree update(int index, byte[] value)
+    {
+	Node[] path      = this.path(index);
+	MessageDigest md = CryptoPool.sha256();
+	byte[] leaf      = Arrays.copyOf(value, this.leafLength);
+
+	HashTree.updateInt(md, index);
+	Node node    = new Node(md.digest(leaf), null, leaf);
+	int position = index;
+	for (int l = 1; l <= this.treeHeight; l++)
+	{
+	    Node[] children = path[l].children.clone();
+	    children[position % this.arity] = node;
+	    position = position / this.arity;
+
+	    if (children.length == 1) // copied up
+		node = new Node(node.hash, children, null);
+	    else
+	    {
+		for (int p = 0; p < children.length; p++)
+		    md.update(children[p].hash);
+		node = new Node(md.digest(), children, null);
+	    }
+	}
+
+	return new VersionedHashTree(this, node);
+    }
+
+    /**
+     * This function gets the nodes on the path from a leaf node to the root.
+     *
+     * @return - The node of level l at l; the root at treeHeight
+     */
+    private Node[] path(int index)
+    {
+	Node[] result = new Node[this.treeHeight + 1];
+	int divisor   = 1; // arity^(l - 1) for the child on level l - 1
+	for (int l = 1; l < this.treeHeight; l++)
+	    divisor = divisor * this.arity;
+
+	result[this.treeHeight] = this.root;
+	for (int l = this.treeHeight; l > 0; l--)
+	{
+	    result[l - 1] = result[l].children[(index / divisor) % this.arity];
+	    divisor       = divisor / this.arity;
+	}
+	return result;
+    }
+
+    /**
+     * This function gets node j of level l.
+     */
+    private Node node(int l, int j)
+    {
+	Node result = this.root;
+	int divisor = 1;
+	for (int i = l + 1; i < this.treeHeight; i++)
+	    divisor = divisor * this.arity;
+
+	for (int i = this.treeHeight; i > l; i--)
+	{
+	    result  = result.children[(j / divisor) % this.arity];
+	    divisor = divisor / this.arity;
+	}
+	return result;
+    }
+
+    /**
+     * This function gets the root hash value of this version.
+     *
+     * @return - A copy of the root hash value
+     */
+    public byte[] getRoot()
+    {
+	return this.root.hash.clone();
+    }
+
+    /**
+     * This function gets a leaf node.
+     *
+     * @param index
+     *            - The index of the leaf node. It starts with 0.
+     * @return - A copy of the leaf node
+     */
+    public byte[] getLeaf(int index)
+    {
+	return this.node(0, index).leaf.clone();
+    }
+
+    /**
+     * This function checks whether a leaf node holds a given value, without
+     * copying it.
+     */
+    public boolean leafEquals(int index, byte[] value)
+    {
+	return Arrays.equals(this.node(0, index).leaf, value);
+    }
+
+    /**
+     * This function gets the authentication path for the node with index
+     * 'index'; see HashTree.getAuthenticationPath().
+     */
+    public byte[][] getAuthenticationPath(int index)
+    {
+	ArrayList<byte[]> result = new ArrayList<byte[]>();
+	if (this.arity != 2)
+	{
+	    System.out.println("Error occured when getting an authentication path: the tree is not binary; use getSiblingPath().");
+	    return null;
+	}
+
+	Node[] path = this.path(index);
+	for (int l = 1; l <= this.treeHeight; l++)
+	{
+	    Node[] children = path[l].children;
+	    if (children.length == 2)
+	    {
+		result.add(children[0].hash.clone());
+		result.add(children[1].hash.clone());
+	    }
+	}
+
+	result.add(this.getRoot());
+
+	return result.toArray(new byte[result.size()][]);
+    }
+
+    /**
+     * This function gets the compact authentication path for the node with
+     * index 'index' up to a given level; see HashTree.getSiblingPath(int,
+     * int).
+     */
+    public byte[][] getSiblingPath(int index, int levels)
+    {
+	ArrayList<byte[]> result = new ArrayList<byte[]>();
+	Node[] path              = this.path(index);
+
+	for (int l = 1; l <= levels; l++)
+	{
+	    Node[] children = path[l].children;
+	    if (children.length > 1) // the other children from the left to the
+				     // right
+		for (int p = 0; p < children.length; p++)
+		    if (children[p] != path[l - 1])
+			result.add(children[p].hash.clone());
+	}
+
+	return result.toArray(new byte[result.size()][]);
+    }
+
+    /**
+     * This function gets the direction bitmask of the compact authentication
+     * path for the node with index 'index'; see HashTree.getDirections().
+     */
+    public int getDirections(int index)
+    {
+	int result = 0;
+	int i      = 0;
+	if (this.arity != 2)
+	    return 0;
+
+	for (int l = 0; l < this.treeHeight; l++)
+	{
+	    if (index % 2 == 1)
+		result = result | (1 << i++);
+	    else if (index + 1 < this.count[l])
+		i++;
+	    index = index / 2;
+	}
+
+	return result;
+    }
+
+    /**
+     * This function gets the proof for several leaf nodes at once up to a
+     * given level; see HashTree.getMultiProof(int[], int).
+     */
+    public byte[][] getMultiProof(int[] indices, int levels)
+    {
+	ArrayList<byte[]> result = new ArrayList<byte[]>();
+	int n                    = indices.length;
+	int[] position           = Arrays.copyOf(indices, n);
+
+	for (int l = 0; l < levels; l++)
+	{
+	    int m = 0;
+	    for (int i = 0; i < n;)
+	    {
+		int group = position[i] / this.arity;
+		int first = group * this.arity;
+		int last  = Math.min(first + this.arity, this.count[l]);
+		for (int p = first; p < last; p++)
+		{
+		    if (i < n && position[i] == p) // known child
+			i++;
+		    else if (last - first > 1)
+			result.add(this.node(l, p).hash.clone());
+		}
+		position[m++] = group;
+	    }
+	    n = m;
+	}
+
+	return result.toArray(new byte[result.size()][]);
+    }
+
+    /**
+     * This function gets all the nodes of one level; see HashTree.getLevel().
+     */
+    public byte[][] getLevel(int l)
+    {
+	byte[][] result = new byte[this.count[l]][];
+	this.collect(this.root, this.treeHeight, l, result, 0);
+	return result;
+    }
+
+    /**
+     * This function copies the nodes of level l below a node of level 'level'
+     * into 'result' from position j on, and returns the next position.
+     */
+    private int collect(Node node, int level, int l, byte[][] result, int j)
+    {
+	if (level == l)
+	{
+	    result[j] = node.hash.clone();
+	    return j + 1;
+	}
+	for (int p = 0; p < node.children.length; p++)
+	    j = this.collect(node.children[p], level - 1, l, result, j);
+	return j;
+    }
+
+    public int getLeafCount()
+    {
+	return this.count[0];
+    }
+
+    public int getTreeHeight()
+    {
+	return treeHeight;
+    }
+
+    public int getLeafLength()
+    {
+	return leafLength;
+    }
+
+    public int getArity()
+    {
+	return arity;
+    }
+
+    /**
+     * This function gets the number of updates from the first version to
+     * this one.
+     */
+    public long getVersion()
+    {
+	return version;
+    }
+}